@@ -0,0 +1,90 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executors for work that should not run on the main thread.
+ * Work is usually started with Tasks.call so the results can be handled
+ * with the same listeners we use for the Firebase calls.
+ */
+public final class AppExecutors {
+
+    /**
+     * Single thread for the local database and cache files, so writes never race each other
+     */
+    private static final ExecutorService DISK = Executors.newSingleThreadExecutor(new NamedThreadFactory("disk"));
+
+    /**
+     * Small pool for CPU heavy work like decoding and encoding images
+     */
+    private static final ExecutorService WORKER = Executors.newFixedThreadPool(2, new NamedThreadFactory("worker"));
+
+    /**
+     * Downloads, which mostly wait on the network and would otherwise block the decoding
+     */
+    private static final ExecutorService NETWORK = Executors.newFixedThreadPool(3, new NamedThreadFactory("network"));
+
+    /**
+     * Imports of picked files, so a large import doesn't hold up the decoding for the screens:
+     * one thread copying and two resizing, see ImportBatch
+     */
+    private static final ExecutorService IMPORT = Executors.newFixedThreadPool(3, new NamedThreadFactory("import"));
+
+    private AppExecutors() {}
+
+    /**
+     * @return executor for local database and file access
+     */
+    public static Executor disk() {
+        return DISK;
+    }
+
+    /**
+     * @return executor for CPU heavy work
+     */
+    public static Executor worker() {
+        return WORKER;
+    }
+
+    /**
+     * @return executor for blocking network I/O
+     */
+    public static Executor network() {
+        return NETWORK;
+    }
+
+    /**
+     * @return executor for copying and resizing imported files, see ImportBatch
+     */
+    public static Executor imports() {
+        return IMPORT;
+    }
+
+    /**
+     * Name the threads so they are easy to recognize in traces, and keep them below the UI priority
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(() -> {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
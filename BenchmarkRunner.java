@@ -0,0 +1,43 @@
+package nl.kimplusdelta.gereedschap.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the benchmarks of the plain Java code of the app on a desktop JVM, no device or emulator needed.
+ * The results are written as JMH JSON, so the files of two releases can be diffed.
+ *
+ * Usage: BenchmarkRunner [result file] [benchmark regex]
+ *
+ * Built by benchmark/pom.xml into a runnable jar:
+ *   mvn -f benchmark/pom.xml package
+ *   java -jar benchmark/target/benchmarks.jar
+ */
+public final class BenchmarkRunner {
+
+    private static final String DEFAULT_RESULT = "benchmark-results.json";
+
+    private BenchmarkRunner() {}
+
+    public static void main(String[] args) throws RunnerException {
+        String result = args.length > 0 ? args[0] : DEFAULT_RESULT;
+        String include = args.length > 1 ? args[1] : BenchmarkRunner.class.getPackage().getName() + ".*";
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .forks(1)
+                .warmupIterations(5)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(10)
+                .measurementTime(TimeValue.seconds(1))
+                .resultFormat(ResultFormatType.JSON)
+                .result(result)
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,464 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Loads the full screen photos of the ImagePreview and the grid thumbnails within a fixed memory budget.
+ * - photos are downloaded once into a small disk cache, on the network executor so a slow download
+ *   doesn't hold up the decoding on the worker executor
+ * - decoded with a subsample to the size of the display, into a bitmap from the BitmapPool when possible
+ * - kept in a memory cache of 1/8 of the app's memory class; bitmaps that leave the cache and are not
+ *   on screen anymore go back to the pool
+ * - zoomed in parts are decoded from the file with a BitmapRegionDecoder, so the full photo is never in memory
+ * The budget follows the onTrimMemory signals the Application dispatches to its ComponentCallbacks.
+ */
+public class BitmapPipeline implements ComponentCallbacks2 {
+
+    /**
+     * Size cap of the downloaded photos on disk
+     */
+    private static final long DISK_MAX_SIZE = 50 * 1024 * 1024;
+
+    /**
+     * Number of open BitmapRegionDecoders, one per photo the user zooms into
+     */
+    private static final int MAX_REGION_DECODERS = 2;
+
+    private static final String DIRECTORY = "preview";
+    private static final int TIMEOUT = 15000;
+
+    private static BitmapPipeline sInstance;
+
+    private final File mDirectory;
+    private final int mTargetSize;
+    private final Bitmap.Config mConfig;
+    private final int mMaxMemory;
+    private final BitmapPool mPool;
+    private final LruCache<String, Image> mCache;
+    private final LruCache<String, BitmapRegionDecoder> mDecoders;
+
+    /**
+     * Number of views showing a bitmap, those bitmaps may not go into the pool
+     */
+    private final Map<Bitmap, Integer> mAcquired = new IdentityHashMap<>();
+    private final Map<String, Task<File>> mDownloads = new HashMap<>();
+    private final Map<String, Task<Image>> mLoading = new HashMap<>();
+
+    /**
+     * A decoded photo
+     */
+    public static final class Image {
+        public final String url;
+        public final Bitmap bitmap;
+
+        /**
+         * Size of the photo on disk, for mapping the bitmap back onto the source
+         */
+        public final int sourceWidth;
+        public final int sourceHeight;
+
+        private boolean mCached;
+
+        private Image(String url, Bitmap bitmap, int sourceWidth, int sourceHeight) {
+            this.url = url;
+            this.bitmap = bitmap;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+        }
+    }
+
+    public static synchronized BitmapPipeline getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new BitmapPipeline(context.getApplicationContext());
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    private BitmapPipeline(Context context) {
+        mDirectory = new File(context.getCacheDir(), DIRECTORY);
+
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        mTargetSize = Math.max(metrics.widthPixels, metrics.heightPixels);
+
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        boolean lowRam = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && activityManager.isLowRamDevice();
+        // photos have no alpha, so low end devices can get away with half the bytes per pixel
+        mConfig = lowRam ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        mMaxMemory = activityManager.getMemoryClass() * 1024 * 1024 / 8;
+
+        mPool = new BitmapPool(mMaxMemory / 4);
+        mCache = new LruCache<String, Image>(mMaxMemory) {
+            @Override
+            protected int sizeOf(String key, Image image) {
+                return BitmapPool.sizeOf(image.bitmap);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Image oldValue, Image newValue) {
+                oldValue.mCached = false;
+                if(!mAcquired.containsKey(oldValue.bitmap)) {
+                    mPool.put(oldValue.bitmap);
+                }
+            }
+        };
+        mDecoders = new LruCache<String, BitmapRegionDecoder>(MAX_REGION_DECODERS) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, BitmapRegionDecoder oldValue, BitmapRegionDecoder newValue) {
+                synchronized (oldValue) {
+                    oldValue.recycle();
+                }
+            }
+        };
+    }
+
+    /**
+     * Get the photo sized for the display, from memory or else from disk or the network
+     * @param url download URL of the photo
+     * @return task with the decoded photo, call acquire while it is on screen
+     */
+    @MainThread
+    public Task<Image> load(String url) {
+        return load(url, mTargetSize);
+    }
+
+    /**
+     * Get the photo sized for a smaller view, e.g. a thumbnail
+     * @param url download URL of the photo
+     * @param targetSize longest side of the decoded photo, never more than the display
+     * @return task with the decoded photo, call acquire while it is on screen
+     */
+    @MainThread
+    public Task<Image> load(final String url, int targetSize) {
+        final int size = Math.min(targetSize, mTargetSize);
+        final String key = size == mTargetSize ? url : url + "@" + size;
+        Image cached = mCache.get(key);
+        if(cached != null) {
+            return Tasks.forResult(cached);
+        }
+        Task<Image> loading = mLoading.get(key);
+        if(loading != null) {
+            return loading;
+        }
+
+        loading = fetch(url)
+                .continueWith(AppExecutors.worker(), task -> decode(url, task.getResult(), size))
+                .continueWith(task -> {
+                    mLoading.remove(key);
+                    Image image = task.getResult();
+                    image.mCached = true;
+                    mCache.put(key, image);
+                    return image;
+                });
+        mLoading.put(key, loading);
+        return loading;
+    }
+
+    /**
+     * Only download the photo, so paging to it later doesn't wait on the network
+     * @param url download URL of the photo
+     */
+    @MainThread
+    public void prefetch(String url) {
+        if(mCache.get(url) == null) {
+            fetch(url);
+        }
+    }
+
+    /**
+     * Decode a part of the photo at a higher resolution than the screen sized bitmap
+     * @param url download URL of the photo
+     * @param region part of the photo in source pixels
+     * @param sampleSize subsample of the region
+     * @return task with the bitmap, hand it back with recycle when it is no longer drawn
+     */
+    @MainThread
+    public Task<Bitmap> decodeRegion(final String url, final Rect region, final int sampleSize) {
+        return fetch(url).continueWith(AppExecutors.worker(), task -> {
+            File file = task.getResult();
+            BitmapRegionDecoder decoder = regionDecoder(url, file);
+            synchronized (decoder) {
+                if(decoder.isRecycled()) {
+                    throw new IOException("Decoder closed for " + url);
+                }
+
+                BitmapFactory.Options options = decodeOptions();
+                options.inSampleSize = sampleSize;
+                return decodeRegion(decoder, region, options);
+            }
+        });
+    }
+
+    /**
+     * Mark the bitmap as shown, so it stays out of the pool when it leaves the memory cache
+     */
+    @MainThread
+    public void acquire(Image image) {
+        Integer count = mAcquired.get(image.bitmap);
+        mAcquired.put(image.bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * The bitmap is no longer shown by the caller
+     */
+    @MainThread
+    public void release(Image image) {
+        Integer count = mAcquired.get(image.bitmap);
+        if(count == null) {
+            return;
+        }
+        if(count > 1) {
+            mAcquired.put(image.bitmap, count - 1);
+            return;
+        }
+
+        mAcquired.remove(image.bitmap);
+        if(!image.mCached) {
+            mPool.put(image.bitmap);
+        }
+    }
+
+    /**
+     * Hand back a bitmap from decodeRegion
+     */
+    public void recycle(Bitmap bitmap) {
+        mPool.put(bitmap);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if(level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            // next in line to be killed, or the system is out of memory: keep only what is on screen
+            mCache.evictAll();
+            mPool.clear();
+            mDecoders.evictAll();
+        } else if(level >= TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(mMaxMemory / 2);
+            mPool.clear();
+        } else if(level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            mPool.clear();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+
+    /**
+     * Download the photo once, concurrent requests for the same URL share the download
+     */
+    @MainThread
+    private Task<File> fetch(final String url) {
+        Task<File> download = mDownloads.get(url);
+        if(download != null) {
+            return download;
+        }
+
+        download = Tasks.call(AppExecutors.network(), () -> download(url))
+                .addOnCompleteListener(task -> mDownloads.remove(url));
+        mDownloads.put(url, download);
+        return download;
+    }
+
+    @WorkerThread
+    private File download(String url) throws IOException {
+        File file = new File(mDirectory, hash(url));
+        if(file.exists()) {
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+        if(!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mDirectory);
+        }
+
+        File temp = new File(mDirectory, file.getName() + ".part");
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        try {
+            if(connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + connection.getResponseCode() + " for " + url);
+            }
+            try (InputStream in = connection.getInputStream(); OutputStream out = new FileOutputStream(temp)) {
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            connection.disconnect();
+        }
+
+        if(!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not write " + file);
+        }
+        trimDiskCache();
+        return file;
+    }
+
+    /**
+     * Decode the photo with a power of two subsample and density scaling to the target size,
+     * see ImageResizer
+     */
+    @WorkerThread
+    private Image decode(String url, File file, int targetSize) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        int sourceWidth = options.outWidth;
+        int sourceHeight = options.outHeight;
+        if(sourceWidth <= 0 || sourceHeight <= 0) {
+            file.delete();
+            throw new IOException("Not an image: " + url);
+        }
+
+        options = decodeOptions();
+        options.inSampleSize = ImageVariants.calculateInSampleSize(sourceWidth, sourceHeight, targetSize);
+        int sampledSize = Math.max(sourceWidth, sourceHeight) / options.inSampleSize;
+        float scale = 1f;
+        if(sampledSize > targetSize) {
+            options.inScaled = true;
+            options.inDensity = sampledSize;
+            options.inTargetDensity = targetSize;
+            scale = (float) targetSize / sampledSize;
+        }
+
+        int width = (int) (sourceWidth / options.inSampleSize * scale + 0.5f);
+        int height = (int) (sourceHeight / options.inSampleSize * scale + 0.5f);
+        Bitmap bitmap = decodeFile(file, options, width, height);
+        if(bitmap == null) {
+            file.delete();
+            throw new IOException("Could not decode " + url);
+        }
+        return new Image(url, bitmap, sourceWidth, sourceHeight);
+    }
+
+    private BitmapFactory.Options decodeOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = mConfig;
+        options.inMutable = true;
+        return options;
+    }
+
+    /**
+     * Decode into a pooled bitmap, or into a new one when the pooled bitmap doesn't fit after all
+     */
+    @WorkerThread
+    private Bitmap decodeFile(File file, BitmapFactory.Options options, int width, int height) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            options.inBitmap = mPool.get(width, height, mConfig);
+        }
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            Timber.w(e, "BitmapPipeline:reuse");
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+    }
+
+    @WorkerThread
+    private Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect region, BitmapFactory.Options options) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            options.inBitmap = mPool.get(region.width() / options.inSampleSize,
+                    region.height() / options.inSampleSize, mConfig);
+        }
+        try {
+            return decoder.decodeRegion(region, options);
+        } catch (IllegalArgumentException e) {
+            Timber.w(e, "BitmapPipeline:reuseRegion");
+            options.inBitmap = null;
+            return decoder.decodeRegion(region, options);
+        }
+    }
+
+    @WorkerThread
+    private BitmapRegionDecoder regionDecoder(String url, File file) throws IOException {
+        synchronized (mDecoders) {
+            BitmapRegionDecoder decoder = mDecoders.get(url);
+            if(decoder == null || decoder.isRecycled()) {
+                decoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+                mDecoders.put(url, decoder);
+            }
+            return decoder;
+        }
+    }
+
+    /**
+     * Remove the least recently used photos until the disk cache fits in its size cap
+     */
+    @WorkerThread
+    private void trimDiskCache() {
+        File[] files = mDirectory.listFiles((dir, name) -> !name.endsWith(".part"));
+        if(files == null) {
+            return;
+        }
+
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        long total = 0;
+        for (int i = 0; i < files.length; i++) {
+            total += files[i].length();
+            if(total > DISK_MAX_SIZE && i > 0) {
+                total -= files[i].length();
+                files[i].delete();
+            }
+        }
+    }
+
+    @NonNull
+    private static String hash(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            Timber.e(e, "BitmapPipeline:hash");
+            return String.valueOf(url.hashCode());
+        }
+    }
+}
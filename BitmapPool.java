@@ -0,0 +1,114 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Size-bounded pool of bitmaps that are no longer shown, handed to BitmapFactory as inBitmap
+ * so paging through photos reuses the same few allocations instead of creating garbage for every page.
+ * Thread-safe, the decoders take bitmaps from the worker threads.
+ */
+public class BitmapPool {
+
+    /**
+     * Oldest first, so trimming drops the bitmaps that have waited the longest
+     */
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+
+    private long mMaxSize;
+    private long mSize;
+
+    /**
+     * @param maxSize maximum number of bytes kept in the pool
+     */
+    public BitmapPool(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Take a bitmap that can be decoded into
+     * @param width decoded width
+     * @param height decoded height
+     * @param config decoded config
+     * @return a mutable bitmap that is large enough, or null
+     */
+    @Nullable
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if(canReuse(bitmap, width, height, config)) {
+                iterator.remove();
+                mSize -= sizeOf(bitmap);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Offer a bitmap that is no longer used anywhere
+     * @param bitmap the bitmap, must not be drawn anymore
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if(bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || sizeOf(bitmap) > mMaxSize) {
+            return;
+        }
+
+        mBitmaps.addLast(bitmap);
+        mSize += sizeOf(bitmap);
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * @param maxSize new maximum number of bytes, bitmaps over it are released right away
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(long size) {
+        while (mSize > size && !mBitmaps.isEmpty()) {
+            Bitmap bitmap = mBitmaps.removeFirst();
+            mSize -= sizeOf(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Before KitKat inBitmap needs the exact same dimensions, after it any bitmap with enough bytes will do
+     */
+    private static boolean canReuse(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return width * height * bytesPerPixel(config) <= bitmap.getAllocationByteCount();
+        }
+        return bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+
+    /**
+     * @return bytes taken by the bitmap
+     */
+    public static int sizeOf(Bitmap bitmap) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+}
@@ -0,0 +1,71 @@
+package nl.kimplusdelta.gereedschap.model;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the values of a display list when editing starts,
+ * so a save only has to send the fields the user actually changed
+ */
+public class ChangeTracker {
+
+    /**
+     * Original value per display key
+     */
+    private final Map<String, String> mBaseline = new HashMap<>();
+
+    /**
+     * @param items display list as it was before editing, must not be the list the adapter edits
+     */
+    public ChangeTracker(List<InstrumentDisplayItem> items) {
+        for (InstrumentDisplayItem item : items) {
+            mBaseline.put(item.key, normalize(item.value));
+        }
+    }
+
+    /**
+     * @param items display list after editing
+     * @return changed values per display key, empty when nothing changed
+     */
+    public Map<String, String> getChanges(List<InstrumentDisplayItem> items) {
+        Map<String, String> changes = new LinkedHashMap<>();
+        for (InstrumentDisplayItem item : items) {
+            if(item.value == null) {
+                continue;
+            }
+
+            String original = mBaseline.get(item.key);
+            if(!normalize(item.value).equals(original)) {
+                changes.put(item.key, item.value);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @param key display key
+     * @return the value of the field when editing started, or since the last commit
+     */
+    public String getOriginal(String key) {
+        return mBaseline.get(key);
+    }
+
+    /**
+     * Make the new baseline the saved values, for when the user keeps on editing
+     * @param changes the changes that were saved
+     */
+    public void commit(Map<String, String> changes) {
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            mBaseline.put(change.getKey(), normalize(change.getValue()));
+        }
+    }
+
+    /**
+     * An empty field and a missing field are the same to the user
+     */
+    private static String normalize(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,194 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per company index of the uploaded files by content hash (SHA-256), so the same photo or
+ * document is stored once and shared by every item that uses it.
+ * - hashes/{companyID}/{hash} holds the storage filename of the content
+ * - objects/{companyID}/{filename} holds the hash and the number of item lists that reference the file
+ *
+ * The reference count errs on the high side: it is raised before a list entry is written and
+ * lowered after one is removed, so a crash in between leaks a file instead of deleting one that is in use.
+ * Files uploaded before the index existed have no object entry and are deleted right away.
+ */
+public final class ContentIndex {
+
+    private static final String HASHES = "hashes";
+    private static final String OBJECTS = "objects";
+    private static final String HASH = "hash";
+    private static final String REFS = "refs";
+
+    private ContentIndex() {}
+
+    /**
+     * Look up the content and add a reference to it
+     * @param companyID users company
+     * @param hash content hash
+     * @return task with the storage filename of the existing file, or null when the content was not uploaded before
+     */
+    public static Task<String> reference(final String companyID, String hash) {
+        return DatabaseTasks.get(hashes(companyID).child(hash)).continueWithTask(task -> {
+            if(!task.isSuccessful()) {
+                return Tasks.forException(task.getException());
+            }
+
+            final String filename = task.getResult().getValue(String.class);
+            if(filename == null) {
+                return Tasks.forResult(null);
+            }
+
+            // the file may have been released in the meantime, then it is uploaded again
+            return updateRefs(objects(companyID).child(filename), 1, null)
+                    .continueWith(updated -> updated.getResult() ? filename : null);
+        });
+    }
+
+    /**
+     * Add a freshly uploaded file to the index, with a single reference
+     * @param companyID users company
+     * @param filename storage filename
+     * @param hash content hash
+     * @return task that completes once the index is written
+     */
+    public static Task<Void> register(String companyID, String filename, String hash) {
+        Map<String, Object> object = new HashMap<>();
+        object.put(HASH, hash);
+        object.put(REFS, 1);
+
+        Map<String, Object> update = new HashMap<>();
+        update.put(HASHES + "/" + companyID + "/" + hash, filename);
+        update.put(OBJECTS + "/" + companyID + "/" + filename, object);
+        return FirebaseDatabase.getInstance().getReference().updateChildren(update);
+    }
+
+    /**
+     * Remove a reference to the file
+     * @param companyID users company
+     * @param filename storage filename
+     * @return task with true when the file is no longer referenced and should be deleted from storage
+     */
+    public static Task<Boolean> release(String companyID, String filename) {
+        return release(companyID, filename, 1);
+    }
+
+    /**
+     * Remove references to the file, e.g. when it was removed from several items
+     * @param companyID users company
+     * @param filename storage filename
+     * @param count number of references to remove
+     * @return task with true when the file is no longer referenced and should be deleted from storage
+     */
+    public static Task<Boolean> release(final String companyID, final String filename, int count) {
+        final String[] hash = new String[1];
+        return updateRefs(objects(companyID).child(filename), -count, hash).continueWithTask(task -> {
+            if(!task.isSuccessful()) {
+                return Tasks.forException(task.getException());
+            }
+            if(!task.getResult()) {
+                // still referenced by another item
+                return Tasks.forResult(false);
+            }
+            if(hash[0] == null) {
+                // not in the index
+                return Tasks.forResult(true);
+            }
+
+            return clearHash(hashes(companyID).child(hash[0]), filename).continueWith(ignored -> true);
+        });
+    }
+
+    /**
+     * Change the reference count in a transaction. An object that drops to zero references is removed.
+     * @param objectRef objects/{companyID}/{filename}
+     * @param delta +1, or minus the number of references to remove
+     * @param removedHash receives the hash of a removed object, may be null
+     * @return for +1: true when the reference was added, false when there is no object.
+     *         For a removal: true when the object is gone, false when it is still referenced.
+     */
+    private static Task<Boolean> updateRefs(DatabaseReference objectRef, final int delta, final String[] removedHash) {
+        final TaskCompletionSource<Boolean> source = new TaskCompletionSource<>();
+        objectRef.runTransaction(new Transaction.Handler() {
+            @Override
+            public Transaction.Result doTransaction(MutableData mutableData) {
+                if(removedHash != null) {
+                    removedHash[0] = null;
+                }
+                if(mutableData.getValue() == null) {
+                    return delta > 0 ? Transaction.abort() : Transaction.success(mutableData);
+                }
+
+                Long refs = mutableData.child(REFS).getValue(Long.class);
+                long updated = (refs == null ? 1 : refs) + delta;
+                if(updated <= 0) {
+                    if(removedHash != null) {
+                        removedHash[0] = mutableData.child(HASH).getValue(String.class);
+                    }
+                    mutableData.setValue(null);
+                } else {
+                    mutableData.child(REFS).setValue(updated);
+                }
+                return Transaction.success(mutableData);
+            }
+
+            @Override
+            public void onComplete(DatabaseError databaseError, boolean committed, DataSnapshot dataSnapshot) {
+                if(databaseError != null) {
+                    source.setException(databaseError.toException());
+                } else if(delta > 0) {
+                    source.setResult(committed);
+                } else {
+                    source.setResult(dataSnapshot == null || !dataSnapshot.exists());
+                }
+            }
+        });
+        return source.getTask();
+    }
+
+    /**
+     * Remove the hash entry, unless the same content was uploaded again under another filename
+     */
+    private static Task<Void> clearHash(DatabaseReference hashRef, final String filename) {
+        final TaskCompletionSource<Void> source = new TaskCompletionSource<>();
+        hashRef.runTransaction(new Transaction.Handler() {
+            @Override
+            public Transaction.Result doTransaction(MutableData mutableData) {
+                Object current = mutableData.getValue();
+                if(current != null && !current.equals(filename)) {
+                    return Transaction.abort();
+                }
+                mutableData.setValue(null);
+                return Transaction.success(mutableData);
+            }
+
+            @Override
+            public void onComplete(DatabaseError databaseError, boolean committed, DataSnapshot dataSnapshot) {
+                if(databaseError != null) {
+                    source.setException(databaseError.toException());
+                } else {
+                    source.setResult(null);
+                }
+            }
+        });
+        return source.getTask();
+    }
+
+    private static DatabaseReference hashes(String companyID) {
+        return FirebaseDatabase.getInstance().getReference(HASHES).child(companyID);
+    }
+
+    private static DatabaseReference objects(String companyID) {
+        return FirebaseDatabase.getInstance().getReference(OBJECTS).child(companyID);
+    }
+}
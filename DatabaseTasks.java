@@ -0,0 +1,38 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+/**
+ * Task wrappers for the Realtime Database listener API, so database reads can be chained
+ * like the Storage calls
+ */
+public final class DatabaseTasks {
+
+    private DatabaseTasks() {}
+
+    /**
+     * Read a query once
+     * @param query reference or query to read
+     * @return task with the snapshot, fails with the DatabaseError as exception
+     */
+    public static Task<DataSnapshot> get(Query query) {
+        final TaskCompletionSource<DataSnapshot> source = new TaskCompletionSource<>();
+        query.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                source.setResult(dataSnapshot);
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                source.setException(databaseError.toException());
+            }
+        });
+        return source.getTask();
+    }
+}
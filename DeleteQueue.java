@@ -0,0 +1,366 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.WorkerThread;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageReference;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import nl.kimplusdelta.gereedschap.storage.LocalDatabase;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+import nl.kimplusdelta.gereedschap.utils.ImageVariants;
+import timber.log.Timber;
+
+/**
+ * Persistent queue for deletes from Firebase Storage.
+ * Every object to delete is recorded in the LocalDatabase first, so an object that could not be deleted
+ * (offline, a server error, process death) is retried later with an exponential backoff instead of
+ * being left behind in storage. At most MAX_CONCURRENT deletes run at the same time.
+ *
+ * Files that were removed from an item's list go through the queue twice: first their ContentIndex
+ * reference is released, and only when no item references the content anymore the file and its
+ * variants are queued for deletion. A release that fails is retried the same way.
+ * The same file can be listed by several items, so the releases of a file add up: every removal
+ * gives back one reference, also when an earlier release of the file is still queued.
+ */
+public class DeleteQueue {
+
+    private static final int MAX_CONCURRENT = 4;
+
+    /**
+     * Row states: the reference still has to be released, or the object has to be deleted
+     */
+    private static final int STATE_DELETE = 0;
+    private static final int STATE_RELEASE = 1;
+
+    private static final long BASE_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(30);
+
+    private static DeleteQueue sInstance;
+
+    private final LocalDatabase mDatabase;
+    private final DownloadUrlResolver mUrlResolver;
+    private final StorageReference mStorageRef;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+
+    /**
+     * Row IDs that are being deleted right now
+     */
+    private final Set<Long> mActive = new HashSet<>();
+
+    private boolean mProcessing;
+    private boolean mProcessAgain;
+
+    private final Runnable mProcessRunnable = this::process;
+
+    public static synchronized DeleteQueue getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new DeleteQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DeleteQueue(Context context) {
+        mDatabase = LocalDatabase.getInstance(context);
+        mUrlResolver = DownloadUrlResolver.getInstance(context);
+        mStorageRef = FirebaseStorage.getInstance().getReferenceFromUrl("gs://gereedschap-app.appspot.com/");
+    }
+
+    /**
+     * Pick up the deletes that were left behind by a previous session
+     */
+    @MainThread
+    public void start() {
+        process();
+    }
+
+    /**
+     * Record the objects and start deleting them
+     * @param companyID users company
+     * @param filenames storage filenames, an object that is already queued is queued once
+     * @return task that completes once the deletes are stored on disk
+     */
+    @MainThread
+    public Task<Void> enqueue(final String companyID, final Collection<String> filenames) {
+        return insert(companyID, filenames, STATE_DELETE, false);
+    }
+
+    /**
+     * Record files that were removed from an item's list. Their ContentIndex references are released
+     * and the files that are no longer referenced are deleted, together with their variants.
+     * @param companyID users company
+     * @param filenames storage filenames of the removed originals
+     * @param variants true when the files have a small and a screen variant (photos)
+     * @return task that completes once the releases are stored on disk
+     */
+    @MainThread
+    public Task<Void> release(final String companyID, final Collection<String> filenames, boolean variants) {
+        return insert(companyID, filenames, STATE_RELEASE, variants);
+    }
+
+    @MainThread
+    private Task<Void> insert(final String companyID, final Collection<String> filenames, final int state,
+                              final boolean variants) {
+        return Tasks.call(AppExecutors.disk(), () -> {
+            SQLiteDatabase db = mDatabase.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (String filename : filenames) {
+                    insertRow(db, companyID, filename, state, variants);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return (Void) null;
+        }).addOnSuccessListener(ignored -> process());
+    }
+
+    /**
+     * Queue a delete, once per object, or add a release to the ones already queued for the file
+     */
+    @WorkerThread
+    private static void insertRow(SQLiteDatabase db, String companyID, String filename, int state, boolean variants) {
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_COMPANY, companyID);
+        values.put(LocalDatabase.COLUMN_FILENAME, filename);
+        values.put(LocalDatabase.COLUMN_STATE, state);
+        values.put(LocalDatabase.COLUMN_VARIANTS, variants ? 1 : 0);
+        long id = db.insertWithOnConflict(LocalDatabase.TABLE_DELETES, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        if(id == -1 && state == STATE_RELEASE) {
+            db.execSQL("UPDATE " + LocalDatabase.TABLE_DELETES
+                    + " SET " + LocalDatabase.COLUMN_RELEASES + " = " + LocalDatabase.COLUMN_RELEASES + " + 1"
+                    + " WHERE " + LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_FILENAME + " = ?"
+                    + " AND " + LocalDatabase.COLUMN_STATE + " = ?",
+                    new Object[] { companyID, filename, STATE_RELEASE });
+        }
+    }
+
+    /**
+     * Read the queue and start the rows that are due until MAX_CONCURRENT is reached,
+     * then schedule the next wake up. Every finished delete processes the queue again.
+     */
+    @MainThread
+    private void process() {
+        if(mProcessing) {
+            mProcessAgain = true;
+            return;
+        }
+        mProcessing = true;
+        mHandler.removeCallbacks(mProcessRunnable);
+
+        Tasks.call(AppExecutors.disk(), this::readAll).addOnCompleteListener(task -> {
+            mProcessing = false;
+            if(!task.isSuccessful()) {
+                Timber.w(task.getException(), "DeleteQueue:read");
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            long nextWakeUp = Long.MAX_VALUE;
+            for (Row row : task.getResult()) {
+                if(mActive.contains(row.id)) {
+                    continue;
+                }
+                if(row.nextAttempt > now) {
+                    nextWakeUp = Math.min(nextWakeUp, row.nextAttempt);
+                    continue;
+                }
+                if(mActive.size() < MAX_CONCURRENT) {
+                    if(row.state == STATE_RELEASE) {
+                        release(row);
+                    } else {
+                        delete(row);
+                    }
+                }
+            }
+
+            if(nextWakeUp != Long.MAX_VALUE) {
+                mHandler.postDelayed(mProcessRunnable, nextWakeUp - now);
+            }
+            if(mProcessAgain) {
+                mProcessAgain = false;
+                process();
+            }
+        });
+    }
+
+    /**
+     * Delete a single object. An object that is already gone counts as deleted.
+     * @param row queued delete
+     */
+    private void delete(final Row row) {
+        mActive.add(row.id);
+        mStorageRef.child(row.companyID + "/" + row.filename).delete().addOnCompleteListener(task -> {
+            if(!task.isSuccessful() && !isNotFound(task.getException())) {
+                Timber.w(task.getException(), "DeleteQueue:delete %s", row.filename);
+                retryLater(row);
+                return;
+            }
+
+            Tasks.call(AppExecutors.disk(), () -> {
+                remove(row.id);
+                return (Void) null;
+            }).addOnCompleteListener(ignored -> {
+                mActive.remove(row.id);
+                process();
+            });
+        });
+    }
+
+    /**
+     * Release the references to a removed file, and queue the file for deletion when they were the last ones
+     * @param row queued release
+     */
+    private void release(final Row row) {
+        mActive.add(row.id);
+        ContentIndex.release(row.companyID, row.filename, row.releases).addOnCompleteListener(task -> {
+            if(!task.isSuccessful()) {
+                Timber.w(task.getException(), "DeleteQueue:release %s", row.filename);
+                retryLater(row);
+                return;
+            }
+
+            final boolean unreferenced = task.getResult();
+            final List<String> objects = new ArrayList<>();
+            if(unreferenced) {
+                objects.add(row.filename);
+                if(row.variants) {
+                    objects.add(ImageVariants.name(row.filename, ImageVariants.SMALL));
+                    objects.add(ImageVariants.name(row.filename, ImageVariants.SCREEN));
+                }
+            }
+            for (String object : objects) {
+                mUrlResolver.invalidate(row.companyID, object);
+            }
+
+            Tasks.call(AppExecutors.disk(), () -> {
+                released(row, objects);
+                return (Void) null;
+            }).addOnCompleteListener(ignored -> {
+                mActive.remove(row.id);
+                process();
+            });
+        });
+    }
+
+    /**
+     * Replace the release row by the deletes of the objects, in one transaction.
+     * Releases of the file that were queued in the meantime stay in the row.
+     */
+    @WorkerThread
+    private void released(Row row, List<String> objects) {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            String[] id = { String.valueOf(row.id) };
+            db.execSQL("UPDATE " + LocalDatabase.TABLE_DELETES
+                    + " SET " + LocalDatabase.COLUMN_RELEASES + " = " + LocalDatabase.COLUMN_RELEASES + " - " + row.releases
+                    + " WHERE " + LocalDatabase.COLUMN_ID + " = ?", id);
+            db.delete(LocalDatabase.TABLE_DELETES,
+                    LocalDatabase.COLUMN_ID + " = ? AND " + LocalDatabase.COLUMN_RELEASES + " <= 0", id);
+            for (String object : objects) {
+                insertRow(db, row.companyID, object, STATE_DELETE, false);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void retryLater(final Row row) {
+        row.attempts++;
+        long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(row.attempts - 1, 16));
+        row.nextAttempt = System.currentTimeMillis() + backoff / 2 + (long) (mRandom.nextDouble() * backoff / 2);
+
+        Tasks.call(AppExecutors.disk(), () -> {
+            updateRetry(row);
+            return (Void) null;
+        }).addOnCompleteListener(ignored -> {
+            mActive.remove(row.id);
+            process();
+        });
+    }
+
+    @WorkerThread
+    private void remove(long id) {
+        mDatabase.getWritableDatabase().delete(LocalDatabase.TABLE_DELETES,
+                LocalDatabase.COLUMN_ID + " = ?", new String[] { String.valueOf(id) });
+    }
+
+    @WorkerThread
+    private void updateRetry(Row row) {
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_ATTEMPTS, row.attempts);
+        values.put(LocalDatabase.COLUMN_NEXT_ATTEMPT, row.nextAttempt);
+        mDatabase.getWritableDatabase().update(LocalDatabase.TABLE_DELETES, values,
+                LocalDatabase.COLUMN_ID + " = ?", new String[] { String.valueOf(row.id) });
+    }
+
+    @WorkerThread
+    private List<Row> readAll() {
+        List<Row> rows = new ArrayList<>();
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_DELETES, null,
+                null, null, null, null, LocalDatabase.COLUMN_ID);
+        try {
+            while (cursor.moveToNext()) {
+                rows.add(new Row(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private static boolean isNotFound(Exception e) {
+        return e instanceof StorageException
+                && ((StorageException) e).getErrorCode() == StorageException.ERROR_OBJECT_NOT_FOUND;
+    }
+
+    /**
+     * In-memory copy of a queue row
+     */
+    private static class Row {
+        final long id;
+        final String companyID;
+        final String filename;
+        final int state;
+        final boolean variants;
+
+        /**
+         * Number of references a release row gives back
+         */
+        final int releases;
+        int attempts;
+        long nextAttempt;
+
+        Row(Cursor cursor) {
+            id = cursor.getLong(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_ID));
+            companyID = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_COMPANY));
+            filename = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_FILENAME));
+            state = cursor.getInt(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_STATE));
+            variants = cursor.getInt(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_VARIANTS)) != 0;
+            releases = cursor.getInt(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_RELEASES));
+            attempts = cursor.getInt(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_ATTEMPTS));
+            nextAttempt = cursor.getLong(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_NEXT_ATTEMPT));
+        }
+    }
+}
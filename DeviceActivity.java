@@ -14,7 +14,7 @@ import nl.kimplusdelta.gereedschap.MyApplication;
 import nl.kimplusdelta.gereedschap.R;
 import nl.kimplusdelta.gereedschap.adapter.DeviceAdapter;
 import nl.kimplusdelta.gereedschap.firebase.InstrumentItem;
-import nl.kimplusdelta.gereedschap.utils.ConnectionUtils;
+import nl.kimplusdelta.gereedschap.firebase.ItemRepository;
 
 /**
  * Activity that shows a short list of data
@@ -22,7 +22,8 @@ import nl.kimplusdelta.gereedschap.utils.ConnectionUtils;
 public class DeviceActivity extends AppCompatActivity {
 
     /**
-     * Information for passing along the intent
+     * Information for passing along the intent.
+     * The item itself is resolved from the ItemRepository, the bundle is only used by FirebaseHelper.
      */
     public static final String EXTRA_ITEM = "item";
     public static final String EXTRA_BUNDLE = "bundle";
@@ -46,7 +47,7 @@ public class DeviceActivity extends AppCompatActivity {
     private String mID;
 
     /**
-     * assign the variables from the intent and start the adapter
+     * assign the variables from the intent, resolve the item and start the adapter
      * @param savedInstanceState
      */
     @Override
@@ -60,14 +61,25 @@ public class DeviceActivity extends AppCompatActivity {
         }
 
         mID = getIntent().getExtras().getString(EXTRA_ID);
+        final String companyID = ((MyApplication)getApplication()).companyID;
+        final ItemRepository repository = ItemRepository.getInstance(this);
+
+        // FirebaseHelper still hands the item over in a bundle
         Bundle bundle = getIntent().getBundleExtra(EXTRA_BUNDLE);
-        mItem = bundle.getParcelable(EXTRA_ITEM);
-        if(mItem != null) {
-            this.setTitle(mID);
-            mListView.setAdapter(new DeviceAdapter(this, mItem.toShortDisplayList()));
-        } else {
-            finish();
+        InstrumentItem bundled = bundle != null ? bundle.getParcelable(EXTRA_ITEM) : null;
+        if(bundled != null) {
+            repository.put(companyID, mID, bundled);
         }
+
+        repository.get(companyID, mID).addOnCompleteListener(this, task -> {
+            mItem = task.isSuccessful() ? task.getResult() : null;
+            if(mItem != null) {
+                this.setTitle(mID);
+                mListView.setAdapter(new DeviceAdapter(this, mItem.toShortDisplayList()));
+            } else {
+                finish();
+            }
+        });
     }
 
     /**
@@ -92,11 +104,10 @@ public class DeviceActivity extends AppCompatActivity {
                 finish();
                 return true;
             case MENU_EDIT:
-                if(ConnectionUtils.isConnected(this)) {
-                    showMoreInfo(true);
-                } else {
-                    ConnectionUtils.showNoConnectionDialog(this);
+                if(mItem == null) {
+                    break;
                 }
+                showMoreInfo(true);
                 break;
         }
 
@@ -105,7 +116,9 @@ public class DeviceActivity extends AppCompatActivity {
 
     @OnClick(R.id.infoButton)
     public void onMoreInfoClicked() {
-        showMoreInfo(false);
+        if(mItem != null) {
+            showMoreInfo(false);
+        }
     }
 
     /**
@@ -116,11 +129,6 @@ public class DeviceActivity extends AppCompatActivity {
         Intent intent = new Intent(DeviceActivity.this, DeviceDetailsActivity.class);
         intent.putExtra(DeviceDetailsActivity.EXTRA_ID, mID);
         intent.putExtra(DeviceDetailsActivity.EXTRA_EDIT, edit);
-
-        Bundle bundle = new Bundle();
-        bundle.putParcelable(DeviceDetailsActivity.EXTRA_ITEM, mItem);
-        intent.putExtra(DeviceDetailsActivity.EXTRA_BUNDLE, bundle);
-
         startActivity(intent);
 
         finish();
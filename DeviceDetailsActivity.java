@@ -2,13 +2,14 @@ package nl.kimplusdelta.gereedschap.activity;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.ListView;
+import android.widget.Toast;
 
-import com.google.firebase.database.FirebaseDatabase;
-
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,7 +21,10 @@ import nl.kimplusdelta.gereedschap.R;
 import nl.kimplusdelta.gereedschap.adapter.DeviceAdapter;
 import nl.kimplusdelta.gereedschap.adapter.DeviceBaseAdapter;
 import nl.kimplusdelta.gereedschap.adapter.EditDeviceAdapter;
+import nl.kimplusdelta.gereedschap.firebase.EditQueue;
 import nl.kimplusdelta.gereedschap.firebase.InstrumentItem;
+import nl.kimplusdelta.gereedschap.firebase.ItemRepository;
+import nl.kimplusdelta.gereedschap.model.ChangeTracker;
 import nl.kimplusdelta.gereedschap.model.InstrumentDisplayItem;
 import nl.kimplusdelta.gereedschap.utils.ConnectionUtils;
 
@@ -30,7 +34,8 @@ import nl.kimplusdelta.gereedschap.utils.ConnectionUtils;
 public class DeviceDetailsActivity extends AppCompatActivity {
 
     /**
-     * Information for passing along the intent
+     * Information for passing along the intent.
+     * The item itself is resolved from the ItemRepository, the bundle is only a fallback.
      */
     public static final String EXTRA_ITEM = "item";
     public static final String EXTRA_BUNDLE = "bundle";
@@ -67,7 +72,12 @@ public class DeviceDetailsActivity extends AppCompatActivity {
     private boolean mEditMode;
 
     /**
-     * assign the variables from the intent
+     * Values at the start of edit mode, to find out which fields changed
+     */
+    private ChangeTracker mChangeTracker;
+
+    /**
+     * assign the variables from the intent and resolve the item
      * @param savedInstanceState
      */
     @Override
@@ -81,15 +91,47 @@ public class DeviceDetailsActivity extends AppCompatActivity {
         }
 
         mItemID = getIntent().getExtras().getString(EXTRA_ID);
+        final String companyID = ((MyApplication)getApplication()).companyID;
+        final ItemRepository repository = ItemRepository.getInstance(this);
+
         Bundle bundle = getIntent().getBundleExtra(EXTRA_BUNDLE);
-        mItem = bundle.getParcelable(EXTRA_ITEM);
-        if (mItem != null) {
-            this.setTitle(mItemID);
+        InstrumentItem bundled = bundle != null ? bundle.getParcelable(EXTRA_ITEM) : null;
+        if(bundled != null) {
+            repository.put(companyID, mItemID, bundled);
+        }
+
+        repository.get(companyID, mItemID).addOnCompleteListener(this, task -> {
+            mItem = task.isSuccessful() ? task.getResult() : null;
+            if (mItem != null) {
+                this.setTitle(mItemID);
+
+                mEditMode = getIntent().getExtras().getBoolean(EXTRA_EDIT);
+                invalidateOptionsMenu();
+                buildList();
+                showConflicts(companyID);
+                showFailing(companyID);
+            } else {
+                finish();
+            }
+        });
+
+        EditQueue.getInstance(this).addListener(editListener);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        EditQueue.getInstance(this).removeListener(editListener);
+    }
 
-            mEditMode = getIntent().getExtras().getBoolean(EXTRA_EDIT);
+    /**
+     * Show the changes made in the GridActivity, the item instance is shared through the ItemRepository
+     */
+    @Override
+    protected void onRestart() {
+        super.onRestart();
+        if(mItem != null && !mEditMode) {
             buildList();
-        } else {
-            finish();
         }
     }
 
@@ -99,6 +141,7 @@ public class DeviceDetailsActivity extends AppCompatActivity {
     private void buildList() {
         if(mEditMode) {
             mAdapter = new EditDeviceAdapter(this, mItem.toFullDisplayList(this));
+            mChangeTracker = new ChangeTracker(mItem.toFullDisplayList(this));
         } else {
             mAdapter = new DeviceAdapter(this, mItem.toFullDisplayList(this));
         }
@@ -129,42 +172,91 @@ public class DeviceDetailsActivity extends AppCompatActivity {
         Intent intent = new Intent(DeviceDetailsActivity.this, GridActivity.class);
         intent.putExtra(GridActivity.KEY_ID, mItemID);
         intent.putExtra(GridActivity.KEY_TYPE, gridType);
-
-        if(gridType.equals(GridActivity.TYPE_PHOTO)) {
-            List<String> pictures = mItem.getPictures();
-            intent.putExtra(GridActivity.KEY_DATA, pictures.toArray(new String[pictures.size()]));
-        } else if(gridType.equals(GridActivity.TYPE_DOCS)) {
-            List<String> attachments = mItem.getAttachments();
-            intent.putExtra(GridActivity.KEY_DATA, attachments.toArray(new String[attachments.size()]));
-        }
-
         startActivity(intent);
     }
 
     /**
-     * Update the Database with only the changed values
+     * Update the local item and queue only the changed values for the Database, see EditQueue.
+     * Nothing is sent when the user didn't change anything.
      */
     private void saveEdits() {
-        Map<String, Object> updateMap = new HashMap<>();
+        if(mChangeTracker == null) {
+            return;
+        }
+
+        List<InstrumentDisplayItem> displayItems = new ArrayList<>(mAdapter.getCount());
         for(int i = 0; i < mAdapter.getCount(); i++) {
             InstrumentDisplayItem displayItem = mAdapter.getItem(i);
             if(displayItem != null) {
-                if (displayItem.value != null) {
-                    String dbKey = InstrumentItem.localeToDBKey(displayItem.key);
-                    String dbValue = displayItem.value;
-
-                    updateMap.put(dbKey, dbValue);
-                    mItem.updateValue(dbKey, dbValue);
-                }
+                displayItems.add(displayItem);
             }
         }
 
-        FirebaseDatabase.getInstance().getReference("items")
-                .child(((MyApplication)getApplication()).companyID)
-                .child(mItemID)
-                .updateChildren(updateMap);
+        Map<String, String> changes = mChangeTracker.getChanges(displayItems);
+        if(changes.isEmpty()) {
+            return;
+        }
+
+        Map<String, String> updateMap = new HashMap<>();
+        Map<String, String> baseMap = new HashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String dbKey = InstrumentItem.localeToDBKey(change.getKey());
+            String dbValue = change.getValue();
+
+            updateMap.put(dbKey, dbValue);
+            baseMap.put(dbKey, mChangeTracker.getOriginal(change.getKey()));
+            mItem.updateValue(dbKey, dbValue);
+        }
+        mChangeTracker.commit(changes);
+
+        String companyID = ((MyApplication)getApplication()).companyID;
+        ItemRepository.getInstance(this).update(companyID, mItemID, mItem);
+        EditQueue.getInstance(this).enqueue(companyID, mItemID, updateMap, baseMap);
+    }
+
+    /**
+     * Show the fields that someone else changed while our edits were queued
+     */
+    private void showConflicts(final String companyID) {
+        final EditQueue editQueue = EditQueue.getInstance(this);
+        editQueue.conflicts(companyID, mItemID).addOnSuccessListener(this, conflicts -> {
+            if(conflicts.isEmpty()) {
+                return;
+            }
+
+            StringBuilder message = new StringBuilder();
+            for (EditQueue.Conflict conflict : conflicts) {
+                message.append(conflict.field).append(": ")
+                        .append(conflict.keptLocal ? conflict.localValue : conflict.remoteValue)
+                        .append("\n  (")
+                        .append(conflict.keptLocal ? conflict.remoteValue : conflict.localValue)
+                        .append(")\n");
+            }
+            new AlertDialog.Builder(this)
+                    .setTitle("Changed by someone else")
+                    .setMessage(message.toString().trim())
+                    .setPositiveButton(android.R.string.ok, (dialog, which) -> editQueue.clearConflicts(companyID, mItemID))
+                    .show();
+        });
+    }
+
+    /**
+     * Tell the user when earlier edits of the item keep failing to be written
+     */
+    private void showFailing(final String companyID) {
+        EditQueue.getInstance(this).isFailing(companyID, mItemID).addOnSuccessListener(this, failing -> {
+            if(failing) {
+                Toast.makeText(this, R.string.edits_not_saved, Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
+    private final EditQueue.Listener editListener = (companyID, itemID, e) -> {
+        if(itemID.equals(mItemID)) {
+            Toast.makeText(this, R.string.edits_not_saved, Toast.LENGTH_LONG).show();
+        }
+    };
+
     /**
      * Dynamic menu based on mEditMode and user access-control
      * @param menu
@@ -187,25 +279,20 @@ public class DeviceDetailsActivity extends AppCompatActivity {
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        if(mItem == null && item.getItemId() != android.R.id.home) {
+            return super.onOptionsItemSelected(item);
+        }
+
         switch (item.getItemId()) {
             case android.R.id.home:
                 finish();
                 return true;
             case MENU_EDIT:
-                if(ConnectionUtils.isConnected(this)) {
-                    mEditMode = true;
-                    invalidateOptionsMenu();
-                    buildList();
-                } else {
-                    ConnectionUtils.showNoConnectionDialog(this);
-                }
+                mEditMode = true;
+                invalidateOptionsMenu();
+                buildList();
                 break;
             case MENU_SAVE:
-                if(!ConnectionUtils.isConnected(this)) {
-                    ConnectionUtils.showNoConnectionDialog(this);
-                    break;
-                }
-
                 saveEdits();
             case MENU_CLOSE:
                 mEditMode = false;
@@ -0,0 +1,267 @@
+package nl.kimplusdelta.gereedschap.storage;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+import timber.log.Timber;
+
+/**
+ * Disk cache for documents from Firebase Storage, keyed by storage path.
+ * A cached copy is checked against the StorageMetadata (md5 hash and generation) at most once
+ * per VALIDATE_INTERVAL; within that window a repeat open doesn't touch the network at all.
+ * When the cache grows over its size cap the least recently opened documents are removed.
+ */
+public class DocumentCache {
+
+    /**
+     * Default size cap of the cache
+     */
+    public static final long DEFAULT_MAX_SIZE = 100 * 1024 * 1024;
+
+    /**
+     * How long a validated copy is trusted without asking Firebase
+     */
+    private static final long VALIDATE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    private static final String DIRECTORY = "documents";
+
+    /**
+     * Prefix of the temp files the DocumentPreview used to create
+     */
+    private static final String LEGACY_TEMP_PREFIX = "gereedschap-app";
+
+    private static DocumentCache sInstance;
+
+    private final LocalDatabase mDatabase;
+    private final File mDirectory;
+    private final StorageReference mStorageRef;
+    private long mMaxSize = DEFAULT_MAX_SIZE;
+
+    public static synchronized DocumentCache getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new DocumentCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DocumentCache(Context context) {
+        mDatabase = LocalDatabase.getInstance(context);
+        File cacheDir = context.getExternalCacheDir() != null ? context.getExternalCacheDir() : context.getCacheDir();
+        mDirectory = new File(cacheDir, DIRECTORY);
+        mStorageRef = FirebaseStorage.getInstance().getReferenceFromUrl("gs://gereedschap-app.appspot.com/");
+
+        AppExecutors.disk().execute(() -> removeLegacyTempFiles(cacheDir));
+    }
+
+    /**
+     * @param maxSize size cap in bytes, applied on the next download
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Get a local copy of the document, downloading it only when we don't have a valid copy
+     * @param companyID users company
+     * @param filename storage filename
+     * @return task with the local file
+     */
+    public Task<File> open(String companyID, String filename) {
+        final String path = companyID + "/" + filename;
+        final StorageReference reference = mStorageRef.child(path);
+
+        return Tasks.call(AppExecutors.disk(), () -> read(path)).continueWithTask(readTask -> {
+            final Entry entry = readTask.isSuccessful() ? readTask.getResult() : null;
+            if(entry != null && System.currentTimeMillis() - entry.validated < VALIDATE_INTERVAL) {
+                return touch(entry, false);
+            }
+
+            return reference.getMetadata().continueWithTask(metadataTask -> {
+                if(!metadataTask.isSuccessful()) {
+                    // offline: an old copy is better than nothing
+                    if(entry != null) {
+                        return touch(entry, false);
+                    }
+                    return Tasks.forException(metadataTask.getException());
+                }
+
+                StorageMetadata metadata = metadataTask.getResult();
+                if(entry != null && entry.matches(metadata)) {
+                    return touch(entry, true);
+                }
+                return download(path, reference, metadata);
+            });
+        });
+    }
+
+    private Task<File> touch(final Entry entry, final boolean validated) {
+        return Tasks.call(AppExecutors.disk(), () -> {
+            long now = System.currentTimeMillis();
+            ContentValues values = new ContentValues();
+            values.put(LocalDatabase.COLUMN_LAST_ACCESS, now);
+            if(validated) {
+                values.put(LocalDatabase.COLUMN_VALIDATED, now);
+            }
+            mDatabase.getWritableDatabase().update(LocalDatabase.TABLE_DOCUMENTS, values,
+                    LocalDatabase.COLUMN_PATH + " = ?", new String[] { entry.path });
+            return entry.file;
+        });
+    }
+
+    private Task<File> download(final String path, StorageReference reference, final StorageMetadata metadata) {
+        if(!mDirectory.exists() && !mDirectory.mkdirs()) {
+            return Tasks.forException(new IllegalStateException("Could not create " + mDirectory));
+        }
+
+        final File file = new File(mDirectory, hash(path) + ".pdf");
+        final File temp = new File(mDirectory, file.getName() + ".part");
+        return reference.getFile(temp).continueWithTask(task -> {
+            if(!task.isSuccessful()) {
+                temp.delete();
+                return Tasks.forException(task.getException());
+            }
+
+            return Tasks.call(AppExecutors.disk(), () -> {
+                if(!temp.renameTo(file)) {
+                    temp.delete();
+                    throw new IllegalStateException("Could not write " + file);
+                }
+                store(path, file, metadata);
+                evict();
+                return file;
+            });
+        });
+    }
+
+    @Nullable
+    @WorkerThread
+    private Entry read(String path) {
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_DOCUMENTS,
+                new String[] { LocalDatabase.COLUMN_FILENAME, LocalDatabase.COLUMN_MD5,
+                        LocalDatabase.COLUMN_GENERATION, LocalDatabase.COLUMN_VALIDATED },
+                LocalDatabase.COLUMN_PATH + " = ?", new String[] { path }, null, null, null);
+        try {
+            if(cursor.moveToFirst()) {
+                File file = new File(mDirectory, cursor.getString(0));
+                if(file.exists()) {
+                    return new Entry(path, file, cursor.getString(1), cursor.getString(2), cursor.getLong(3));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return null;
+    }
+
+    @WorkerThread
+    private void store(String path, File file, StorageMetadata metadata) {
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_PATH, path);
+        values.put(LocalDatabase.COLUMN_FILENAME, file.getName());
+        values.put(LocalDatabase.COLUMN_MD5, metadata.getMd5Hash());
+        values.put(LocalDatabase.COLUMN_GENERATION, metadata.getGeneration());
+        values.put(LocalDatabase.COLUMN_SIZE, file.length());
+        values.put(LocalDatabase.COLUMN_VALIDATED, now);
+        values.put(LocalDatabase.COLUMN_LAST_ACCESS, now);
+        mDatabase.getWritableDatabase().insertWithOnConflict(LocalDatabase.TABLE_DOCUMENTS, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Remove the least recently opened documents until the cache fits in its size cap
+     */
+    @WorkerThread
+    private void evict() {
+        long maxSize;
+        synchronized (this) {
+            maxSize = mMaxSize;
+        }
+
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        Cursor cursor = db.query(LocalDatabase.TABLE_DOCUMENTS,
+                new String[] { LocalDatabase.COLUMN_PATH, LocalDatabase.COLUMN_FILENAME, LocalDatabase.COLUMN_SIZE },
+                null, null, null, null, LocalDatabase.COLUMN_LAST_ACCESS + " DESC");
+        try {
+            long total = 0;
+            while (cursor.moveToNext()) {
+                total += cursor.getLong(2);
+                if(total > maxSize && cursor.getPosition() > 0) {
+                    new File(mDirectory, cursor.getString(1)).delete();
+                    db.delete(LocalDatabase.TABLE_DOCUMENTS, LocalDatabase.COLUMN_PATH + " = ?",
+                            new String[] { cursor.getString(0) });
+                    total -= cursor.getLong(2);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @WorkerThread
+    private static void removeLegacyTempFiles(File cacheDir) {
+        File[] files = cacheDir.listFiles((dir, name) -> name.startsWith(LEGACY_TEMP_PREFIX));
+        if(files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static String hash(String path) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(path.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            Timber.e(e, "DocumentCache:hash");
+            return String.valueOf(path.hashCode());
+        }
+    }
+
+    /**
+     * Cached document
+     */
+    private static class Entry {
+        final String path;
+        final File file;
+        final String md5;
+        final String generation;
+        final long validated;
+
+        Entry(String path, File file, String md5, String generation, long validated) {
+            this.path = path;
+            this.file = file;
+            this.md5 = md5;
+            this.generation = generation;
+            this.validated = validated;
+        }
+
+        boolean matches(StorageMetadata metadata) {
+            if(generation != null && metadata.getGeneration() != null) {
+                return generation.equals(metadata.getGeneration());
+            }
+            return md5 != null && md5.equals(metadata.getMd5Hash());
+        }
+    }
+}
@@ -5,17 +5,13 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
-
-import java.io.File;
-import java.io.IOException;
-
 import nl.kimplusdelta.gereedschap.MyApplication;
 import nl.kimplusdelta.gereedschap.R;
+import nl.kimplusdelta.gereedschap.storage.DocumentCache;
+import timber.log.Timber;
 
 /**
- * Download the document from the backend and start an intent to handle the file
+ * Get the document from the DocumentCache (which downloads it when needed) and start an intent to handle the file
  */
 public class DocumentPreview extends AppCompatActivity {
 
@@ -31,24 +27,17 @@ public class DocumentPreview extends AppCompatActivity {
         if(item != null) {
             setTitle(item);
 
-            try {
-                final File localFile = File.createTempFile("gereedschap-app", null, this.getExternalCacheDir());
-                final String companyID = ((MyApplication) getApplication()).companyID;
-
-                FirebaseStorage storage = FirebaseStorage.getInstance();
-                StorageReference storageRef = storage.getReferenceFromUrl("gs://gereedschap-app.appspot.com/");
-                StorageReference pathReference = storageRef.child(companyID + "/" + item);
-                pathReference.getFile(localFile).addOnSuccessListener(taskSnapshot -> {
-                    mCloseOnResume = true;
-
-                    Intent intent = new Intent(Intent.ACTION_VIEW);
-                    intent.setDataAndType(Uri.fromFile(localFile), "application/pdf");
-                    intent.setFlags(Intent.FLAG_ACTIVITY_NO_HISTORY);
-                    startActivity(Intent.createChooser(intent, "open PDF"));
-                });
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            final String companyID = ((MyApplication) getApplication()).companyID;
+            DocumentCache.getInstance(this).open(companyID, item)
+                    .addOnSuccessListener(this, localFile -> {
+                        mCloseOnResume = true;
+
+                        Intent intent = new Intent(Intent.ACTION_VIEW);
+                        intent.setDataAndType(Uri.fromFile(localFile), "application/pdf");
+                        intent.setFlags(Intent.FLAG_ACTIVITY_NO_HISTORY);
+                        startActivity(Intent.createChooser(intent, "open PDF"));
+                    })
+                    .addOnFailureListener(this, e -> Timber.w(e, "openDocument %s", item));
         }
     }
 
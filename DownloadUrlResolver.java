@@ -0,0 +1,302 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.LruCache;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageReference;
+
+import java.io.FileNotFoundException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import nl.kimplusdelta.gereedschap.storage.LocalDatabase;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+
+/**
+ * Resolves Firebase Storage download URLs with a limited number of requests in flight.
+ * Resolved URLs are kept in memory and in the LocalDatabase per companyID/filename, so reopening
+ * a grid does not need any network calls. Files that don't exist (e.g. missing photo variants)
+ * are remembered as well, for a shorter time.
+ * All methods must be called from the main thread, where the Firebase callbacks arrive.
+ */
+public class DownloadUrlResolver {
+
+    /**
+     * Request priorities, higher is resolved first
+     */
+    public static final int PRIORITY_DEFAULT = 0;
+    public static final int PRIORITY_VISIBLE = 10;
+
+    /**
+     * Maximum number of getDownloadUrl calls in flight
+     */
+    private static final int MAX_IN_FLIGHT = 4;
+
+    /**
+     * How long a resolved URL or a missing file is trusted
+     */
+    private static final long URL_EXPIRY = TimeUnit.DAYS.toMillis(7);
+    private static final long MISSING_EXPIRY = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Stored as URL for files that do not exist
+     */
+    private static final String MISSING = "";
+
+    private static DownloadUrlResolver sInstance;
+
+    private final LocalDatabase mDatabase;
+    private final StorageReference mStorageRef;
+
+    /**
+     * Resolved URLs, keyed by companyID/filename
+     */
+    private final LruCache<String, String> mResolved = new LruCache<>(1024);
+
+    /**
+     * Requests that wait for, or are busy with, a network call
+     */
+    private final Map<String, Request> mPending = new HashMap<>();
+    private final PriorityQueue<Request> mQueue = new PriorityQueue<>();
+
+    private int mInFlight;
+    private long mSequence;
+
+    public static synchronized DownloadUrlResolver getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new DownloadUrlResolver(LocalDatabase.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private DownloadUrlResolver(LocalDatabase database) {
+        mDatabase = database;
+        mStorageRef = FirebaseStorage.getInstance().getReferenceFromUrl("gs://gereedschap-app.appspot.com/");
+    }
+
+    /**
+     * Resolve the download URL from memory, disk or Firebase Storage
+     * @param companyID users company
+     * @param filename storage filename
+     * @param priority PRIORITY_DEFAULT or PRIORITY_VISIBLE
+     * @return task with the download URL, fails with a FileNotFoundException when the file does not exist
+     */
+    @MainThread
+    public Task<Uri> resolve(final String companyID, final String filename, final int priority) {
+        final String key = companyID + "/" + filename;
+        String cached = mResolved.get(key);
+        if(cached != null) {
+            return toTask(cached, key);
+        }
+
+        Request request = mPending.get(key);
+        if(request != null) {
+            setPriority(request, priority);
+            return request.source.getTask();
+        }
+
+        final Request newRequest = new Request(key, priority, mSequence++);
+        mPending.put(key, newRequest);
+
+        Tasks.call(AppExecutors.disk(), () -> read(companyID, filename)).addOnCompleteListener(task -> {
+            String stored = task.isSuccessful() ? task.getResult() : null;
+            if(stored != null) {
+                mResolved.put(key, stored);
+                finish(newRequest, stored);
+            } else {
+                mQueue.add(newRequest);
+                pump();
+            }
+        });
+        return newRequest.source.getTask();
+    }
+
+    /**
+     * Move a waiting request forward or back in the queue, e.g. when its grid cell scrolls into view
+     * @param companyID users company
+     * @param filename storage filename
+     * @param priority PRIORITY_DEFAULT or PRIORITY_VISIBLE
+     */
+    @MainThread
+    public void setPriority(String companyID, String filename, int priority) {
+        Request request = mPending.get(companyID + "/" + filename);
+        if(request != null) {
+            setPriority(request, priority);
+        }
+    }
+
+    /**
+     * Forget the URL of a removed file
+     * @param companyID users company
+     * @param filename storage filename
+     */
+    @MainThread
+    public void invalidate(final String companyID, final String filename) {
+        mResolved.remove(companyID + "/" + filename);
+        AppExecutors.disk().execute(() -> mDatabase.getWritableDatabase().delete(LocalDatabase.TABLE_URLS,
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_FILENAME + " = ?",
+                new String[] { companyID, filename }));
+    }
+
+    /**
+     * Load the stored URLs of the company into memory, so the first grid doesn't wait on the disk
+     * @param companyID users company
+     */
+    @MainThread
+    public void warmUp(final String companyID) {
+        Tasks.call(AppExecutors.disk(), () -> readAll(companyID)).addOnSuccessListener(urls -> {
+            for (Map.Entry<String, String> url : urls.entrySet()) {
+                if(mResolved.get(url.getKey()) == null) {
+                    mResolved.put(url.getKey(), url.getValue());
+                }
+            }
+        });
+    }
+
+    private void setPriority(Request request, int priority) {
+        if(request.priority != priority) {
+            boolean queued = mQueue.remove(request);
+            request.priority = priority;
+            if(queued) {
+                mQueue.add(request);
+            }
+        }
+    }
+
+    /**
+     * Start queued requests until MAX_IN_FLIGHT is reached
+     */
+    private void pump() {
+        while (mInFlight < MAX_IN_FLIGHT && !mQueue.isEmpty()) {
+            final Request request = mQueue.poll();
+            mInFlight++;
+
+            mStorageRef.child(request.key).getDownloadUrl().addOnCompleteListener(task -> {
+                mInFlight--;
+
+                if(task.isSuccessful()) {
+                    store(request.key, task.getResult().toString(), URL_EXPIRY);
+                    finish(request, task.getResult().toString());
+                } else if(isNotFound(task.getException())) {
+                    store(request.key, MISSING, MISSING_EXPIRY);
+                    finish(request, MISSING);
+                } else {
+                    mPending.remove(request.key);
+                    request.source.setException(task.getException());
+                }
+
+                pump();
+            });
+        }
+    }
+
+    private void finish(Request request, String url) {
+        mPending.remove(request.key);
+        if(MISSING.equals(url)) {
+            request.source.setException(new FileNotFoundException(request.key));
+        } else {
+            request.source.setResult(Uri.parse(url));
+        }
+    }
+
+    private void store(final String key, final String url, long expiry) {
+        mResolved.put(key, url);
+
+        final int split = key.indexOf('/');
+        final ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_COMPANY, key.substring(0, split));
+        values.put(LocalDatabase.COLUMN_FILENAME, key.substring(split + 1));
+        values.put(LocalDatabase.COLUMN_URL, url);
+        values.put(LocalDatabase.COLUMN_EXPIRES, System.currentTimeMillis() + expiry);
+
+        AppExecutors.disk().execute(() -> mDatabase.getWritableDatabase().insertWithOnConflict(
+                LocalDatabase.TABLE_URLS, null, values, SQLiteDatabase.CONFLICT_REPLACE));
+    }
+
+    @Nullable
+    @WorkerThread
+    private String read(String companyID, String filename) {
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_URLS,
+                new String[] { LocalDatabase.COLUMN_URL },
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_FILENAME + " = ? AND "
+                        + LocalDatabase.COLUMN_EXPIRES + " > ?",
+                new String[] { companyID, filename, String.valueOf(System.currentTimeMillis()) },
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the unexpired URLs of the company keyed by companyID/filename, at most the size of the memory cache
+     */
+    @WorkerThread
+    private Map<String, String> readAll(String companyID) {
+        Map<String, String> urls = new HashMap<>();
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_URLS,
+                new String[] { LocalDatabase.COLUMN_FILENAME, LocalDatabase.COLUMN_URL },
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_EXPIRES + " > ?",
+                new String[] { companyID, String.valueOf(System.currentTimeMillis()) },
+                null, null, LocalDatabase.COLUMN_EXPIRES + " DESC", String.valueOf(mResolved.maxSize()));
+        try {
+            while (cursor.moveToNext()) {
+                urls.put(companyID + "/" + cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return urls;
+    }
+
+    private static Task<Uri> toTask(String url, String key) {
+        if(MISSING.equals(url)) {
+            return Tasks.forException(new FileNotFoundException(key));
+        }
+        return Tasks.forResult(Uri.parse(url));
+    }
+
+    private static boolean isNotFound(Exception e) {
+        return e instanceof StorageException
+                && ((StorageException) e).getErrorCode() == StorageException.ERROR_OBJECT_NOT_FOUND;
+    }
+
+    /**
+     * Queued URL request, ordered by priority and then by age
+     */
+    private static class Request implements Comparable<Request> {
+        final String key;
+        final long sequence;
+        final TaskCompletionSource<Uri> source = new TaskCompletionSource<>();
+        int priority;
+
+        Request(String key, int priority, long sequence) {
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if(priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.WorkerThread;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ServerValue;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import nl.kimplusdelta.gereedschap.storage.LocalDatabase;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+import timber.log.Timber;
+
+/**
+ * Write-ahead queue for item edits, so saving never waits for the network.
+ * The edit is applied to the local item right away (by the caller, through the ItemRepository) and kept in
+ * the LocalDatabase, one row per field. The ItemStore applies the queued edits to every item it gets
+ * from Firebase, so a sync doesn't undo them.
+ *
+ * Once connected the queued edits are replayed per item, reading and writing only the changed fields.
+ * Every field write also stores the time of the edit in items/{companyID}/{itemID}/fieldTimes/{field},
+ * in the same multi-path update.
+ * A field that someone else changed after our edit keeps their value (last writer wins); a field
+ * that was changed before our edit gets ours. Both cases are kept as a Conflict for the user to review.
+ *
+ * An item whose edits can't be written is retried with an exponential backoff, without holding up the
+ * edits of other items. After FAILING_ATTEMPTS the listeners are told, the edits stay queued.
+ */
+public class EditQueue {
+
+    /**
+     * Callback for screens that show an item
+     */
+    public interface Listener {
+        /**
+         * The edits of the item failed FAILING_ATTEMPTS times or more, they are retried later
+         */
+        void onEditsFailing(String companyID, String itemID, Exception e);
+    }
+
+    /**
+     * A field that was changed by someone else while our edit was queued
+     */
+    public static class Conflict {
+        public final String field;
+        public final String localValue;
+        public final String remoteValue;
+
+        /**
+         * True when our value was written, false when the other value was kept
+         */
+        public final boolean keptLocal;
+
+        Conflict(String field, String localValue, String remoteValue, boolean keptLocal) {
+            this.field = field;
+            this.localValue = localValue;
+            this.remoteValue = remoteValue;
+            this.keptLocal = keptLocal;
+        }
+    }
+
+    /**
+     * Number of items that are replayed at the same time
+     */
+    private static final int BATCH_ITEMS = 20;
+
+    /**
+     * Failed attempts after which the edits of an item count as failing
+     */
+    public static final int FAILING_ATTEMPTS = 3;
+
+    private static final long BASE_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * Child of an item with the time of the last edit per field
+     */
+    private static final String FIELD_TIMES = "fieldTimes";
+
+    private static EditQueue sInstance;
+
+    private final Context mContext;
+    private final LocalDatabase mDatabase;
+    private final DatabaseReference mRootRef;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    private boolean mStarted;
+    private boolean mConnected;
+    private long mServerOffset;
+    private boolean mReplaying;
+    private boolean mReplayAgain;
+
+    private final Runnable mReplayRunnable = this::replay;
+
+    public static synchronized EditQueue getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new EditQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private EditQueue(Context context) {
+        mContext = context;
+        mDatabase = LocalDatabase.getInstance(context);
+        mRootRef = FirebaseDatabase.getInstance().getReference();
+    }
+
+    /**
+     * Replay the queue every time the connection comes back, including the edits of a previous session
+     */
+    @MainThread
+    public void start() {
+        if(mStarted) {
+            return;
+        }
+        mStarted = true;
+
+        mRootRef.child(".info/serverTimeOffset").addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                Double offset = dataSnapshot.getValue(Double.class);
+                mServerOffset = offset != null ? offset.longValue() : 0;
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                Timber.w(databaseError.toException(), "EditQueue:serverTimeOffset");
+            }
+        });
+
+        mRootRef.child(".info/connected").addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                Boolean connected = dataSnapshot.getValue(Boolean.class);
+                mConnected = connected != null && connected;
+                if(mConnected) {
+                    replay();
+                }
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                Timber.w(databaseError.toException(), "EditQueue:connected");
+            }
+        });
+    }
+
+    @MainThread
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    @MainThread
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Queue changed fields of an item
+     * @param companyID users company
+     * @param itemID item ID
+     * @param values new value per database key
+     * @param bases value per database key before the user changed it
+     * @return task that completes once the edit is stored on disk
+     */
+    @MainThread
+    public Task<Void> enqueue(final String companyID, final String itemID,
+                              final Map<String, String> values, final Map<String, String> bases) {
+        // estimate of the server time of the edit, to compare it with the edits of other devices
+        final long edited = System.currentTimeMillis() + mServerOffset;
+        return Tasks.call(AppExecutors.disk(), () -> {
+            insert(companyID, itemID, values, bases, edited);
+            return (Void) null;
+        }).addOnSuccessListener(ignored -> replay());
+    }
+
+    /**
+     * @param companyID users company
+     * @param itemID item ID
+     * @return task with the conflicts of the item that the user has not seen yet
+     */
+    public Task<List<Conflict>> conflicts(final String companyID, final String itemID) {
+        return Tasks.call(AppExecutors.disk(), () -> readConflicts(companyID, itemID));
+    }
+
+    /**
+     * @param companyID users company
+     * @param itemID item ID
+     * @return task with true when the queued edits of the item failed FAILING_ATTEMPTS times or more
+     */
+    public Task<Boolean> isFailing(final String companyID, final String itemID) {
+        return Tasks.call(AppExecutors.disk(), () -> readAttempts(companyID, itemID) >= FAILING_ATTEMPTS);
+    }
+
+    /**
+     * The user has seen the conflicts of the item
+     * @param companyID users company
+     * @param itemID item ID
+     */
+    public void clearConflicts(final String companyID, final String itemID) {
+        AppExecutors.disk().execute(() -> mDatabase.getWritableDatabase().delete(LocalDatabase.TABLE_CONFLICTS,
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_ITEM_ID + " = ?",
+                new String[] { companyID, itemID }));
+    }
+
+    /**
+     * Write the items that are due, and keep going until none are left.
+     * Then schedule the next wake up for the items that are waiting for a retry.
+     */
+    @MainThread
+    private void replay() {
+        if(!mConnected) {
+            return;
+        }
+        if(mReplaying) {
+            mReplayAgain = true;
+            return;
+        }
+        mReplaying = true;
+        mReplayAgain = false;
+        mHandler.removeCallbacks(mReplayRunnable);
+
+        final long now = System.currentTimeMillis();
+        Tasks.call(AppExecutors.disk(), () -> readBatch(BATCH_ITEMS, now)).continueWithTask(task -> {
+            if(!task.isSuccessful()) {
+                return Tasks.<Boolean>forException(task.getException());
+            }
+            if(task.getResult().isEmpty()) {
+                return Tasks.forResult(false);
+            }
+
+            List<Task<Void>> writes = new ArrayList<>();
+            for (final List<Edit> edits : task.getResult().values()) {
+                writes.add(write(edits).continueWithTask(written -> written.isSuccessful()
+                        ? Tasks.<Void>forResult(null) : retryLater(edits, written.getException())));
+            }
+            return Tasks.whenAllComplete(writes).continueWith(ignored -> true);
+        }).addOnCompleteListener(task -> {
+            mReplaying = false;
+            if(!task.isSuccessful()) {
+                // tried again on the next connect or edit
+                Timber.w(task.getException(), "EditQueue:replay");
+                return;
+            }
+            if(task.getResult() || mReplayAgain) {
+                replay();
+            } else {
+                scheduleReplay();
+            }
+        });
+    }
+
+    @MainThread
+    private void scheduleReplay() {
+        Tasks.call(AppExecutors.disk(), this::readNextAttempt).addOnSuccessListener(next -> {
+            if(next > 0) {
+                mHandler.removeCallbacks(mReplayRunnable);
+                mHandler.postDelayed(mReplayRunnable, Math.max(0, next - System.currentTimeMillis()));
+            }
+        });
+    }
+
+    /**
+     * Decide per field and write the edits of one item. Only the changed fields are read and written:
+     * one read per field of its value and its edit time, then a single multi-path update with the
+     * fields that we win, their times and ItemSync.UPDATED_AT.
+     * @param edits queued edits of the item
+     * @return task that completes once the edits are written and removed from the queue
+     */
+    @MainThread
+    private Task<Void> write(final List<Edit> edits) {
+        final Edit first = edits.get(0);
+        final DatabaseReference itemRef = mRootRef.child("items").child(first.companyID).child(first.itemID);
+
+        // a single child tells whether the item still exists, without downloading it
+        final Task<DataSnapshot> exists = DatabaseTasks.get(itemRef.orderByKey().limitToFirst(1));
+        final List<Task<DataSnapshot>> values = new ArrayList<>(edits.size());
+        final List<Task<DataSnapshot>> times = new ArrayList<>(edits.size());
+        List<Task<DataSnapshot>> reads = new ArrayList<>(edits.size() * 2 + 1);
+        reads.add(exists);
+        for (Edit edit : edits) {
+            values.add(DatabaseTasks.get(itemRef.child(edit.field)));
+            times.add(DatabaseTasks.get(itemRef.child(FIELD_TIMES).child(edit.field)));
+        }
+        reads.addAll(values);
+        reads.addAll(times);
+
+        final List<Conflict> conflicts = new ArrayList<>();
+        final List<Edit> conflictEdits = new ArrayList<>();
+        return Tasks.whenAll(reads).continueWithTask(task -> {
+            if(!task.isSuccessful()) {
+                return Tasks.<Void>forException(task.getException());
+            }
+            if(!exists.getResult().exists()) {
+                // an update would bring back a partial item
+                Timber.w("EditQueue: %s was deleted, dropping its edits", first.itemID);
+                return Tasks.<Void>forResult(null);
+            }
+
+            Map<String, Object> update = new HashMap<>();
+            for (int i = 0; i < edits.size(); i++) {
+                Edit edit = edits.get(i);
+                Object remoteObject = values.get(i).getResult().getValue();
+                String remote = remoteObject == null ? "" : String.valueOf(remoteObject);
+                Long remoteTime = times.get(i).getResult().getValue(Long.class);
+                boolean changedRemotely = !remote.equals(normalize(edit.base)) && !remote.equals(normalize(edit.value));
+
+                if(changedRemotely && remoteTime != null && remoteTime > edit.edited) {
+                    conflicts.add(new Conflict(edit.field, edit.value, remote, false));
+                    conflictEdits.add(edit);
+                    continue;
+                }
+
+                update.put(edit.field, edit.value);
+                update.put(FIELD_TIMES + "/" + edit.field, edit.edited);
+                if(changedRemotely) {
+                    conflicts.add(new Conflict(edit.field, edit.value, remote, true));
+                    conflictEdits.add(edit);
+                }
+            }
+            if(update.isEmpty()) {
+                return Tasks.<Void>forResult(null);
+            }
+            update.put(ItemSync.UPDATED_AT, ServerValue.TIMESTAMP);
+            return itemRef.updateChildren(update);
+        }).continueWithTask(task -> {
+            if(!task.isSuccessful()) {
+                return Tasks.<Void>forException(task.getException());
+            }
+            return Tasks.call(AppExecutors.disk(), () -> {
+                replayed(edits, conflictEdits, conflicts);
+                return (Void) null;
+            }).addOnSuccessListener(ignored -> {
+                for (Conflict conflict : conflicts) {
+                    if(!conflict.keptLocal) {
+                        // the value of the other device was kept, get it into the local store
+                        ItemLookup.refresh(mContext, first.companyID, first.itemID);
+                        break;
+                    }
+                }
+            });
+        });
+    }
+
+    /**
+     * Keep the edits of the item for later, with an exponential backoff
+     * @return task that completes once the retry is stored
+     */
+    @MainThread
+    private Task<Void> retryLater(final List<Edit> edits, final Exception e) {
+        final Edit first = edits.get(0);
+        int attempts = 0;
+        for (Edit edit : edits) {
+            attempts = Math.max(attempts, edit.attempts);
+        }
+        final int failed = attempts + 1;
+        long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(failed - 1, 16));
+        final long nextAttempt = System.currentTimeMillis() + backoff / 2 + (long) (mRandom.nextDouble() * backoff / 2);
+        Timber.w(e, "EditQueue:write %s, attempt %d", first.itemID, failed);
+
+        return Tasks.call(AppExecutors.disk(), () -> {
+            updateRetry(first.companyID, first.itemID, failed, nextAttempt);
+            return (Void) null;
+        }).addOnSuccessListener(ignored -> {
+            if(failed >= FAILING_ATTEMPTS) {
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onEditsFailing(first.companyID, first.itemID, e);
+                }
+            }
+        });
+    }
+
+    @WorkerThread
+    private void insert(String companyID, String itemID, Map<String, String> values, Map<String, String> bases, long edited) {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                // the first queued edit of a field keeps its base, later edits only change the value
+                ContentValues insert = new ContentValues();
+                insert.put(LocalDatabase.COLUMN_COMPANY, companyID);
+                insert.put(LocalDatabase.COLUMN_ITEM_ID, itemID);
+                insert.put(LocalDatabase.COLUMN_FIELD, value.getKey());
+                insert.put(LocalDatabase.COLUMN_VALUE, value.getValue());
+                insert.put(LocalDatabase.COLUMN_BASE, bases.get(value.getKey()));
+                insert.put(LocalDatabase.COLUMN_EDITED, edited);
+                db.insertWithOnConflict(LocalDatabase.TABLE_EDITS, null, insert, SQLiteDatabase.CONFLICT_IGNORE);
+
+                ContentValues update = new ContentValues();
+                update.put(LocalDatabase.COLUMN_VALUE, value.getValue());
+                update.put(LocalDatabase.COLUMN_EDITED, edited);
+                db.update(LocalDatabase.TABLE_EDITS, update,
+                        LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_ITEM_ID + " = ? AND "
+                                + LocalDatabase.COLUMN_FIELD + " = ?",
+                        new String[] { companyID, itemID, value.getKey() });
+            }
+            // the user saved again, try right away
+            updateRetry(companyID, itemID, 0, 0);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @WorkerThread
+    private void updateRetry(String companyID, String itemID, int attempts, long nextAttempt) {
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_ATTEMPTS, attempts);
+        values.put(LocalDatabase.COLUMN_NEXT_ATTEMPT, nextAttempt);
+        mDatabase.getWritableDatabase().update(LocalDatabase.TABLE_EDITS, values,
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_ITEM_ID + " = ?",
+                new String[] { companyID, itemID });
+    }
+
+    /**
+     * @param maxItems maximum number of items in the batch
+     * @param now current time, items that wait for a retry are left out
+     * @return queued edits per item, oldest items first
+     */
+    @WorkerThread
+    private Map<String, List<Edit>> readBatch(int maxItems, long now) {
+        Map<String, List<Edit>> batch = new LinkedHashMap<>();
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_EDITS, null,
+                LocalDatabase.COLUMN_NEXT_ATTEMPT + " <= ?", new String[] { String.valueOf(now) },
+                null, null, LocalDatabase.COLUMN_ID);
+        try {
+            while (cursor.moveToNext()) {
+                Edit edit = new Edit(cursor);
+                String key = edit.companyID + "/" + edit.itemID;
+                List<Edit> edits = batch.get(key);
+                if(edits == null) {
+                    if(batch.size() >= maxItems) {
+                        continue;
+                    }
+                    edits = new ArrayList<>();
+                    batch.put(key, edits);
+                }
+                edits.add(edit);
+            }
+        } finally {
+            cursor.close();
+        }
+        return batch;
+    }
+
+    /**
+     * @return the earliest retry of an item, 0 when no item is waiting
+     */
+    @WorkerThread
+    private long readNextAttempt() {
+        Cursor cursor = mDatabase.getReadableDatabase().rawQuery("SELECT MIN(" + LocalDatabase.COLUMN_NEXT_ATTEMPT
+                + ") FROM " + LocalDatabase.TABLE_EDITS + " WHERE " + LocalDatabase.COLUMN_NEXT_ATTEMPT + " > 0", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @WorkerThread
+    private int readAttempts(String companyID, String itemID) {
+        Cursor cursor = mDatabase.getReadableDatabase().rawQuery("SELECT MAX(" + LocalDatabase.COLUMN_ATTEMPTS
+                + ") FROM " + LocalDatabase.TABLE_EDITS + " WHERE " + LocalDatabase.COLUMN_COMPANY + " = ? AND "
+                + LocalDatabase.COLUMN_ITEM_ID + " = ?", new String[] { companyID, itemID });
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Remove the written edits from the queue, unless the field was edited again in the meantime,
+     * and keep the conflicts for review
+     */
+    @WorkerThread
+    private void replayed(List<Edit> edits, List<Edit> conflictEdits, List<Conflict> conflicts) {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Edit edit : edits) {
+                db.delete(LocalDatabase.TABLE_EDITS,
+                        LocalDatabase.COLUMN_ID + " = ? AND " + LocalDatabase.COLUMN_EDITED + " = ?",
+                        new String[] { String.valueOf(edit.id), String.valueOf(edit.edited) });
+            }
+
+            for (int i = 0; i < conflicts.size(); i++) {
+                Edit edit = conflictEdits.get(i);
+                Conflict conflict = conflicts.get(i);
+                Timber.i("EditQueue: conflict on %s/%s, kept %s", edit.itemID, edit.field,
+                        conflict.keptLocal ? "local" : "remote");
+
+                ContentValues values = new ContentValues();
+                values.put(LocalDatabase.COLUMN_COMPANY, edit.companyID);
+                values.put(LocalDatabase.COLUMN_ITEM_ID, edit.itemID);
+                values.put(LocalDatabase.COLUMN_FIELD, conflict.field);
+                values.put(LocalDatabase.COLUMN_VALUE, conflict.localValue);
+                values.put(LocalDatabase.COLUMN_REMOTE_VALUE, conflict.remoteValue);
+                values.put(LocalDatabase.COLUMN_KEPT_LOCAL, conflict.keptLocal ? 1 : 0);
+                values.put(LocalDatabase.COLUMN_EDITED, edit.edited);
+                db.insert(LocalDatabase.TABLE_CONFLICTS, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @WorkerThread
+    private List<Conflict> readConflicts(String companyID, String itemID) {
+        List<Conflict> conflicts = new ArrayList<>();
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_CONFLICTS,
+                new String[] { LocalDatabase.COLUMN_FIELD, LocalDatabase.COLUMN_VALUE,
+                        LocalDatabase.COLUMN_REMOTE_VALUE, LocalDatabase.COLUMN_KEPT_LOCAL },
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_ITEM_ID + " = ?",
+                new String[] { companyID, itemID }, null, null, LocalDatabase.COLUMN_ID);
+        try {
+            while (cursor.moveToNext()) {
+                conflicts.add(new Conflict(cursor.getString(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getInt(3) != 0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return conflicts;
+    }
+
+    /**
+     * An empty field and a missing field are the same to the user
+     */
+    private static String normalize(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * In-memory copy of a queued edit
+     */
+    private static class Edit {
+        final long id;
+        final String companyID;
+        final String itemID;
+        final String field;
+        final String value;
+        final String base;
+        final long edited;
+        final int attempts;
+
+        Edit(Cursor cursor) {
+            id = cursor.getLong(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_ID));
+            companyID = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_COMPANY));
+            itemID = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_ITEM_ID));
+            field = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_FIELD));
+            value = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_VALUE));
+            base = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_BASE));
+            edited = cursor.getLong(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_EDITED));
+            attempts = cursor.getInt(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_ATTEMPTS));
+        }
+    }
+}
@@ -2,37 +2,32 @@ package nl.kimplusdelta.gereedschap.activity;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.provider.MediaStore;
-import android.provider.OpenableColumns;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.FileProvider;
 import android.support.v7.app.AppCompatActivity;
-import android.view.ContextMenu;
+import android.support.v7.view.ActionMode;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
 import android.widget.Button;
-import android.widget.GridView;
 import android.widget.Toast;
 
-import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageMetadata;
-import com.google.firebase.storage.StorageReference;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import butterknife.BindView;
@@ -41,10 +36,17 @@ import butterknife.OnClick;
 import nl.kimplusdelta.gereedschap.BuildConfig;
 import nl.kimplusdelta.gereedschap.MyApplication;
 import nl.kimplusdelta.gereedschap.R;
-import nl.kimplusdelta.gereedschap.adapter.ImageAdapter;
+import nl.kimplusdelta.gereedschap.adapter.GridAdapter;
+import nl.kimplusdelta.gereedschap.firebase.DeleteQueue;
+import nl.kimplusdelta.gereedschap.firebase.DownloadUrlResolver;
+import nl.kimplusdelta.gereedschap.firebase.ImportBatch;
 import nl.kimplusdelta.gereedschap.firebase.InstrumentItem;
+import nl.kimplusdelta.gereedschap.firebase.ItemFileList;
+import nl.kimplusdelta.gereedschap.firebase.ItemRepository;
+import nl.kimplusdelta.gereedschap.firebase.UploadQueue;
 import nl.kimplusdelta.gereedschap.utils.CameraUtils;
-import nl.kimplusdelta.gereedschap.utils.ImageResizeHelper;
+import nl.kimplusdelta.gereedschap.utils.ImageVariants;
+import timber.log.Timber;
 
 /**
  * Simple grid which shows either the DOCS or the PICS from Firebase.
@@ -54,12 +56,16 @@ import nl.kimplusdelta.gereedschap.utils.ImageResizeHelper;
 public class GridActivity extends AppCompatActivity {
 
     /**
-     * Intent data
+     * Intent data. The item itself is resolved from the ItemRepository.
      */
-    public static final String KEY_DATA = "data";
     public static final String KEY_TYPE = "type";
     public static final String KEY_ID = "ID";
 
+    /**
+     * Saved state: the file the camera writes the new photo to
+     */
+    private static final String KEY_MEDIA_URI = "mediaUri";
+
     /**
      * static fields to check if which data we should present.
      */
@@ -67,10 +73,15 @@ public class GridActivity extends AppCompatActivity {
     public static final String TYPE_DOCS = "attachments";
 
     /**
-     * Dynamic menu for removing data
+     * Selection menu for removing data
      */
     private static final int MENU_REMOVE = Menu.FIRST;
 
+    /**
+     * Minimum width of a grid cell in dp
+     */
+    private static final int COLUMN_WIDTH = 120;
+
     /**
      * Flags for catching the results from intents
      */
@@ -84,9 +95,9 @@ public class GridActivity extends AppCompatActivity {
     private static final int TAKE_PHOTO_REQUEST = 0;
 
     /**
-     * GridView which present the DOCS or PICS
+     * Grid which presents the DOCS or PICS
      */
-    @BindView(R.id.gridView) GridView mGridView;
+    @BindView(R.id.gridView) RecyclerView mGridView;
 
     /**
      * Add new pictures. The add button only accepts PICS so it will be hidden when
@@ -100,9 +111,20 @@ public class GridActivity extends AppCompatActivity {
     @BindView(R.id.addExistingButton) Button mExistingButton;
 
     /**
-     * Adapter for handling the GridView
+     * Adapter for handling the grid
      */
-    private ImageAdapter mAdapter;
+    private GridAdapter mAdapter;
+
+    /**
+     * Layout of the grid, used to find the visible cells
+     */
+    private GridLayoutManager mLayoutManager;
+
+    /**
+     * Cells that have PRIORITY_VISIBLE in the URL resolver, so scrolling only updates the cells that enter or leave
+     */
+    private int mPriorityFirst = RecyclerView.NO_POSITION;
+    private int mPriorityLast = RecyclerView.NO_POSITION;
 
     /**
      * Data type: DOCS or PICS
@@ -115,9 +137,19 @@ public class GridActivity extends AppCompatActivity {
     private String mItemID;
 
     /**
-     * Storage Field for downloading/uploading data
+     * The item from the ItemRepository
+     */
+    private InstrumentItem mItem;
+
+    /**
+     * Resolves and caches the download URLs of the photos
+     */
+    private DownloadUrlResolver mUrlResolver;
+
+    /**
+     * Uploads new files in the background
      */
-    private StorageReference mStorageRef;
+    private UploadQueue mUploadQueue;
 
     /**
      * List with all the grid data
@@ -130,9 +162,14 @@ public class GridActivity extends AppCompatActivity {
     private Uri mMediaUri;
 
     /**
-     * Index used for context menu
+     * Shown while cells are selected, null otherwise
+     */
+    private ActionMode mActionMode;
+
+    /**
+     * Imports into this grid that are not finished yet
      */
-    private int mSelectedIndex;
+    private final List<ImportBatch> mImports = new ArrayList<>();
 
     /**
      * Load the view. Set the variables and flag the activity as DOCS or PICS.
@@ -144,16 +181,26 @@ public class GridActivity extends AppCompatActivity {
         setContentView(R.layout.activity_grid);
         ButterKnife.bind(this);
 
+        // the camera often runs while we are recreated
+        if(savedInstanceState != null) {
+            mMediaUri = savedInstanceState.getParcelable(KEY_MEDIA_URI);
+        }
+
         if (getSupportActionBar() != null) {
             getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         }
 
-        FirebaseStorage storage = FirebaseStorage.getInstance();
-        mStorageRef = storage.getReferenceFromUrl("gs://gereedschap-app.appspot.com/");
+        mUrlResolver = DownloadUrlResolver.getInstance(this);
+        mUploadQueue = UploadQueue.getInstance(this);
 
         mItemID = getIntent().getExtras().getString(KEY_ID);
         mType = getIntent().getExtras().getString(KEY_TYPE);
-        mAdapter = new ImageAdapter(this, mType);
+        mAdapter = new GridAdapter(this, mType);
+        mAdapter.setListener(gridListener);
+        float widthDp = getResources().getDisplayMetrics().widthPixels / getResources().getDisplayMetrics().density;
+        mLayoutManager = new GridLayoutManager(this, Math.max(2, (int) (widthDp / COLUMN_WIDTH)));
+        mGridView.setLayoutManager(mLayoutManager);
+        mGridView.setHasFixedSize(true);
         mGridView.setAdapter(mAdapter);
 
         // not allowed to alter
@@ -161,86 +208,191 @@ public class GridActivity extends AppCompatActivity {
             mAddButton.setVisibility(View.GONE);
             mExistingButton.setVisibility(View.GONE);
         } else {
-            registerForContextMenu(mGridView);
-        }
-
-        String[] data = getIntent().getExtras().getStringArray(KEY_DATA);
-        if(data != null) {
-            mData = new ArrayList<>(Arrays.asList(data));
+            mAdapter.setSelectable(true);
         }
 
         if(mType != null) {
             if (mType.equals(TYPE_PHOTO)) {
                 setTitle(InstrumentItem.S_PICTURES);
-                handlePhotos();
             } else {
                 setTitle(InstrumentItem.S_DOCUMENTS);
-                handleDocs();
-
                 mExistingButton.setVisibility(View.GONE);
             }
         }
 
-        mGridView.setOnItemClickListener((adapterView, view, i, l) -> {
-            if(mType.equals(TYPE_PHOTO)) {
-                Intent intent = new Intent(GridActivity.this, ImagePreview.class);
-                intent.putExtra(ImagePreview.KEY_POSITION, i);
-                intent.putExtra(ImagePreview.KEY_IMAGES, mAdapter.getItems());
-                startActivityForResult(intent, RESULT_REMOVE_IMG);
+        mData = new ArrayList<>();
+        final String companyID = ((MyApplication) getApplication()).companyID;
+        ItemRepository.getInstance(this).get(companyID, mItemID).addOnCompleteListener(this, task -> {
+            mItem = task.isSuccessful() ? task.getResult() : null;
+            if(mItem == null || mType == null) {
+                finish();
+                return;
+            }
+
+            // work on the item's own list, so the other screens see the changes
+            List<String> data = mType.equals(TYPE_PHOTO) ? mItem.getPictures() : mItem.getAttachments();
+            if(data == null) {
+                data = new ArrayList<>();
+                if(mType.equals(TYPE_PHOTO)) {
+                    mItem.setPictures(data);
+                } else {
+                    mItem.setAttachments(data);
+                }
+            }
+            // a concurrent remove can briefly leave a hole in the list
+            data.removeAll(Collections.singleton((String) null));
+            mData = data;
+
+            if (mType.equals(TYPE_PHOTO)) {
+                handlePhotos();
             } else {
-                Intent intent = new Intent(GridActivity.this, DocumentPreview.class);
-                intent.putExtra(DocumentPreview.KEY_DOC, mAdapter.getItem(i));
-                startActivity(intent);
+                handleDocs();
             }
         });
+
+        mUploadQueue.addListener(uploadListener);
+        mUploadQueue.start();
+
+        // imports that were started before a configuration change
+        for (ImportBatch batch : ImportBatch.running(mItemID, mType)) {
+            batch.setListener(importListener);
+            mImports.add(batch);
+        }
+        showImportProgress();
     }
 
-    /**
-     * Context menu (Long Press Grid Item) for removing data
-     * @param menu
-     * @param v
-     * @param menuInfo
-     */
     @Override
-    public void onCreateContextMenu(ContextMenu menu, View v, ContextMenu.ContextMenuInfo menuInfo) {
-        super.onCreateContextMenu(menu, v, menuInfo);
-        menu.add(0, MENU_REMOVE, 0, R.string.remove_item);
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(KEY_MEDIA_URI, mMediaUri);
+    }
 
-        // Get the list item position
-        AdapterView.AdapterContextMenuInfo info = (AdapterView.AdapterContextMenuInfo)menuInfo;
-        mSelectedIndex = info.position;
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mUploadQueue.removeListener(uploadListener);
+        // the imports go on without us
+        for (ImportBatch batch : mImports) {
+            batch.setListener(null);
+        }
+        // recycles the holders, which gives their bitmaps back to the pipeline
+        mGridView.setAdapter(null);
     }
 
     /**
-     * Context menu callback
-     * @param item
-     * @return
+     * Open the preview of a cell. A long press starts selecting cells, while selecting a click (de)selects.
      */
-    @Override
-    public boolean onContextItemSelected(MenuItem item) {
-        if(item.getItemId() == MENU_REMOVE) {
-            removeFile();
-            return true;
+    private final GridAdapter.Listener gridListener = new GridAdapter.Listener() {
+        @Override
+        public void onCellClicked(int position) {
+            if(mActionMode != null) {
+                toggleSelected(position);
+            } else if(mType.equals(TYPE_PHOTO)) {
+                Intent intent = new Intent(GridActivity.this, ImagePreview.class);
+                intent.putExtra(ImagePreview.KEY_POSITION, position);
+                intent.putStringArrayListExtra(ImagePreview.KEY_IMAGES, mAdapter.getUrls());
+                intent.putStringArrayListExtra(ImagePreview.KEY_FILES, new ArrayList<>(mData));
+                startActivityForResult(intent, RESULT_REMOVE_IMG);
+            } else {
+                Intent intent = new Intent(GridActivity.this, DocumentPreview.class);
+                intent.putExtra(DocumentPreview.KEY_DOC, mAdapter.getFile(position));
+                startActivity(intent);
+            }
         }
-        return false;
-    }
+
+        @Override
+        public void onCellLongClicked(int position) {
+            if(mActionMode == null) {
+                mActionMode = startSupportActionMode(selectionCallback);
+            }
+            toggleSelected(position);
+        }
+    };
 
     /**
-     * Remove the file from our GridView, Firebase Database and Firebase Storage
+     * Selection mode (Long Press Grid Item) for removing data
      */
-    private void removeFile() {
-        String selectedData = mData.get(mSelectedIndex);
-        mData.remove(selectedData);
+    private final ActionMode.Callback selectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            menu.add(0, MENU_REMOVE, 0, R.string.remove_item).setIcon(R.drawable.ic_delete)
+                    .setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            if(item.getItemId() == MENU_REMOVE) {
+                removeFiles(mAdapter.getSelected());
+                mode.finish();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            mActionMode = null;
+            mAdapter.clearSelection();
+        }
+    };
 
-        mAdapter.removeItem(mSelectedIndex);
-        mAdapter.notifyDataSetChanged();
+    private void toggleSelected(int position) {
+        mAdapter.toggleSelected(position);
+        int count = mAdapter.getSelectedCount();
+        if(count == 0) {
+            mActionMode.finish();
+        } else {
+            mActionMode.setTitle(String.valueOf(count));
+        }
+    }
 
-        saveEdits();
+    /**
+     * Remove the files from our grid, Firebase Database and Firebase Storage.
+     * Every file is removed from the list on its own child, see ItemFileList.
+     * Only once that is committed are the ContentIndex references released by the DeleteQueue:
+     * a file is shared by every item with the same content, so it is only deleted from storage
+     * when no references are left. When the list can't be written the files come back in the grid.
+     * @param files storage filenames
+     */
+    private void removeFiles(List<String> files) {
+        final List<String> removed = new ArrayList<>(files);
+        removed.retainAll(mData);
+        if(removed.isEmpty()) {
+            return;
+        }
+        mData.removeAll(removed);
+        mAdapter.submit(mData);
 
-        // remove from storage
         final String companyID = ((MyApplication) getApplication()).companyID;
-        final String path = companyID + "/" + selectedData;
-        mStorageRef.child(path).delete();
+        final ItemRepository repository = ItemRepository.getInstance(this);
+        repository.update(companyID, mItemID, mItem);
+
+        final DeleteQueue deleteQueue = DeleteQueue.getInstance(this);
+        final boolean photo = mType.equals(TYPE_PHOTO);
+        new ItemFileList(companyID, mItemID, mType).removeAll(removed).addOnCompleteListener(task -> {
+            if(task.isSuccessful()) {
+                deleteQueue.release(companyID, task.getResult(), photo);
+                return;
+            }
+
+            Timber.w(task.getException(), "removeFiles");
+            for (String filename : removed) {
+                if(!mData.contains(filename)) {
+                    mData.add(filename);
+                }
+            }
+            repository.update(companyID, mItemID, mItem);
+            if(!isFinishing()) {
+                mAdapter.submit(mData);
+                Toast.makeText(this, R.string.remove_failed, Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
     /**
@@ -256,47 +408,54 @@ public class GridActivity extends AppCompatActivity {
 
         if(resultCode == Activity.RESULT_OK) {
             if(requestCode == RESULT_NEW_IMG) {
-                Uri uri = mMediaUri;
                 if(mType.equals(TYPE_PHOTO)) {
-                    File file;
+                    File output;
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                        Uri outputPath = CameraUtils.getOutputMediaFileUri(this, getString(R.string.app_name));
-                        file = new ImageResizeHelper(mMediaUri).resizeFromContent(this, outputPath.getPath());
+                        output = new File(CameraUtils.getOutputMediaFileUri(this, getString(R.string.app_name)).getPath());
                     } else {
-                        file = new ImageResizeHelper(mMediaUri).resize();
-                    }
-
-                    if(file != null) {
-                        uri = Uri.fromFile(file);
+                        output = new File(mMediaUri.getPath());
                     }
+                    importCapture(mMediaUri, output);
+                } else {
+                    scanAndAdd(mMediaUri);
                 }
-                Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-                mediaScanIntent.setData(uri);
-                this.sendBroadcast(mediaScanIntent);
-                addItem(uri);
             } else if(requestCode == RESULT_EXISTING_IMG) {
-                Uri uri = data.getData();
-                if(mType.equals(TYPE_PHOTO)) {
-                    mMediaUri = CameraUtils.getOutputMediaFileUri(this, getString(R.string.app_name));
-                    File file = new ImageResizeHelper(data.getData()).resizeFromGallery(this, mMediaUri.getPath());
-                    if(file != null) {
-                        uri = Uri.fromFile(file);
-                    }
-                }
-                Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-                mediaScanIntent.setData(uri);
-                this.sendBroadcast(mediaScanIntent);
-                addItem(uri);
+                importFiles(selectedUris(data), true);
             } else if(requestCode == RESULT_REMOVE_IMG) {
-                int id = data.getIntExtra("id" , -1);
-                if(id != -1) {
-                    mSelectedIndex = id;
-                    removeFile();
+                List<String> removed = data.getStringArrayListExtra(ImagePreview.KEY_REMOVED);
+                if(removed != null) {
+                    removeFiles(removed);
                 }
             }
         }
     }
 
+    /**
+     * Import the photo from the camera. The ImportBatch resizes it into the output and uploads it,
+     * it keeps going when this screen is recreated or closed.
+     * @param source photo from the camera
+     * @param output file for the resized photo
+     */
+    private void importCapture(Uri source, File output) {
+        final String companyID = ((MyApplication) getApplication()).companyID;
+        ImportBatch batch = ImportBatch.capture(this, companyID, mItemID, source, output);
+        batch.setListener(importListener);
+        mImports.add(batch);
+        batch.start();
+        showImportProgress();
+    }
+
+    /**
+     * Let the media scanner know about the file and add it to the item
+     * @param uri of the local item
+     */
+    private void scanAndAdd(Uri uri) {
+        Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
+        mediaScanIntent.setData(uri);
+        this.sendBroadcast(mediaScanIntent);
+        addItem(uri);
+    }
+
     /**
      * Callback when in need for permissions. We use the Camera permission for taking pictures
      * @param requestCode
@@ -326,52 +485,108 @@ public class GridActivity extends AppCompatActivity {
     }
 
     /**
-     * Add an item by Uri. Generate an unique ID for each item added to Firebase.
-     * Custom Metadata will help us keep the name once the filename is hashed.
-     * Upload the item to Firebase Storage.
+     * Add an item by Uri. The photo from the camera is kept at a fixed quality, the ImportBatch
+     * resizes the copy it uploads within the budget of the network.
      * @param uri of the local item
      */
     private void addItem(Uri uri) {
-        if(uri == null) {
-            return;
+        if(uri != null) {
+            importFiles(Collections.singletonList(uri), true);
+        }
+    }
+
+    /**
+     * @param data result of the chooser, with a single Uri or ClipData for several files
+     * @return the chosen files
+     */
+    private static List<Uri> selectedUris(Intent data) {
+        List<Uri> uris = new ArrayList<>();
+        ClipData clipData = data.getClipData();
+        if(clipData != null) {
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                Uri uri = clipData.getItemAt(i).getUri();
+                if(uri != null) {
+                    uris.add(uri);
+                }
+            }
+        } else if(data.getData() != null) {
+            uris.add(data.getData());
         }
+        return uris;
+    }
 
-        StorageMetadata metadata = new StorageMetadata.Builder()
-                .setContentType(getContentResolver().getType(uri))
-                .setCustomMetadata("filename", getFileNameFromUri(uri))
-                .build();
+    /**
+     * Import the files as one batch. Photos are resized and get a small and a screen sized variant,
+     * which the UploadQueue uploads in the background, also when the user leaves this screen.
+     * The item list in the database is updated once the whole batch is uploaded.
+     * @param uris local files
+     * @param resize true to resize the photos first
+     */
+    private void importFiles(List<Uri> uris, boolean resize) {
+        if(uris.isEmpty()) {
+            return;
+        }
 
         final String companyID = ((MyApplication) getApplication()).companyID;
-        final String filename = generateGUID();
-        final String path = companyID + "/" + filename;
-
-        mStorageRef.child(path).putFile(uri, metadata).addOnSuccessListener(taskSnapshot -> {
-            mData.add(filename);
+        ImportBatch batch = new ImportBatch(this, companyID, mItemID, mType, uris, resize);
+        batch.setListener(importListener);
+        mImports.add(batch);
+        batch.start();
+        showImportProgress();
+    }
 
-            if(mType.equals(TYPE_DOCS)) {
-                mAdapter.addItem(filename);
-                mAdapter.notifyDataSetChanged();
-            } else {
-                mAdapter.addItem(null);
-                mAdapter.notifyDataSetChanged();
+    private final ImportBatch.Listener importListener = new ImportBatch.Listener() {
+        @Override
+        public void onImportProgress(ImportBatch batch) {
+            showImportProgress();
+        }
 
-                downloadPhoto(mAdapter.getCount() - 1, companyID);
+        @Override
+        public void onImportFinished(ImportBatch batch) {
+            mImports.remove(batch);
+            if(batch.getFailed() > 0) {
+                Toast.makeText(GridActivity.this, getString(R.string.import_failed,
+                        batch.getFailed(), batch.getTotal()), Toast.LENGTH_LONG).show();
             }
+            showImportProgress();
+        }
+    };
 
-            saveEdits();
-        });
+    /**
+     * Show the progress of the running imports as subtitle, e.g. Uploading 3/12
+     */
+    private void showImportProgress() {
+        if(getSupportActionBar() == null) {
+            return;
+        }
+
+        int uploaded = 0;
+        int total = 0;
+        for (ImportBatch batch : mImports) {
+            uploaded += batch.getUploaded() + batch.getFailed();
+            total += batch.getTotal();
+        }
+        getSupportActionBar().setSubtitle(total > 0 ? getString(R.string.import_progress, uploaded, total) : null);
     }
 
     /**
-     * Update the changes of the current item in the Firebase database
+     * Show a file once the UploadQueue added it to this item
      */
-    private void saveEdits() {
-        FirebaseDatabase.getInstance().getReference("items")
-                .child(((MyApplication)getApplication()).companyID)
-                .child(mItemID)
-                .child(mType)
-                .setValue(mData);
-    }
+    private final UploadQueue.Listener uploadListener = (companyID, itemID, type, filename) -> {
+        if(!itemID.equals(mItemID) || !type.equals(mType) || mData.contains(filename)) {
+            return;
+        }
+
+        mData.add(filename);
+        if(mItem != null) {
+            ItemRepository.getInstance(this).update(companyID, mItemID, mItem);
+        }
+
+        mAdapter.submit(mData);
+        if(mType.equals(TYPE_PHOTO)) {
+            downloadPhoto(mData.size() - 1, companyID);
+        }
+    };
 
     @OnClick(R.id.addNewButton)
     public void onAddItemClicked() {
@@ -442,6 +657,7 @@ public class GridActivity extends AppCompatActivity {
         }
 
         intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         startActivityForResult(Intent.createChooser(intent, getString(R.string.add_existing_item_chooser_title)), RESULT_EXISTING_IMG);
     }
 
@@ -450,11 +666,7 @@ public class GridActivity extends AppCompatActivity {
      */
     private void handleDocs() {
         if(mData != null) {
-            // add placeholder items
-            for (String item : mData) {
-                mAdapter.addItem(item);
-            }
-            mAdapter.notifyDataSetChanged();
+            mAdapter.submit(mData);
         }
     }
 
@@ -463,69 +675,68 @@ public class GridActivity extends AppCompatActivity {
      */
     private void handlePhotos() {
         if(mData != null) {
-            // add placeholder items
-            for (String ignored : mData) {
-                mAdapter.addItem(null);
-            }
-            mAdapter.notifyDataSetChanged();
+            // cells show a placeholder until their URL comes in
+            mAdapter.submit(mData);
 
             String companyID = ((MyApplication) getApplication()).companyID;
             for (int i = 0; i < mData.size(); i++) {
                 downloadPhoto(i, companyID);
             }
-        }
-    }
+            int first = mLayoutManager.findFirstVisibleItemPosition();
+            mPriorityFirst = Math.max(0, first);
+            mPriorityLast = first == RecyclerView.NO_POSITION
+                    ? mLayoutManager.getSpanCount() * 4 : mLayoutManager.findLastVisibleItemPosition();
 
-    /**
-     * Download the image from firebase and replace the placeholder item in the adapter with the picture
-     * @param index of the placeholder in the adapter
-     * @param companyID users company for download reference
-     */
-    private void downloadPhoto(final int index, String companyID) {
-        StorageReference pathReference = mStorageRef.child(companyID + "/" + mData.get(index));
-        pathReference.getDownloadUrl().addOnSuccessListener(uri -> mAdapter.replaceItem(index, uri.toString()));
+            mGridView.addOnScrollListener(gridOnScrollListener);
+        }
     }
 
     /**
-     * @return Random generated file name
+     * Let the URL resolver handle the cells that are on screen first
      */
-    private String generateGUID() {
-        return randomGUIDString() + randomGUIDString() + '-' + randomGUIDString() + '-' + randomGUIDString() + '-' +
-                randomGUIDString() + '-' + randomGUIDString() + randomGUIDString() + randomGUIDString();
-    }
-
-    private String randomGUIDString() {
-        return formatDoubles(Math.floor((1 + Math.random()) * 0x10000))
-                .substring(1);
-    }
+    private final RecyclerView.OnScrollListener gridOnScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            int first = mLayoutManager.findFirstVisibleItemPosition();
+            int last = mLayoutManager.findLastVisibleItemPosition();
+            if(first == mPriorityFirst && last == mPriorityLast) {
+                return;
+            }
 
-    /**
-     * Helper to read the actual file name from an Uri using the contentResolver
-     * @param contentUri file Uri
-     * @return actual Filename
-     */
-    private String getFileNameFromUri(Uri contentUri) {
-        Cursor cursor = null;
-        try {
-            cursor = getContentResolver().query(contentUri, null, null, null, null);
-            if(cursor != null) {
-                int column_index = cursor.getColumnIndexOrThrow(OpenableColumns.DISPLAY_NAME);
-                cursor.moveToFirst();
-                return cursor.getString(column_index);
+            String companyID = ((MyApplication) getApplication()).companyID;
+            for (int i = Math.max(0, mPriorityFirst); i <= mPriorityLast && i < mData.size(); i++) {
+                if(i < first || i > last) {
+                    setPriority(companyID, i, DownloadUrlResolver.PRIORITY_DEFAULT);
+                }
             }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+            for (int i = Math.max(0, first); i <= last && i < mData.size(); i++) {
+                if(i < mPriorityFirst || i > mPriorityLast) {
+                    setPriority(companyID, i, DownloadUrlResolver.PRIORITY_VISIBLE);
+                }
             }
+            mPriorityFirst = first;
+            mPriorityLast = last;
         }
-        return null;
+    };
+
+    private void setPriority(String companyID, int index, int priority) {
+        mUrlResolver.setPriority(companyID, ImageVariants.name(mData.get(index), ImageVariants.SMALL), priority);
     }
 
-    private String formatDoubles(double d) {
-        if(d == (long) d)
-            return String.format("%d",(long)d);
-        else
-            return String.format("%s",d);
+    /**
+     * Get the thumbnail URL from firebase and replace the placeholder item in the adapter with the picture
+     * @param index of the placeholder in the adapter
+     * @param companyID users company for download reference
+     */
+    private void downloadPhoto(final int index, String companyID) {
+        // before the first layout nothing is visible yet, the first screen is the best guess
+        int first = mLayoutManager.findFirstVisibleItemPosition();
+        int last = first == RecyclerView.NO_POSITION ? mLayoutManager.getSpanCount() * 4 : mLayoutManager.findLastVisibleItemPosition();
+        int priority = index >= first && index <= last
+                ? DownloadUrlResolver.PRIORITY_VISIBLE : DownloadUrlResolver.PRIORITY_DEFAULT;
+        final String file = mData.get(index);
+        ImageVariants.getDownloadUrl(mUrlResolver, companyID, file, ImageVariants.SMALL, priority)
+                .addOnSuccessListener(this, uri -> mAdapter.setUrl(file, uri.toString()));
     }
 
     @Override
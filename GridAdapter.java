@@ -0,0 +1,404 @@
+package nl.kimplusdelta.gereedschap.adapter;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.TypedValue;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nl.kimplusdelta.gereedschap.activity.GridActivity;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+import nl.kimplusdelta.gereedschap.utils.BitmapPipeline;
+import nl.kimplusdelta.gereedschap.utils.ImageVariants;
+
+/**
+ * RecyclerView replacement of the ImageAdapter in the GridActivity.
+ * Cells are keyed by their storage filename, which is also their stable ID:
+ * - a new list of files is diffed on the worker executor, so adding or removing a file only touches those cells
+ * - a thumbnail URL that comes in replaces the placeholder of exactly one cell
+ * - selected files are dimmed, the selection follows the files through new lists
+ */
+public class GridAdapter extends RecyclerView.Adapter<GridAdapter.ViewHolder> {
+
+    /**
+     * Payload for a cell of which only the thumbnail changed
+     */
+    private static final Object PAYLOAD_URL = new Object();
+
+    /**
+     * Payload for a cell of which only the selection changed
+     */
+    private static final Object PAYLOAD_SELECTION = new Object();
+
+    private static final float SELECTED_ALPHA = 0.4f;
+
+    private static final int PLACEHOLDER_COLOR = Color.LTGRAY;
+
+    public interface Listener {
+        /**
+         * @param position of the cell that was clicked
+         */
+        void onCellClicked(int position);
+
+        /**
+         * Only called when the cells are selectable
+         * @param position of the cell that was long pressed
+         */
+        void onCellLongClicked(int position);
+    }
+
+    private final Context mContext;
+    private final String mType;
+    private final BitmapPipeline mPipeline;
+
+    /**
+     * Storage filenames in grid order
+     */
+    private List<String> mFiles = Collections.emptyList();
+
+    /**
+     * Thumbnail URL per filename, cells without one show a placeholder
+     */
+    private final Map<String, String> mUrls = new HashMap<>();
+
+    /**
+     * Stable ID per filename, handed out in order of appearance
+     */
+    private final Map<String, Long> mIds = new HashMap<>();
+
+    /**
+     * Incremented for every submitted list, so a diff that finishes late is dropped
+     */
+    private int mGeneration;
+
+    /**
+     * Selected storage filenames
+     */
+    private final Set<String> mSelected = new HashSet<>();
+
+    private Listener mListener;
+    private boolean mSelectable;
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView image;
+        final TextView text;
+        BitmapPipeline.Image shown;
+        String url;
+
+        ViewHolder(View itemView, ImageView image, TextView text) {
+            super(itemView);
+            this.image = image;
+            this.text = text;
+        }
+    }
+
+    /**
+     * @param context activity context
+     * @param type GridActivity.TYPE_PHOTO or GridActivity.TYPE_DOCS
+     */
+    public GridAdapter(Context context, String type) {
+        mContext = context;
+        mType = type;
+        mPipeline = BitmapPipeline.getInstance(context);
+        setHasStableIds(true);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param selectable true when a long press on a cell is passed on to the listener
+     */
+    public void setSelectable(boolean selectable) {
+        mSelectable = selectable;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Show a new list of files. The list is copied, the diff is computed off the main thread.
+     * @param files storage filenames in grid order
+     */
+    @MainThread
+    public void submit(List<String> files) {
+        final List<String> oldFiles = mFiles;
+        final List<String> newFiles = new ArrayList<>(files);
+        final int generation = ++mGeneration;
+        for (String file : newFiles) {
+            stableId(file);
+        }
+
+        Tasks.call(AppExecutors.worker(), () -> DiffUtil.calculateDiff(new DiffCallback(oldFiles, newFiles)))
+                .addOnSuccessListener(diff -> {
+                    if(generation != mGeneration) {
+                        return;
+                    }
+                    mFiles = newFiles;
+                    mSelected.retainAll(newFiles);
+                    diff.dispatchUpdatesTo(this);
+                });
+    }
+
+    /**
+     * Replace the placeholder of a file with its thumbnail
+     * @param file storage filename
+     * @param url thumbnail download URL
+     */
+    @MainThread
+    public void setUrl(String file, String url) {
+        if(url.equals(mUrls.put(file, url))) {
+            return;
+        }
+
+        int position = mFiles.indexOf(file);
+        if(position != -1) {
+            notifyItemChanged(position, PAYLOAD_URL);
+        }
+    }
+
+    /**
+     * @param position of the cell
+     * @return storage filename of the cell
+     */
+    public String getFile(int position) {
+        return mFiles.get(position);
+    }
+
+    /**
+     * Select or deselect a cell
+     * @param position of the cell
+     * @return true when the cell is selected now
+     */
+    @MainThread
+    public boolean toggleSelected(int position) {
+        String file = mFiles.get(position);
+        boolean selected = mSelected.add(file);
+        if(!selected) {
+            mSelected.remove(file);
+        }
+        notifyItemChanged(position, PAYLOAD_SELECTION);
+        return selected;
+    }
+
+    /**
+     * @return selected storage filenames in grid order
+     */
+    public List<String> getSelected() {
+        List<String> selected = new ArrayList<>(mSelected.size());
+        for (String file : mFiles) {
+            if(mSelected.contains(file)) {
+                selected.add(file);
+            }
+        }
+        return selected;
+    }
+
+    public int getSelectedCount() {
+        return mSelected.size();
+    }
+
+    @MainThread
+    public void clearSelection() {
+        if(mSelected.isEmpty()) {
+            return;
+        }
+        mSelected.clear();
+        notifyItemRangeChanged(0, mFiles.size(), PAYLOAD_SELECTION);
+    }
+
+    /**
+     * @return thumbnail URLs in grid order, null for files without one
+     */
+    public ArrayList<String> getUrls() {
+        ArrayList<String> urls = new ArrayList<>(mFiles.size());
+        for (String file : mFiles) {
+            urls.add(mUrls.get(file));
+        }
+        return urls;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mFiles.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return stableId(mFiles.get(position));
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        // square cells
+        RecyclerView.LayoutManager layoutManager = ((RecyclerView) parent).getLayoutManager();
+        int width = parent.getWidth() > 0 && layoutManager instanceof GridLayoutManager
+                ? parent.getWidth() / ((GridLayoutManager) layoutManager).getSpanCount()
+                : ViewGroup.LayoutParams.WRAP_CONTENT;
+        int padding = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 2, mContext.getResources().getDisplayMetrics());
+
+        final ViewHolder holder;
+        if(GridActivity.TYPE_PHOTO.equals(mType)) {
+            ImageView image = new ImageView(mContext);
+            image.setScaleType(ImageView.ScaleType.CENTER_CROP);
+            image.setLayoutParams(new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, width));
+            image.setPadding(padding, padding, padding, padding);
+            image.setCropToPadding(true);
+            holder = new ViewHolder(image, image, null);
+        } else {
+            TextView text = new TextView(mContext);
+            text.setGravity(Gravity.CENTER);
+            text.setLayoutParams(new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, width));
+            text.setPadding(padding * 4, padding * 4, padding * 4, padding * 4);
+            holder = new ViewHolder(text, null, text);
+        }
+
+        holder.itemView.setOnClickListener(v -> {
+            int position = holder.getAdapterPosition();
+            if(mListener != null && position != RecyclerView.NO_POSITION) {
+                mListener.onCellClicked(position);
+            }
+        });
+        holder.itemView.setOnLongClickListener(v -> {
+            int position = holder.getAdapterPosition();
+            if(!mSelectable || mListener == null || position == RecyclerView.NO_POSITION) {
+                return false;
+            }
+            mListener.onCellLongClicked(position);
+            return true;
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        if(payloads.isEmpty()) {
+            super.onBindViewHolder(holder, position, payloads);
+            return;
+        }
+
+        String file = mFiles.get(position);
+        if(payloads.contains(PAYLOAD_URL) && holder.image != null) {
+            bindImage(holder, mUrls.get(file));
+        }
+        if(payloads.contains(PAYLOAD_SELECTION)) {
+            bindSelection(holder, file);
+        }
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        String file = mFiles.get(position);
+        holder.itemView.setLongClickable(mSelectable);
+        bindSelection(holder, file);
+        if(holder.image != null) {
+            bindImage(holder, mUrls.get(file));
+        } else {
+            holder.text.setText(file);
+        }
+    }
+
+    private void bindSelection(ViewHolder holder, String file) {
+        boolean selected = mSelected.contains(file);
+        holder.itemView.setActivated(selected);
+        holder.itemView.setAlpha(selected ? SELECTED_ALPHA : 1f);
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        if(holder.image != null) {
+            bindImage(holder, null);
+        }
+    }
+
+    /**
+     * Show the thumbnail, or the placeholder when url is null
+     */
+    private void bindImage(final ViewHolder holder, @Nullable final String url) {
+        if(url != null && url.equals(holder.url) && holder.shown != null) {
+            return;
+        }
+
+        // the bitmap may go back to the pool once released, so it has to be off screen first
+        holder.image.setImageDrawable(null);
+        holder.image.setBackgroundColor(PLACEHOLDER_COLOR);
+        if(holder.shown != null) {
+            mPipeline.release(holder.shown);
+            holder.shown = null;
+        }
+        holder.url = url;
+        if(url == null) {
+            return;
+        }
+
+        mPipeline.load(url, ImageVariants.SMALL_SIZE).addOnSuccessListener(image -> {
+            if(!url.equals(holder.url) || holder.shown != null) {
+                return;
+            }
+            holder.shown = image;
+            mPipeline.acquire(image);
+            holder.image.setBackgroundColor(Color.TRANSPARENT);
+            holder.image.setImageBitmap(image.bitmap);
+        });
+    }
+
+    private long stableId(String file) {
+        Long id = mIds.get(file);
+        if(id == null) {
+            id = (long) mIds.size();
+            mIds.put(file, id);
+        }
+        return id;
+    }
+
+    /**
+     * Filenames are unique within a grid, so a file is the same cell and has the same contents
+     * (the thumbnail is updated separately through setUrl)
+     */
+    private static class DiffCallback extends DiffUtil.Callback {
+        private final List<String> mOld;
+        private final List<String> mNew;
+
+        DiffCallback(List<String> oldFiles, List<String> newFiles) {
+            mOld = oldFiles;
+            mNew = newFiles;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOld.get(oldItemPosition).equals(mNew.get(newItemPosition));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+/**
+ * Generates the random file names of uploaded photos and documents.
+ * Plain Java, so it can be benchmarked without a device.
+ */
+public final class GuidGenerator {
+
+    private GuidGenerator() {}
+
+    /**
+     * @return Random generated file name, formatted as xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx
+     */
+    public static String generateGUID() {
+        return randomGUIDString() + randomGUIDString() + '-' + randomGUIDString() + '-' + randomGUIDString() + '-' +
+                randomGUIDString() + '-' + randomGUIDString() + randomGUIDString() + randomGUIDString();
+    }
+
+    /**
+     * @return four random hex characters
+     */
+    public static String randomGUIDString() {
+        return formatDoubles(Math.floor((1 + Math.random()) * 0x10000))
+                .substring(1);
+    }
+
+    /**
+     * @return the double without decimals when it is a whole number
+     */
+    public static String formatDoubles(double d) {
+        if(d == (long) d)
+            return String.format("%d",(long)d);
+        else
+            return String.format("%s",d);
+    }
+}
@@ -0,0 +1,47 @@
+package nl.kimplusdelta.gereedschap.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.kimplusdelta.gereedschap.utils.GuidGenerator;
+
+/**
+ * File name generation, run for every photo or document that is added
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GuidGeneratorBenchmark {
+
+    /**
+     * The values randomGUIDString formats: whole numbers in [0x10000, 0x20000)
+     */
+    private double mWholeNumber = 0x1ABCD;
+    private double mFraction = 0x1ABCD + 0.5;
+
+    @Benchmark
+    public String generateGUID() {
+        return GuidGenerator.generateGUID();
+    }
+
+    @Benchmark
+    public String randomGUIDString() {
+        return GuidGenerator.randomGUIDString();
+    }
+
+    @Benchmark
+    public String formatDoublesWhole() {
+        return GuidGenerator.formatDoubles(mWholeNumber);
+    }
+
+    @Benchmark
+    public String formatDoublesFraction() {
+        return GuidGenerator.formatDoubles(mFraction);
+    }
+}
@@ -0,0 +1,207 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.media.ExifInterface;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import timber.log.Timber;
+
+/**
+ * Encodes the photos and variants we upload. Instead of a fixed quality, the highest quality
+ * that fits the byte budget of the target is searched for, with a quality floor below which
+ * artifacts become visible. The budget is smaller on a metered connection. Callers decide
+ * once per file whether the connection is metered, so all images of a file use the same budget.
+ * Files that stay on the device are not budgeted, they are written at LOCAL_QUALITY.
+ *
+ * The written files carry no EXIF apart from a few tags copied from the source: the rotation
+ * is already applied to the pixels, so the orientation tag is written as normal and location,
+ * maker notes and thumbnails are left out.
+ */
+public final class ImageEncoder {
+
+    /**
+     * Output format and byte budgets of a kind of image
+     */
+    public static final class Target {
+        public final Bitmap.CompressFormat format;
+        public final String contentType;
+        private final int mUnmeteredBytes;
+        private final int mMeteredBytes;
+
+        private Target(Bitmap.CompressFormat format, String contentType, int unmeteredBytes, int meteredBytes) {
+            this.format = format;
+            this.contentType = contentType;
+            mUnmeteredBytes = unmeteredBytes;
+            mMeteredBytes = meteredBytes;
+        }
+
+        /**
+         * @param metered true when uploading on a metered connection
+         * @return byte budget of an encoded image
+         */
+        public int maxBytes(boolean metered) {
+            return metered ? mMeteredBytes : mUnmeteredBytes;
+        }
+    }
+
+    /**
+     * The uploaded photo. It stays a JPEG, because it is also opened by other apps (see "View original").
+     */
+    public static final Target ORIGINAL = new Target(Bitmap.CompressFormat.JPEG, "image/jpeg", 900 * 1024, 300 * 1024);
+
+    /**
+     * The variants are only shown by the app itself, WebP is about a third smaller at the same quality
+     */
+    public static final Target SCREEN = new Target(Bitmap.CompressFormat.WEBP, "image/webp", 250 * 1024, 100 * 1024);
+    public static final Target SMALL = new Target(Bitmap.CompressFormat.WEBP, "image/webp", 30 * 1024, 12 * 1024);
+
+    /**
+     * Quality range of the search. Below MIN_QUALITY artifacts show on the photos of instruments,
+     * so an image that doesn't fit at MIN_QUALITY is written over budget.
+     */
+    private static final int MIN_QUALITY = 45;
+    private static final int MAX_QUALITY = 90;
+
+    /**
+     * Quality of the files we keep on the device, e.g. the camera photo in the gallery
+     */
+    public static final int LOCAL_QUALITY = 90;
+
+    /**
+     * Stop searching once the range is this small, a few quality points don't make a visible difference
+     */
+    private static final int QUALITY_TOLERANCE = 5;
+
+    /**
+     * Tags that are copied from the source photo
+     */
+    private static final String[] KEPT_TAGS = {
+            ExifInterface.TAG_DATETIME_ORIGINAL,
+            ExifInterface.TAG_DATETIME,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL
+    };
+
+    private ImageEncoder() {}
+
+    /**
+     * @param context any context
+     * @return true when the active network is metered, e.g. mobile data
+     */
+    public static boolean isMetered(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connectivityManager != null && ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager);
+    }
+
+    /**
+     * Encode the bitmap at the highest quality that fits the budget of the target
+     * @param bitmap upright image
+     * @param target kind of image
+     * @param metered true when uploading on a metered connection
+     * @param output file to write
+     * @param source EXIF of the source photo, null when there is nothing to keep
+     * @throws IOException when the file could not be written
+     */
+    @WorkerThread
+    public static void encode(Bitmap bitmap, Target target, boolean metered, File output,
+                              @Nullable ExifInterface source) throws IOException {
+        int maxBytes = target.maxBytes(metered);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(maxBytes);
+
+        // most small or plain images fit right away
+        int quality = MAX_QUALITY;
+        byte[] encoded = compress(bitmap, target.format, quality, buffer);
+        if(encoded.length > maxBytes) {
+            byte[] best = null;
+            int bestQuality = MIN_QUALITY;
+            int low = MIN_QUALITY;
+            int high = MAX_QUALITY;
+            while (high - low > QUALITY_TOLERANCE) {
+                int middle = (low + high) / 2;
+                byte[] attempt = compress(bitmap, target.format, middle, buffer);
+                if(attempt.length <= maxBytes) {
+                    best = attempt;
+                    bestQuality = middle;
+                    low = middle;
+                } else {
+                    high = middle;
+                }
+            }
+            if(best == null) {
+                best = compress(bitmap, target.format, MIN_QUALITY, buffer);
+            }
+            encoded = best;
+            quality = bestQuality;
+        }
+
+        write(encoded, target, output, source);
+        Timber.d("ImageEncoder: %dx%d %s q%d %d bytes (budget %d)", bitmap.getWidth(), bitmap.getHeight(),
+                target.contentType, quality, encoded.length, maxBytes);
+    }
+
+    /**
+     * Encode the bitmap at a fixed quality, for a file that is not uploaded
+     * @param bitmap upright image
+     * @param target kind of image
+     * @param quality compression quality, e.g. LOCAL_QUALITY
+     * @param output file to write
+     * @param source EXIF of the source photo, null when there is nothing to keep
+     * @throws IOException when the file could not be written
+     */
+    @WorkerThread
+    public static void encodeAtQuality(Bitmap bitmap, Target target, int quality, File output,
+                                       @Nullable ExifInterface source) throws IOException {
+        byte[] encoded = compress(bitmap, target.format, quality, new ByteArrayOutputStream());
+        write(encoded, target, output, source);
+        Timber.d("ImageEncoder: %dx%d %s q%d %d bytes", bitmap.getWidth(), bitmap.getHeight(),
+                target.contentType, quality, encoded.length);
+    }
+
+    private static void write(byte[] encoded, Target target, File output, @Nullable ExifInterface source)
+            throws IOException {
+        try (OutputStream out = new FileOutputStream(output)) {
+            out.write(encoded);
+        }
+        if(source != null && target.format == Bitmap.CompressFormat.JPEG) {
+            copyExif(source, output);
+        }
+    }
+
+    private static byte[] compress(Bitmap bitmap, Bitmap.CompressFormat format, int quality,
+                                   ByteArrayOutputStream buffer) {
+        buffer.reset();
+        bitmap.compress(format, quality, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Write the kept tags to the JPEG, with a normal orientation since the pixels are already rotated.
+     * The tags are nice to have: when they can't be written the photo is kept without them.
+     */
+    private static void copyExif(ExifInterface source, File output) {
+        try {
+            ExifInterface exif = new ExifInterface(output.getAbsolutePath());
+            for (String tag : KEPT_TAGS) {
+                String value = source.getAttribute(tag);
+                if(value != null) {
+                    exif.setAttribute(tag, value);
+                }
+            }
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_NORMAL));
+            exif.saveAttributes();
+        } catch (IOException e) {
+            Timber.w(e, "ImageEncoder:copyExif %s", output);
+        }
+    }
+}
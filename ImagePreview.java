@@ -8,18 +8,24 @@ import android.support.v7.app.AppCompatActivity;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.TreeSet;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import nl.kimplusdelta.gereedschap.MyApplication;
 import nl.kimplusdelta.gereedschap.R;
-import nl.kimplusdelta.gereedschap.adapter.FullScreenImageAdapter;
+import nl.kimplusdelta.gereedschap.adapter.PreviewPagerAdapter;
+import nl.kimplusdelta.gereedschap.firebase.DownloadUrlResolver;
+import nl.kimplusdelta.gereedschap.utils.ImageVariants;
 
 /**
  * Download the images and show them in a form of a gallery.
- * This class is an presenting view. When a image is removed the activity will
- * return the image data to its parent so the parent can remove the image accordingly.
+ * This class is an presenting view. When images are removed the activity will
+ * return their filenames to its parent so the parent can remove the images accordingly.
+ * Several images can be selected to remove them at once.
  */
 public class ImagePreview extends AppCompatActivity {
 
@@ -28,31 +34,66 @@ public class ImagePreview extends AppCompatActivity {
      */
     public static final String KEY_IMAGES = "KEY_IMAGES";
 
+    /**
+     * KEY: List of the storage filenames, used to load the screen sized variants
+     */
+    public static final String KEY_FILES = "KEY_FILES";
+
     /**
      * KEY: index of the photo that is selected
      */
     public static final String KEY_POSITION = "KEY_POSITION";
 
+    /**
+     * Result KEY: list of the storage filenames to remove
+     */
+    public static final String KEY_REMOVED = "KEY_REMOVED";
+
     /**
      * Dynamic menu item for removing photos if the user has the correct access
      */
     private static final int MENU_REMOVE = Menu.FIRST;
 
+    /**
+     * Menu item for explicitly opening the full resolution original
+     */
+    private static final int MENU_ORIGINAL = Menu.FIRST + 1;
+
+    /**
+     * Menu item for (de)selecting the shown photo
+     */
+    private static final int MENU_SELECT = Menu.FIRST + 2;
+
     /**
      * ViewPager to create a gallery like view
      */
     @BindView(R.id.viewpager) ViewPager mViewPager;
 
+    /**
+     * Pages of the ViewPager, decoded within the BitmapPipeline budget
+     */
+    private PreviewPagerAdapter mAdapter;
+
     /**
      * List of all the image URLs
      */
     private List<String> mImages;
 
+    /**
+     * List of the storage filenames, same order as mImages
+     */
+    private List<String> mFiles;
+
     /**
      * index of the photo that is selected, which photo should be presented first
      */
     private int mPosition;
 
+    /**
+     * Positions of the selected photos
+     */
+    private final TreeSet<Integer> mSelected = new TreeSet<>();
+
     /**
      * Update the title bar to display the shown images index
      */
@@ -66,6 +107,8 @@ public class ImagePreview extends AppCompatActivity {
             if (mViewPager != null) {
                 mViewPager.setCurrentItem(position);
                 setActionBarTitle(position);
+                mAdapter.prefetch(position);
+                supportInvalidateOptionsMenu();
             }
         }
     };
@@ -85,21 +128,52 @@ public class ImagePreview extends AppCompatActivity {
             Bundle extras = intent.getExtras();
             if (extras != null) {
                 mImages = extras.getStringArrayList(KEY_IMAGES);
+                mFiles = extras.getStringArrayList(KEY_FILES);
                 mPosition = extras.getInt(KEY_POSITION);
             }
         }
 
         setUpViewPager();
+        if(mFiles != null && mFiles.size() == mImages.size()) {
+            loadScreenImages();
+        }
+    }
+
+    /**
+     * Replace the grid thumbnails in the pager with the screen sized variants, each page as soon as
+     * its URL is resolved. A photo without a variant (or without any URL) keeps the URL we got from the grid.
+     */
+    private void loadScreenImages() {
+        final String companyID = ((MyApplication) getApplication()).companyID;
+        final DownloadUrlResolver resolver = DownloadUrlResolver.getInstance(this);
+
+        for (int i = 0; i < mFiles.size(); i++) {
+            final int position = i;
+            int priority = Math.abs(i - mPosition) <= 1
+                    ? DownloadUrlResolver.PRIORITY_VISIBLE : DownloadUrlResolver.PRIORITY_DEFAULT;
+            ImageVariants.getDownloadUrl(resolver, companyID, mFiles.get(i), ImageVariants.SCREEN, priority)
+                    .addOnSuccessListener(this, uri -> mAdapter.setImage(position, uri.toString()));
+        }
     }
 
     private void setUpViewPager() {
-        mViewPager.setAdapter(new FullScreenImageAdapter(getApplicationContext(), mImages));
+        mAdapter = new PreviewPagerAdapter(getApplicationContext(), mImages);
+        mViewPager.setAdapter(mAdapter);
         mViewPager.addOnPageChangeListener(viewPagerOnPageChangeListener);
         mViewPager.setCurrentItem(mPosition);
+        mAdapter.prefetch(mPosition);
 
         setActionBarTitle(mPosition);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(mAdapter != null) {
+            mAdapter.release();
+        }
+    }
+
     /**
      * Create a dynamic menu according to the users access-controls.
      * @param menu
@@ -107,16 +181,23 @@ public class ImagePreview extends AppCompatActivity {
      */
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        if(((MyApplication)getApplication()).canUserEdit) {
-            menu.clear();
+        menu.clear();
+        if(((MyApplication)getApplication()).canUserEdit && mFiles != null) {
             menu.add(0, MENU_REMOVE, Menu.NONE, "Remove").setIcon(R.drawable.ic_delete).setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM);
+            menu.add(0, MENU_SELECT, Menu.NONE, "Select").setCheckable(true)
+                    .setChecked(mSelected.contains(mViewPager.getCurrentItem()))
+                    .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        }
+        if(mFiles != null) {
+            menu.add(0, MENU_ORIGINAL, Menu.NONE, "View original").setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
         }
 
         return super.onPrepareOptionsMenu(menu);
     }
 
     /**
-     * return the index of the item to the previous activity so it could get removed
+     * return the filenames of the selected items, or of the shown item when none are selected,
+     * to the previous activity so they could get removed
      * @param item
      * @return
      */
@@ -127,20 +208,55 @@ public class ImagePreview extends AppCompatActivity {
                 finish();
                 return true;
             case MENU_REMOVE:
-                Bundle conData = new Bundle();
-                conData.putInt("id", mViewPager.getCurrentItem());
+                ArrayList<String> removed = new ArrayList<>();
+                for (int position : mSelected.isEmpty()
+                        ? Collections.singleton(mViewPager.getCurrentItem()) : mSelected) {
+                    if(position < mFiles.size()) {
+                        removed.add(mFiles.get(position));
+                    }
+                }
                 Intent intent = new Intent();
-                intent.putExtras(conData);
+                intent.putStringArrayListExtra(KEY_REMOVED, removed);
                 setResult(RESULT_OK, intent);
                 finish();
                 break;
+            case MENU_SELECT:
+                int current = mViewPager.getCurrentItem();
+                if(!mSelected.remove(current)) {
+                    mSelected.add(current);
+                }
+                setActionBarTitle(current);
+                supportInvalidateOptionsMenu();
+                break;
+            case MENU_ORIGINAL:
+                viewOriginal(mViewPager.getCurrentItem());
+                break;
         }
 
         return super.onOptionsItemSelected(item);
     }
 
     /**
-     * Format the actionbar title. e.g. 1/10
+     * Only fetch the full resolution file when the user explicitly asks for it
+     * @param position of the view that is currently shown
+     */
+    private void viewOriginal(int position) {
+        if(mFiles == null || position >= mFiles.size()) {
+            return;
+        }
+
+        final String companyID = ((MyApplication) getApplication()).companyID;
+        DownloadUrlResolver.getInstance(this)
+                .resolve(companyID, mFiles.get(position), DownloadUrlResolver.PRIORITY_VISIBLE)
+                .addOnSuccessListener(this, uri -> {
+                    Intent intent = new Intent(Intent.ACTION_VIEW);
+                    intent.setDataAndType(uri, "image/*");
+                    startActivity(Intent.createChooser(intent, "open original"));
+                });
+    }
+
+    /**
+     * Format the actionbar title. e.g. 1/10, or 1/10 (3 selected)
      * @param position of the view that is currently shown
      */
     private void setActionBarTitle(int position) {
@@ -149,7 +265,11 @@ public class ImagePreview extends AppCompatActivity {
 
             ActionBar actionBar = getSupportActionBar();
             if(actionBar != null){
-                actionBar.setTitle(String.format("%d/%d", (position + 1), totalPages));
+                String title = String.format("%d/%d", (position + 1), totalPages);
+                if(!mSelected.isEmpty()) {
+                    title += String.format(" (%d selected)", mSelected.size());
+                }
+                actionBar.setTitle(title);
             }
         }
     }
@@ -0,0 +1,161 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.media.ExifInterface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import timber.log.Timber;
+
+/**
+ * Replacement for the ImageResizeHelper calls in GridActivity, used by the ImportBatch off the main thread.
+ * The photo is probed for its bounds first and then decoded with a power of two subsample
+ * and density scaling, so the full sensor bitmap is never allocated. Peak memory stays close
+ * to the target size, also for 12-48MP camera output.
+ * The result is written by the ImageEncoder, upright and without the EXIF we don't need:
+ * within the upload budget for the copy we upload, at a fixed quality for a file we keep.
+ */
+public final class ImageResizer {
+
+    /**
+     * Longest side of the resized photo
+     */
+    public static final int MAX_SIZE = 2048;
+
+    private ImageResizer() {}
+
+    /**
+     * Resize a photo we keep on the device on the calling thread, at ImageEncoder.LOCAL_QUALITY
+     * @param context to open the Uri
+     * @param source photo from the camera or the gallery
+     * @param output file to write the JPEG to, may be the same file as the source
+     * @return the output file
+     * @throws IOException when the photo could not be decoded or written
+     */
+    @WorkerThread
+    public static File resizeLocalSync(Context context, Uri source, File output) throws IOException {
+        return resizeSync(context, source, output, null);
+    }
+
+    /**
+     * Resize the copy of a photo we upload on the calling thread, within the ImageEncoder budget
+     * @param context to open the Uri
+     * @param source photo from the camera or the gallery
+     * @param output file to write the JPEG to, must not be a file we keep
+     * @param metered true when uploading on a metered connection
+     * @return the output file
+     * @throws IOException when the photo could not be decoded or written
+     */
+    @WorkerThread
+    public static File resizeSync(Context context, Uri source, File output, boolean metered) throws IOException {
+        return resizeSync(context, source, output, Boolean.valueOf(metered));
+    }
+
+    /**
+     * @param metered whether the upload is metered, null for a file we keep
+     */
+    @WorkerThread
+    private static File resizeSync(Context context, Uri source, File output, @Nullable Boolean metered)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = context.getContentResolver().openInputStream(source)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if(options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + source);
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = ImageVariants.calculateInSampleSize(options.outWidth, options.outHeight, MAX_SIZE);
+
+        // let the decoder scale the last step, instead of scaling a second bitmap afterwards
+        int sampledSize = Math.max(options.outWidth, options.outHeight) / options.inSampleSize;
+        if(sampledSize > MAX_SIZE) {
+            options.inScaled = true;
+            options.inDensity = sampledSize;
+            options.inTargetDensity = MAX_SIZE;
+        }
+
+        Bitmap bitmap;
+        try (InputStream in = context.getContentResolver().openInputStream(source)) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        if(bitmap == null) {
+            throw new IOException("Could not decode " + source);
+        }
+
+        ExifInterface exif = readExif(context, source);
+        bitmap = rotate(bitmap, rotation(exif));
+
+        File temp = new File(output.getPath() + ".tmp");
+        try {
+            if(metered != null) {
+                ImageEncoder.encode(bitmap, ImageEncoder.ORIGINAL, metered, temp, exif);
+            } else {
+                ImageEncoder.encodeAtQuality(bitmap, ImageEncoder.ORIGINAL, ImageEncoder.LOCAL_QUALITY, temp, exif);
+            }
+        } finally {
+            bitmap.recycle();
+        }
+        if(!temp.renameTo(output)) {
+            temp.delete();
+            throw new IOException("Could not write " + output);
+        }
+        return output;
+    }
+
+    /**
+     * @return EXIF of the photo, null when it has none or can't be read
+     */
+    @Nullable
+    private static ExifInterface readExif(Context context, Uri source) {
+        try (InputStream in = context.getContentResolver().openInputStream(source)) {
+            return in != null ? new ExifInterface(in) : null;
+        } catch (IOException e) {
+            Timber.w(e, "readExif");
+            return null;
+        }
+    }
+
+    /**
+     * @return rotation in degrees from the EXIF orientation, 0 when unknown
+     */
+    private static int rotation(@Nullable ExifInterface exif) {
+        if(exif == null) {
+            return 0;
+        }
+        switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    private static Bitmap rotate(Bitmap bitmap, int degrees) {
+        if(degrees == 0) {
+            return bitmap;
+        }
+
+        Matrix matrix = new Matrix();
+        matrix.postRotate(degrees);
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if(rotated != bitmap) {
+            bitmap.recycle();
+        }
+        return rotated;
+    }
+}
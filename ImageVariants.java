@@ -0,0 +1,151 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import com.google.android.gms.tasks.Task;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import nl.kimplusdelta.gereedschap.firebase.DownloadUrlResolver;
+
+/**
+ * Small and screen sized copies of an uploaded photo.
+ * The variants are stored next to the original in Firebase Storage, named after the original
+ * with a suffix. Photos uploaded before the variants existed simply fall back to the original.
+ * Variants are encoded by the ImageEncoder, as WebP within the budget of the network the caller decided on.
+ */
+public final class ImageVariants {
+
+    /**
+     * Variant suffixes
+     */
+    public static final String SMALL = "_small";
+    public static final String SCREEN = "_screen";
+
+    /**
+     * Longest side in pixels of each variant
+     */
+    public static final int SMALL_SIZE = 320;
+    private static final int SCREEN_SIZE = 1280;
+
+    /**
+     * Local files of the generated variants
+     */
+    public final File small;
+    public final File screen;
+
+    /**
+     * Mime type of both variant files
+     */
+    public final String contentType;
+
+    private ImageVariants(File small, File screen, String contentType) {
+        this.small = small;
+        this.screen = screen;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Decode the photo once and write both variants to the output directory
+     * @param context to open the Uri
+     * @param uri photo to scale down
+     * @param outputDir directory for the variant files
+     * @param metered true when uploading on a metered connection
+     * @return the variants or null when the photo could not be decoded
+     * @throws IOException when the photo could not be read or the variants could not be written
+     */
+    @Nullable
+    @WorkerThread
+    public static ImageVariants create(Context context, Uri uri, File outputDir, boolean metered) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if(options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, SCREEN_SIZE);
+        Bitmap decoded;
+        try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+            decoded = BitmapFactory.decodeStream(in, null, options);
+        }
+        if(decoded == null) {
+            return null;
+        }
+
+        Bitmap screen = scale(decoded, SCREEN_SIZE);
+        Bitmap small = scale(screen, SMALL_SIZE);
+        try {
+            File screenFile = File.createTempFile("screen", ".webp", outputDir);
+            File smallFile = File.createTempFile("small", ".webp", outputDir);
+            ImageEncoder.encode(screen, ImageEncoder.SCREEN, metered, screenFile, null);
+            ImageEncoder.encode(small, ImageEncoder.SMALL, metered, smallFile, null);
+            return new ImageVariants(smallFile, screenFile, ImageEncoder.SCREEN.contentType);
+        } finally {
+            if(small != screen) small.recycle();
+            if(screen != decoded) screen.recycle();
+            decoded.recycle();
+        }
+    }
+
+    /**
+     * Largest power of two subsample that keeps the longest side at or above the requested size
+     * @param width source width
+     * @param height source height
+     * @param reqSize requested longest side
+     * @return sample size for BitmapFactory.Options.inSampleSize
+     */
+    public static int calculateInSampleSize(int width, int height, int reqSize) {
+        int longest = Math.max(width, height);
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= reqSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @param filename original storage filename
+     * @param variant SMALL or SCREEN
+     * @return storage filename of the variant
+     */
+    public static String name(String filename, String variant) {
+        return filename + variant;
+    }
+
+    /**
+     * Download URL of a variant, or of the original when the variant does not exist
+     * @param resolver download URL resolver
+     * @param companyID users company
+     * @param filename original storage filename
+     * @param variant SMALL or SCREEN
+     * @param priority DownloadUrlResolver priority
+     * @return task with the download URL
+     */
+    public static Task<Uri> getDownloadUrl(DownloadUrlResolver resolver, String companyID, String filename,
+                                           String variant, int priority) {
+        return resolver.resolve(companyID, name(filename, variant), priority)
+                .continueWithTask(task -> task.isSuccessful() ? task : resolver.resolve(companyID, filename, priority));
+    }
+
+    private static Bitmap scale(Bitmap source, int size) {
+        int longest = Math.max(source.getWidth(), source.getHeight());
+        if(longest <= size) {
+            return source;
+        }
+
+        float factor = size / (float) longest;
+        return Bitmap.createScaledBitmap(source, Math.round(source.getWidth() * factor),
+                Math.round(source.getHeight() * factor), true);
+    }
+}
@@ -0,0 +1,447 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import com.google.android.gms.tasks.Tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import nl.kimplusdelta.gereedschap.activity.GridActivity;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+import nl.kimplusdelta.gereedschap.utils.ImageEncoder;
+import nl.kimplusdelta.gereedschap.utils.ImageResizer;
+import nl.kimplusdelta.gereedschap.utils.ImageVariants;
+import nl.kimplusdelta.gereedschap.utils.UlidGenerator;
+import timber.log.Timber;
+
+/**
+ * Imports several files into the pictures/attachments list of an item as one UploadQueue batch.
+ * The files go through three stages, each with its own bounded concurrency:
+ * - copying: the picked files are copied into the cache one at a time, right after they are picked,
+ *   because the read permission the picker granted doesn't last
+ * - preparing: photos are resized and get their ImageVariants, at most MAX_PREPARING files at a time
+ * - uploading: the UploadQueue uploads its own limited number of files at a time
+ * Copying and preparing run on AppExecutors.imports(), so an import doesn't hold up the screens.
+ * A file is handed to the next stage as soon as it is done, so the stages overlap.
+ * The files are added to the item with a single write once the whole batch is uploaded.
+ *
+ * A batch keeps running when the screen that started it goes away, see running.
+ */
+public class ImportBatch {
+
+    public interface Listener {
+        /**
+         * A file of the batch was prepared, uploaded or failed
+         */
+        void onImportProgress(ImportBatch batch);
+
+        /**
+         * The files of the batch are added to the item
+         */
+        void onImportFinished(ImportBatch batch);
+    }
+
+    /**
+     * Files that are resized at the same time, each one holds a decoded photo in memory.
+     * Less than the threads of AppExecutors.imports(), so there is always one left for copying.
+     */
+    private static final int MAX_PREPARING = 2;
+
+    private static final List<ImportBatch> sRunning = new ArrayList<>();
+
+    private final Context mContext;
+    private final UploadQueue mQueue;
+    private final String mCompanyID;
+    private final String mItemID;
+    private final String mType;
+    private final boolean mResize;
+
+    /**
+     * File to keep a resized copy of the (single) photo in, e.g. the camera photo in the gallery
+     */
+    private File mKeep;
+    private final ArrayDeque<Uri> mPicked;
+    private final ArrayDeque<Picked> mWaiting = new ArrayDeque<>();
+    private final int mTotal;
+
+    private String mBatch;
+    private boolean mCopying;
+    private int mPreparing;
+    private int mQueued;
+    private int mFailed;
+
+    /**
+     * Queued originals that are not uploaded yet, as last reported by the UploadQueue
+     */
+    private int mPending;
+    private boolean mClosed;
+    private boolean mFinished;
+    private Listener mListener;
+
+    /**
+     * @param context any context
+     * @param companyID users company
+     * @param itemID item to add the files to
+     * @param type GridActivity.TYPE_PHOTO or GridActivity.TYPE_DOCS
+     * @param uris local files to import
+     * @param resize true to resize photos first, false when they already are
+     */
+    public ImportBatch(Context context, String companyID, String itemID, String type, List<Uri> uris, boolean resize) {
+        mContext = context.getApplicationContext();
+        mQueue = UploadQueue.getInstance(context);
+        mCompanyID = companyID;
+        mItemID = itemID;
+        mType = type;
+        mResize = resize;
+        mPicked = new ArrayDeque<>(uris);
+        mTotal = uris.size();
+    }
+
+    /**
+     * Import a photo from the camera. The photo is resized into the file we keep at a fixed quality,
+     * the media scanner is told about it, and a copy within the upload budget is uploaded.
+     * @param context any context
+     * @param companyID users company
+     * @param itemID item to add the photo to
+     * @param capture photo the camera wrote
+     * @param output file to keep the resized photo in, may be the capture itself
+     * @return the batch, not started yet
+     */
+    public static ImportBatch capture(Context context, String companyID, String itemID, Uri capture, File output) {
+        ImportBatch batch = new ImportBatch(context, companyID, itemID, GridActivity.TYPE_PHOTO,
+                Collections.singletonList(capture), true);
+        batch.mKeep = output;
+        return batch;
+    }
+
+    /**
+     * @param itemID item ID
+     * @param type GridActivity.TYPE_PHOTO or GridActivity.TYPE_DOCS
+     * @return the batches that are importing into the item's list
+     */
+    @MainThread
+    public static List<ImportBatch> running(String itemID, String type) {
+        List<ImportBatch> running = new ArrayList<>();
+        for (ImportBatch batch : sRunning) {
+            if(batch.mItemID.equals(itemID) && batch.mType.equals(type)) {
+                running.add(batch);
+            }
+        }
+        return running;
+    }
+
+    @MainThread
+    public void start() {
+        mBatch = mQueue.openBatch();
+        mQueue.addBatchListener(batchListener);
+        sRunning.add(this);
+        copyNext();
+    }
+
+    @MainThread
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    public int getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @return files that are uploaded, or that were already stored
+     */
+    public int getUploaded() {
+        return Math.max(0, mQueued - mPending);
+    }
+
+    /**
+     * @return files that could not be read or uploaded
+     */
+    public int getFailed() {
+        return mFailed;
+    }
+
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Copy the next picked file, and hand it to the preparing stage
+     */
+    @MainThread
+    private void copyNext() {
+        final Uri uri = mPicked.poll();
+        if(uri == null) {
+            mCopying = false;
+            pump();
+            return;
+        }
+
+        mCopying = true;
+        Tasks.call(AppExecutors.imports(), () -> copy(uri)).addOnCompleteListener(task -> {
+            if(task.isSuccessful()) {
+                mWaiting.add(task.getResult());
+            } else {
+                Timber.w(task.getException(), "ImportBatch:copy %s", uri);
+                mFailed++;
+                notifyProgress();
+            }
+            pump();
+            copyNext();
+        });
+    }
+
+    /**
+     * Prepare the waiting files until MAX_PREPARING is reached.
+     * Once every file is in the UploadQueue (or failed) the batch is closed, so it can be committed.
+     */
+    @MainThread
+    private void pump() {
+        while (mPreparing < MAX_PREPARING && !mWaiting.isEmpty()) {
+            prepare(mWaiting.poll());
+        }
+        if(mPreparing == 0 && mWaiting.isEmpty() && mPicked.isEmpty() && !mCopying && !mClosed) {
+            mClosed = true;
+            mQueue.closeBatch(mBatch);
+        }
+    }
+
+    @MainThread
+    private void prepare(final Picked picked) {
+        mPreparing++;
+        final Uri uri = picked.uri;
+        final List<File> temporary = new ArrayList<>();
+        if(picked.copy != null) {
+            temporary.add(picked.copy);
+        }
+        Tasks.call(AppExecutors.imports(), () -> uploads(picked, temporary))
+                .continueWithTask(task -> task.isSuccessful()
+                        ? mQueue.enqueue(task.getResult(), mBatch) : Tasks.<Void>forException(task.getException()))
+                .addOnCompleteListener(task -> {
+                    // the queue has its own copies
+                    for (File file : temporary) {
+                        file.delete();
+                    }
+
+                    mPreparing--;
+                    if(task.isSuccessful()) {
+                        mQueued++;
+                        mPending++;
+                    } else {
+                        Timber.w(task.getException(), "ImportBatch:prepare %s", uri);
+                        mFailed++;
+                    }
+                    notifyProgress();
+                    pump();
+                });
+    }
+
+    /**
+     * Copy a picked file into the cache, while we still have permission to read it.
+     * Our own files (e.g. from the camera) are used as they are, they are only hashed.
+     * The hash is of the picked content, so the same photo is recognized whatever budget its
+     * upload copy is encoded with, see UploadQueue.
+     * @param uri picked file
+     * @return the file to import
+     */
+    @WorkerThread
+    private Picked copy(Uri uri) throws IOException {
+        String contentType = mContext.getContentResolver().getType(uri);
+        String displayName = displayName(uri);
+        MessageDigest digest = UploadQueue.digest();
+        if("file".equals(uri.getScheme())) {
+            if(digest != null) {
+                try (InputStream in = new FileInputStream(uri.getPath())) {
+                    UploadQueue.transfer(in, null, digest);
+                }
+            }
+            return new Picked(uri, null, contentType, displayName, UploadQueue.hex(digest));
+        }
+
+        File copy = File.createTempFile("picked", null, mContext.getCacheDir());
+        try (InputStream in = mContext.getContentResolver().openInputStream(uri);
+             OutputStream out = new FileOutputStream(copy)) {
+            if(in == null) {
+                throw new IOException("Could not open " + uri);
+            }
+            UploadQueue.transfer(in, out, digest);
+        } catch (IOException | RuntimeException e) {
+            copy.delete();
+            throw e;
+        }
+        return new Picked(Uri.fromFile(copy), copy, contentType, displayName, UploadQueue.hex(digest));
+    }
+
+    /**
+     * Resize the photo and create its variants. A photo that can't be resized is uploaded as it is,
+     * without variants when they can't be created either.
+     * @param picked file to import
+     * @param temporary receives the files that can be deleted once the uploads are enqueued
+     * @return uploads of one group
+     */
+    @WorkerThread
+    private List<UploadQueue.Upload> uploads(Picked picked, List<File> temporary) throws IOException {
+        Uri uri = picked.uri;
+        String filename = UlidGenerator.next();
+        String contentType = picked.contentType;
+        String displayName = picked.displayName;
+        if(!GridActivity.TYPE_PHOTO.equals(mType)) {
+            return Collections.singletonList(new UploadQueue.Upload(mCompanyID, mItemID, mType, filename, filename,
+                    uri, contentType, displayName, picked.hash));
+        }
+
+        if(mKeep != null) {
+            uri = keep(uri, mKeep);
+        }
+
+        // the photo and its variants use the same budget, also when the network changes in between
+        boolean metered = ImageEncoder.isMetered(mContext);
+        Uri photo = uri;
+        if(mResize) {
+            File resized = File.createTempFile("import", ".jpg", mContext.getCacheDir());
+            temporary.add(resized);
+            try {
+                photo = Uri.fromFile(ImageResizer.resizeSync(mContext, uri, resized, metered));
+                contentType = ImageEncoder.ORIGINAL.contentType;
+            } catch (IOException e) {
+                Timber.w(e, "ImportBatch:resize %s", uri);
+            }
+        }
+
+        ImageVariants variants = null;
+        try {
+            variants = ImageVariants.create(mContext, photo, mContext.getCacheDir(), metered);
+        } catch (IOException e) {
+            Timber.w(e, "ImportBatch:variants %s", uri);
+        }
+
+        List<UploadQueue.Upload> uploads = new ArrayList<>();
+        if(variants != null) {
+            temporary.add(variants.small);
+            temporary.add(variants.screen);
+            uploads.add(variantUpload(variants.small, variants.contentType, filename, ImageVariants.SMALL));
+            uploads.add(variantUpload(variants.screen, variants.contentType, filename, ImageVariants.SCREEN));
+        }
+        uploads.add(new UploadQueue.Upload(mCompanyID, mItemID, mType, filename, filename,
+                photo, contentType, displayName, picked.hash));
+        return uploads;
+    }
+
+    /**
+     * Resize the photo into the file we keep, and let the media scanner know about it.
+     * When that fails the photo is imported as it is.
+     * @return the photo to upload from
+     */
+    @WorkerThread
+    private Uri keep(Uri uri, File output) {
+        try {
+            Uri kept = Uri.fromFile(ImageResizer.resizeLocalSync(mContext, uri, output));
+            Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
+            mediaScanIntent.setData(kept);
+            mContext.sendBroadcast(mediaScanIntent);
+            return kept;
+        } catch (IOException e) {
+            Timber.w(e, "ImportBatch:keep %s", uri);
+            return uri;
+        }
+    }
+
+    private UploadQueue.Upload variantUpload(File file, String contentType, String filename, String variant) {
+        return new UploadQueue.Upload(mCompanyID, mItemID, mType, ImageVariants.name(filename, variant), filename,
+                Uri.fromFile(file), contentType, null, null);
+    }
+
+    /**
+     * @return the name the user knows the file by, null when the provider doesn't tell
+     */
+    @WorkerThread
+    @Nullable
+    private String displayName(Uri uri) {
+        try (Cursor cursor = mContext.getContentResolver().query(uri,
+                new String[] { OpenableColumns.DISPLAY_NAME }, null, null, null)) {
+            if(cursor != null && cursor.moveToFirst()) {
+                return cursor.getString(0);
+            }
+        } catch (RuntimeException e) {
+            Timber.w(e, "ImportBatch:displayName %s", uri);
+        }
+        return null;
+    }
+
+    @MainThread
+    private void notifyProgress() {
+        if(mListener != null) {
+            mListener.onImportProgress(this);
+        }
+    }
+
+    private final UploadQueue.BatchListener batchListener = new UploadQueue.BatchListener() {
+        @Override
+        public void onBatchProgress(String batch, int pending) {
+            if(batch.equals(mBatch) && pending != mPending) {
+                mPending = pending;
+                notifyProgress();
+            }
+        }
+
+        @Override
+        public void onBatchFileFailed(String batch) {
+            if(batch.equals(mBatch)) {
+                mQueued--;
+                mFailed++;
+                notifyProgress();
+            }
+        }
+
+        @Override
+        public void onBatchCommitted(String batch) {
+            if(!batch.equals(mBatch)) {
+                return;
+            }
+
+            mPending = 0;
+            mFinished = true;
+            mQueue.removeBatchListener(this);
+            sRunning.remove(ImportBatch.this);
+            if(mListener != null) {
+                mListener.onImportFinished(ImportBatch.this);
+            }
+        }
+    };
+
+    /**
+     * A picked file that is readable by us
+     */
+    private static class Picked {
+        final Uri uri;
+        @Nullable final File copy;
+        final String contentType;
+        @Nullable final String displayName;
+        @Nullable final String hash;
+
+        Picked(Uri uri, @Nullable File copy, String contentType, @Nullable String displayName, @Nullable String hash) {
+            this.uri = uri;
+            this.copy = copy;
+            this.contentType = contentType;
+            this.displayName = displayName;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package nl.kimplusdelta.gereedschap.adapter;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+
+import nl.kimplusdelta.gereedschap.firebase.InventorySession;
+
+/**
+ * Live checklist of an InventorySession, newest serial on top
+ */
+public class InventoryChecklistAdapter extends ArrayAdapter<String> {
+
+    private final InventorySession mSession;
+
+    public InventoryChecklistAdapter(Context context, InventorySession session) {
+        super(context, android.R.layout.simple_list_item_1, new ArrayList<String>());
+        mSession = session;
+    }
+
+    /**
+     * @param serial serial that was just added to the session
+     */
+    public void addSerial(String serial) {
+        insert(serial, 0);
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) super.getView(position, convertView, parent);
+        String serial = getItem(position);
+        view.setText(statusLabel(mSession.getStatus(serial)) + "  " + serial);
+        return view;
+    }
+
+    private static String statusLabel(int status) {
+        switch (status) {
+            case InventorySession.STATUS_FOUND:
+                return "✓";
+            case InventorySession.STATUS_UNKNOWN:
+                return "?";
+            default:
+                return "…";
+        }
+    }
+}
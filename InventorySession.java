@@ -0,0 +1,336 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nl.kimplusdelta.gereedschap.storage.ItemStore;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+import timber.log.Timber;
+
+/**
+ * A stock check: collects scanned serials and checks them against the items of the company.
+ * Items that are in the ItemRepository are found right away. The other serials are looked up in batches,
+ * first with one query against the local ItemStore and then with parallel reads from the database
+ * for the serials we don't have a local copy of. Only the scanned serials are read from the database:
+ * the missing items come from the local ItemStore, which ItemSync keeps in sync with the company's items.
+ * Every status change is reported to the Listener, so the scanner can show a live checklist.
+ * The scanner saves the session with save and restores it with restore, e.g. across a rotation.
+ */
+public class InventorySession {
+
+    public static final int STATUS_CHECKING = 0;
+    public static final int STATUS_FOUND = 1;
+    public static final int STATUS_UNKNOWN = 2;
+
+    /**
+     * Look up a batch once it has this many serials...
+     */
+    private static final int BATCH_SIZE = 25;
+
+    /**
+     * ...or once no serial was added for this long
+     */
+    public static final long DEFAULT_BATCH_DELAY = 300;
+
+    /**
+     * Saved state: scanned serials in scan order, and their status in the same order
+     */
+    private static final String KEY_SERIALS = "inventorySerials";
+    private static final String KEY_STATUSES = "inventoryStatuses";
+
+    public interface Listener {
+        void onStatusChanged(String serial, int status);
+    }
+
+    /**
+     * Result of the session
+     */
+    public static class Summary {
+        /**
+         * Scanned serials of existing items
+         */
+        public final List<String> found = new ArrayList<>();
+
+        /**
+         * Items of the company that were not scanned
+         */
+        public final List<String> missing = new ArrayList<>();
+
+        /**
+         * Scanned serials that are not an item of the company
+         */
+        public final List<String> unknown = new ArrayList<>();
+
+        /**
+         * @param maxListed maximum number of missing and unknown serials listed per group
+         * @return the summary as dialog text
+         */
+        public String format(int maxListed) {
+            StringBuilder message = new StringBuilder();
+            appendGroup(message, "Found", found, 0);
+            appendGroup(message, "Missing", missing, maxListed);
+            appendGroup(message, "Unknown", unknown, maxListed);
+            return message.toString().trim();
+        }
+
+        private static void appendGroup(StringBuilder message, String title, List<String> serials, int maxListed) {
+            message.append(title).append(": ").append(serials.size()).append('\n');
+            if(maxListed == 0) {
+                return;
+            }
+
+            for (int i = 0; i < serials.size() && i < maxListed; i++) {
+                message.append("  ").append(serials.get(i)).append('\n');
+            }
+            if(serials.size() > maxListed) {
+                message.append("  +").append(serials.size() - maxListed).append('\n');
+            }
+            message.append('\n');
+        }
+    }
+
+    private final String mCompanyID;
+    private final ItemStore mStore;
+    private final ItemRepository mRepository;
+    private final DatabaseReference mItemsRef;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Status per serial, in scan order
+     */
+    private final Map<String, Integer> mStatus = new LinkedHashMap<>();
+    private final List<String> mPending = new ArrayList<>();
+    private final Set<Task<Void>> mInFlight = new HashSet<>();
+    private Listener mListener;
+    private long mBatchDelay = DEFAULT_BATCH_DELAY;
+
+    private final Runnable mFlushRunnable = this::flush;
+
+    /**
+     * @param context any context
+     * @param companyID users company
+     */
+    public InventorySession(Context context, String companyID) {
+        mCompanyID = companyID;
+        mStore = ItemStore.getInstance(context);
+        mRepository = ItemRepository.getInstance(context);
+        mItemsRef = FirebaseDatabase.getInstance().getReference("items").child(companyID);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param batchDelay time in milliseconds to wait for more serials before a batch is looked up
+     */
+    public void setBatchDelay(long batchDelay) {
+        mBatchDelay = batchDelay;
+    }
+
+    /**
+     * Add a scanned serial to the session
+     * @param serial scanned code
+     * @return false when the serial was already scanned in this session
+     */
+    @MainThread
+    public boolean add(String serial) {
+        if(mStatus.containsKey(serial)) {
+            return false;
+        }
+
+        if(mRepository.peek(mCompanyID, serial) != null) {
+            setStatus(serial, STATUS_FOUND);
+            return true;
+        }
+
+        mStatus.put(serial, STATUS_CHECKING);
+        mPending.add(serial);
+        mHandler.removeCallbacks(mFlushRunnable);
+        if(mPending.size() >= BATCH_SIZE) {
+            flush();
+        } else {
+            mHandler.postDelayed(mFlushRunnable, mBatchDelay);
+        }
+        return true;
+    }
+
+    /**
+     * @return status of the serial, or -1 when it was not scanned
+     */
+    @MainThread
+    public int getStatus(String serial) {
+        Integer status = mStatus.get(serial);
+        return status == null ? -1 : status;
+    }
+
+    /**
+     * @return number of scanned serials
+     */
+    @MainThread
+    public int size() {
+        return mStatus.size();
+    }
+
+    /**
+     * Save the scanned serials and their status
+     * @param state e.g. the bundle of onSaveInstanceState
+     */
+    @MainThread
+    public void save(Bundle state) {
+        ArrayList<String> serials = new ArrayList<>(mStatus.keySet());
+        int[] statuses = new int[serials.size()];
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = mStatus.get(serials.get(i));
+        }
+        state.putStringArrayList(KEY_SERIALS, serials);
+        state.putIntArray(KEY_STATUSES, statuses);
+    }
+
+    /**
+     * Restore the serials of a saved session. The serials that were still being checked are looked up again,
+     * the others keep their status without a call to the Listener.
+     * @param state bundle that was passed to save
+     * @return the restored serials in scan order
+     */
+    @MainThread
+    public List<String> restore(Bundle state) {
+        ArrayList<String> serials = state.getStringArrayList(KEY_SERIALS);
+        int[] statuses = state.getIntArray(KEY_STATUSES);
+        if(serials == null || statuses == null || serials.size() != statuses.length) {
+            return Collections.emptyList();
+        }
+
+        for (int i = 0; i < statuses.length; i++) {
+            if(statuses[i] == STATUS_CHECKING) {
+                add(serials.get(i));
+            } else {
+                mStatus.put(serials.get(i), statuses[i]);
+            }
+        }
+        return serials;
+    }
+
+    /**
+     * End the session: wait for the outstanding lookups and compare the scanned serials with the items of the company
+     * we have a local copy of. The whole items subtree is not read, the scanned serials were already looked up one by one.
+     * @return task with the summary
+     */
+    @MainThread
+    public Task<Summary> finish() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        flush();
+
+        final Task<Set<String>> expected = Tasks.call(AppExecutors.disk(), () -> mStore.serials(mCompanyID));
+
+        List<Task<?>> tasks = new ArrayList<Task<?>>(mInFlight);
+        tasks.add(expected);
+        return Tasks.whenAllComplete(tasks).continueWith(ignored -> {
+            Summary summary = new Summary();
+            for (Map.Entry<String, Integer> entry : mStatus.entrySet()) {
+                if(entry.getValue() == STATUS_FOUND) {
+                    summary.found.add(entry.getKey());
+                } else {
+                    summary.unknown.add(entry.getKey());
+                }
+            }
+
+            if(!expected.isSuccessful()) {
+                Timber.w(expected.getException(), "InventorySession:items");
+            } else {
+                for (String serial : expected.getResult()) {
+                    if(!mStatus.containsKey(serial)) {
+                        summary.missing.add(serial);
+                    }
+                }
+                Collections.sort(summary.missing);
+            }
+            return summary;
+        });
+    }
+
+    /**
+     * Look up the pending serials as one batch
+     */
+    @MainThread
+    private void flush() {
+        if(mPending.isEmpty()) {
+            return;
+        }
+
+        final List<String> batch = new ArrayList<>(mPending);
+        mPending.clear();
+
+        final Task<Void> lookup = Tasks.call(AppExecutors.disk(), () -> mStore.contains(mCompanyID, batch))
+                .continueWithTask(task -> {
+                    Set<String> local = task.isSuccessful() ? task.getResult() : Collections.<String>emptySet();
+
+                    List<Task<Boolean>> remote = new ArrayList<>();
+                    for (final String serial : batch) {
+                        if(local.contains(serial)) {
+                            setStatus(serial, STATUS_FOUND);
+                        } else {
+                            remote.add(exists(serial).addOnCompleteListener(exists ->
+                                    setStatus(serial, exists.isSuccessful() && exists.getResult() ? STATUS_FOUND : STATUS_UNKNOWN)));
+                        }
+                    }
+                    return Tasks.whenAll(remote);
+                });
+
+        mInFlight.add(lookup);
+        lookup.addOnCompleteListener(task -> mInFlight.remove(lookup));
+    }
+
+    /**
+     * Read the item from the database, and keep a local copy when it exists
+     */
+    private Task<Boolean> exists(final String serial) {
+        try {
+            return DatabaseTasks.get(mItemsRef.child(serial)).continueWith(AppExecutors.disk(), task -> {
+                DataSnapshot snapshot = task.getResult();
+                if(!snapshot.exists()) {
+                    return false;
+                }
+
+                try {
+                    InstrumentItem item = snapshot.getValue(InstrumentItem.class);
+                    if(item != null) {
+                        mStore.put(mCompanyID, serial, item);
+                    }
+                } catch (DatabaseException e) {
+                    Timber.w(e, "InventorySession:decode %s", serial);
+                }
+                return true;
+            });
+        } catch (DatabaseException e) {
+            // serial contains characters that are not allowed in a database path
+            return Tasks.forResult(false);
+        }
+    }
+
+    @MainThread
+    private void setStatus(String serial, int status) {
+        mStatus.put(serial, status);
+        if(mListener != null) {
+            mListener.onStatusChanged(serial, status);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.ServerValue;
+import com.google.firebase.database.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keyed, incremental operations on the pictures/attachments list of an item.
+ * Every entry is a child keyed by its filename (see key), so a change only writes the children it
+ * touches and changes from several devices merge in the database:
+ * - add writes the new children and ItemSync.UPDATED_AT with one multi-path update
+ * - remove clears each child in a transaction on that child, so a file that two devices remove
+ *   at the same time is only reported as removed once
+ * The filenames are ULIDs, so the keys sort by the time the file was stored. InstrumentItem turns
+ * the children back into a List with toList.
+ *
+ * Lists of older versions of the app are arrays keyed by index. Entries are looked up by value,
+ * so those are found (and removed) as well; this needs ".indexOn": ".value" on the pictures and
+ * attachments nodes in the database rules.
+ */
+public class ItemFileList {
+
+    private final DatabaseReference mItemRef;
+    private final DatabaseReference mRef;
+    private final String mType;
+
+    /**
+     * @param companyID users company
+     * @param itemID item ID
+     * @param type GridActivity.TYPE_PHOTO or GridActivity.TYPE_DOCS
+     */
+    public ItemFileList(String companyID, String itemID, String type) {
+        mItemRef = FirebaseDatabase.getInstance().getReference("items")
+                .child(companyID)
+                .child(itemID);
+        mRef = mItemRef.child(type);
+        mType = type;
+    }
+
+    /**
+     * Add a file to the list, unless it is already in there
+     * @param filename storage filename
+     * @return task that completes once the entry is written
+     */
+    public Task<Void> add(final String filename) {
+        return addIfAbsent(filename).continueWithTask(task -> task.isSuccessful()
+                ? Tasks.<Void>forResult(null) : Tasks.<Void>forException(task.getException()));
+    }
+
+    /**
+     * Add a file to the list, unless it is already in there
+     * @param filename storage filename
+     * @return task with true when the entry was written, false when the list already had it
+     */
+    public Task<Boolean> addIfAbsent(final String filename) {
+        return addAll(Collections.singletonList(filename)).continueWithTask(task -> task.isSuccessful()
+                ? Tasks.forResult(!task.getResult().isEmpty()) : Tasks.<Boolean>forException(task.getException()));
+    }
+
+    /**
+     * Add the files that are not in the list yet, with a single write of only the new children
+     * @param filenames storage filenames
+     * @return task with the filenames that were added
+     */
+    public Task<List<String>> addAll(Collection<String> filenames) {
+        final List<String> candidates = new ArrayList<>(new LinkedHashSet<>(filenames));
+        final List<Task<DataSnapshot>> lookups = new ArrayList<>(candidates.size());
+        for (String filename : candidates) {
+            lookups.add(find(filename));
+        }
+
+        return Tasks.whenAll(lookups).continueWithTask(task -> {
+            if(!task.isSuccessful()) {
+                return Tasks.forException(task.getException());
+            }
+
+            final List<String> added = new ArrayList<>();
+            Map<String, Object> update = new HashMap<>();
+            for (int i = 0; i < candidates.size(); i++) {
+                if(!lookups.get(i).getResult().exists()) {
+                    String filename = candidates.get(i);
+                    update.put(mType + "/" + key(filename), filename);
+                    added.add(filename);
+                }
+            }
+            if(added.isEmpty()) {
+                return Tasks.forResult(added);
+            }
+
+            update.put(ItemSync.UPDATED_AT, ServerValue.TIMESTAMP);
+            return mItemRef.updateChildren(update).continueWithTask(written -> written.isSuccessful()
+                    ? Tasks.forResult(added) : Tasks.<List<String>>forException(written.getException()));
+        });
+    }
+
+    /**
+     * Remove a file from the list
+     * @param filename storage filename
+     * @return task that completes once the entry is removed
+     */
+    public Task<Void> remove(String filename) {
+        return removeAll(Collections.singletonList(filename)).continueWithTask(task -> task.isSuccessful()
+                ? Tasks.<Void>forResult(null) : Tasks.<Void>forException(task.getException()));
+    }
+
+    /**
+     * Remove files from the list, every entry with a transaction on its own child.
+     * When one of the removals fails the task fails; the references of the files that were removed
+     * are then kept, which errs on the side of keeping a file like the ContentIndex does.
+     * @param filenames storage filenames
+     * @return task with the filenames that were in the list and are removed now
+     */
+    public Task<List<String>> removeAll(Collection<String> filenames) {
+        final List<String> candidates = new ArrayList<>(new LinkedHashSet<>(filenames));
+        final List<Task<Boolean>> removals = new ArrayList<>(candidates.size());
+        for (final String filename : candidates) {
+            removals.add(find(filename).continueWithTask(task -> {
+                if(!task.isSuccessful()) {
+                    return Tasks.forException(task.getException());
+                }
+
+                // normally one child, an old list may have the file at an index as well
+                final List<Task<Boolean>> cleared = new ArrayList<>();
+                for (DataSnapshot child : task.getResult().getChildren()) {
+                    cleared.add(clear(child.getKey(), filename));
+                }
+                return Tasks.whenAll(cleared).continueWithTask(all -> {
+                    if(!all.isSuccessful()) {
+                        return Tasks.forException(all.getException());
+                    }
+                    for (Task<Boolean> entry : cleared) {
+                        if(entry.getResult()) {
+                            return Tasks.forResult(true);
+                        }
+                    }
+                    return Tasks.forResult(false);
+                });
+            }));
+        }
+
+        return Tasks.whenAll(removals).continueWithTask(task -> {
+            if(!task.isSuccessful()) {
+                return Tasks.forException(task.getException());
+            }
+
+            final List<String> removed = new ArrayList<>();
+            for (int i = 0; i < candidates.size(); i++) {
+                if(removals.get(i).getResult()) {
+                    removed.add(candidates.get(i));
+                }
+            }
+            if(removed.isEmpty()) {
+                return Tasks.forResult(removed);
+            }
+            // the entries are removed either way, an item without a new UPDATED_AT is picked up by the full sync
+            return mItemRef.child(ItemSync.UPDATED_AT).setValue(ServerValue.TIMESTAMP)
+                    .continueWith(ignored -> removed);
+        });
+    }
+
+    /**
+     * @return the children that hold the file, keyed or at an index of an old list
+     */
+    private Task<DataSnapshot> find(String filename) {
+        return DatabaseTasks.get(mRef.orderByValue().equalTo(filename));
+    }
+
+    /**
+     * Clear a single child when it still holds the file
+     * @return task with true when this call removed the entry
+     */
+    private Task<Boolean> clear(String key, final String filename) {
+        final TaskCompletionSource<Boolean> source = new TaskCompletionSource<>();
+        // the result of the last run of the transaction, which is the one that was committed
+        final boolean[] cleared = new boolean[1];
+        mRef.child(key).runTransaction(new Transaction.Handler() {
+            @Override
+            public Transaction.Result doTransaction(MutableData mutableData) {
+                cleared[0] = filename.equals(mutableData.getValue());
+                if(cleared[0]) {
+                    mutableData.setValue(null);
+                }
+                return Transaction.success(mutableData);
+            }
+
+            @Override
+            public void onComplete(DatabaseError databaseError, boolean committed, DataSnapshot dataSnapshot) {
+                if(databaseError != null) {
+                    source.setException(databaseError.toException());
+                } else {
+                    source.setResult(committed && cleared[0]);
+                }
+            }
+        });
+        return source.getTask();
+    }
+
+    /**
+     * Database key of a file: the filename with the characters a key can't hold escaped as %XX
+     * @param filename storage filename
+     */
+    static String key(String filename) {
+        StringBuilder key = new StringBuilder(filename.length() + 4);
+        for (int i = 0; i < filename.length(); i++) {
+            char c = filename.charAt(i);
+            if(c == '.' || c == '$' || c == '#' || c == '[' || c == ']' || c == '/' || c == '%') {
+                key.append(String.format(Locale.US, "%%%02X", (int) c));
+            } else {
+                key.append(c);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * The filenames of a list as read from the database, used by InstrumentItem for its pictures and
+     * attachments: the entries of an old array in index order, then the keyed children in key order.
+     * Holes and duplicates are left out.
+     * @param value value of the list node, a Map of keyed children or, for an old list, a List
+     * @return the filenames, a new list that can be changed
+     */
+    public static List<String> toList(@Nullable Object value) {
+        TreeMap<Integer, String> indexed = new TreeMap<>();
+        TreeMap<String, String> keyed = new TreeMap<>();
+        if(value instanceof List) {
+            List<?> entries = (List<?>) value;
+            for (int i = 0; i < entries.size(); i++) {
+                if(entries.get(i) instanceof String) {
+                    indexed.put(i, (String) entries.get(i));
+                }
+            }
+        } else if(value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if(!(entry.getValue() instanceof String)) {
+                    continue;
+                }
+                String key = String.valueOf(entry.getKey());
+                try {
+                    indexed.put(Integer.parseInt(key), (String) entry.getValue());
+                } catch (NumberFormatException e) {
+                    keyed.put(key, (String) entry.getValue());
+                }
+            }
+        }
+
+        Set<String> filenames = new LinkedHashSet<>(indexed.values());
+        filenames.addAll(keyed.values());
+        return new ArrayList<>(filenames);
+    }
+}
@@ -0,0 +1,112 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.FirebaseDatabase;
+
+import nl.kimplusdelta.gereedschap.MyApplication;
+import nl.kimplusdelta.gereedschap.activity.DeviceActivity;
+import nl.kimplusdelta.gereedschap.storage.ItemStore;
+import nl.kimplusdelta.gereedschap.storage.SearchIndex;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+import timber.log.Timber;
+
+/**
+ * Offline-first entry point for looking up a serial.
+ * The ItemRepository (backed by the local ItemStore) answers first so the DeviceActivity opens from disk,
+ * after which the item is refreshed from Firebase in the background.
+ * Serials we don't know yet fall through to FirebaseHelper.
+ */
+public final class ItemLookup {
+
+    private ItemLookup() {}
+
+    /**
+     * Open the item from the local store, or let FirebaseHelper fetch it when we don't have a copy.
+     * @param activity calling activity
+     * @param serial item ID
+     * @param scanned passed along to FirebaseHelper.startItemActivity
+     */
+    public static void startItemActivity(final Activity activity, final String serial, final boolean scanned) {
+        final String companyID = ((MyApplication) activity.getApplication()).companyID;
+        if(companyID == null || companyID.isEmpty()) {
+            FirebaseHelper.startItemActivity(activity, serial, scanned);
+            return;
+        }
+
+        final Context context = activity.getApplicationContext();
+        ItemRepository.getInstance(context).get(companyID, serial).addOnCompleteListener(activity, task -> {
+            InstrumentItem item = task.isSuccessful() ? task.getResult() : null;
+            if(item != null) {
+                showItem(activity, serial);
+            } else {
+                FirebaseHelper.startItemActivity(activity, serial, scanned);
+            }
+
+            refresh(context, companyID, serial);
+        });
+    }
+
+    /**
+     * Fetch the item from Firebase and update the local store and the repository with the result
+     * @param context any context
+     * @param companyID users company
+     * @param serial item ID
+     */
+    public static void refresh(Context context, final String companyID, final String serial) {
+        final ItemStore store = ItemStore.getInstance(context);
+        final ItemRepository repository = ItemRepository.getInstance(context);
+        try {
+            DatabaseTasks.get(FirebaseDatabase.getInstance().getReference("items").child(companyID).child(serial))
+                    .continueWith(AppExecutors.disk(), task -> {
+                        InstrumentItem item = task.getResult().exists()
+                                ? task.getResult().getValue(InstrumentItem.class) : null;
+                        if(item != null) {
+                            store.put(companyID, serial, item);
+                        } else {
+                            store.remove(companyID, serial);
+                        }
+                        return item;
+                    })
+                    .addOnCompleteListener(task -> {
+                        if(task.isSuccessful() && task.getResult() != null) {
+                            repository.put(companyID, serial, task.getResult());
+                        } else if(!task.isSuccessful()) {
+                            Timber.w(task.getException(), "refreshItem");
+                        }
+                    });
+        } catch (DatabaseException e) {
+            // serial contains characters that are not allowed in a database path
+            Timber.w(e, "refreshItem:invalidPath %s", serial);
+        }
+    }
+
+    /**
+     * Load the locally stored items and download URLs of the company into memory,
+     * so the first scan after starting the app doesn't wait on the disk.
+     * Also builds the SearchIndex for the serial suggestions.
+     * @param context any context
+     * @param companyID users company
+     */
+    public static void warmUp(Context context, final String companyID) {
+        ItemRepository.getInstance(context).warmUp(companyID);
+        DownloadUrlResolver.getInstance(context).warmUp(companyID);
+
+        final ItemStore store = ItemStore.getInstance(context);
+        AppExecutors.disk().execute(() -> SearchIndex.getInstance().load(store, companyID));
+    }
+
+    /**
+     * Start the DeviceActivity for an item that is in the ItemRepository
+     * @param activity calling activity
+     * @param serial item ID
+     */
+    private static void showItem(Activity activity, String serial) {
+        Intent intent = new Intent(activity, DeviceActivity.class);
+        intent.putExtra(DeviceActivity.EXTRA_ID, serial);
+        activity.startActivity(intent);
+    }
+}
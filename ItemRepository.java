@@ -0,0 +1,177 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import android.content.Context;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import nl.kimplusdelta.gereedschap.storage.ItemStore;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+
+/**
+ * App-scoped, memory-bounded home of the InstrumentItems the user is looking at.
+ * Activities only pass the item ID around and resolve the item here, so they all share the
+ * same instance: an edit in the DeviceDetailsActivity or GridActivity is visible in the other
+ * screens without fetching the item again. Items that dropped out of memory are read back
+ * from the ItemStore.
+ *
+ * A fresh copy of an item that is already in memory (from the ItemSync or a refresh) is merged into
+ * the shared instance, so screens that hold on to the item or to one of its lists see the new values.
+ */
+public class ItemRepository {
+
+    /**
+     * Number of items kept in memory
+     */
+    private static final int MAX_ITEMS = 32;
+
+    private static ItemRepository sInstance;
+
+    private final ItemStore mStore;
+    private final LruCache<String, InstrumentItem> mItems = new LruCache<>(MAX_ITEMS);
+
+    public static synchronized ItemRepository getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new ItemRepository(ItemStore.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private ItemRepository(ItemStore store) {
+        mStore = store;
+    }
+
+    /**
+     * @param companyID users company
+     * @param itemID item ID
+     * @return the item when it is in memory, otherwise null
+     */
+    @Nullable
+    @MainThread
+    public InstrumentItem peek(String companyID, String itemID) {
+        return mItems.get(key(companyID, itemID));
+    }
+
+    /**
+     * Get the item from memory, or else from the local store
+     * @param companyID users company
+     * @param itemID item ID
+     * @return task with the item, or null when we don't have it
+     */
+    @MainThread
+    public Task<InstrumentItem> get(final String companyID, final String itemID) {
+        InstrumentItem item = peek(companyID, itemID);
+        if(item != null) {
+            return Tasks.forResult(item);
+        }
+
+        return mStore.load(companyID, itemID).addOnSuccessListener(stored -> {
+            if(stored != null && peek(companyID, itemID) == null) {
+                mItems.put(key(companyID, itemID), stored);
+            }
+        }).continueWith(task -> task.isSuccessful() ? peek(companyID, itemID) : null);
+    }
+
+    /**
+     * Make the item available to other screens, without writing it to disk.
+     * When another instance of the item is in memory, the item is merged into that one.
+     * @param companyID users company
+     * @param itemID item ID
+     * @param item the item
+     */
+    @MainThread
+    public void put(String companyID, String itemID, InstrumentItem item) {
+        String key = key(companyID, itemID);
+        InstrumentItem current = mItems.get(key);
+        if(current == null) {
+            mItems.put(key, item);
+        } else if(current != item) {
+            merge(current, item);
+        }
+    }
+
+    /**
+     * Merge a fresh copy into the item when it is in memory, see put
+     * @param companyID users company
+     * @param itemID item ID
+     * @param item the item as it is in the database
+     */
+    @MainThread
+    public void refresh(String companyID, String itemID, InstrumentItem item) {
+        if(peek(companyID, itemID) != null) {
+            put(companyID, itemID, item);
+        }
+    }
+
+    /**
+     * Call after changing the item, so the change is kept in the local store as well
+     * @param companyID users company
+     * @param itemID item ID
+     * @param item the changed item
+     */
+    @MainThread
+    public void update(String companyID, String itemID, InstrumentItem item) {
+        put(companyID, itemID, item);
+        mStore.save(companyID, itemID, item);
+    }
+
+    /**
+     * Load the most recently stored items of the company into memory
+     * @param companyID users company
+     */
+    @MainThread
+    public void warmUp(final String companyID) {
+        Tasks.call(AppExecutors.disk(), () -> mStore.recent(companyID, MAX_ITEMS / 2)).addOnSuccessListener(items -> {
+            // oldest first, so the newest item ends up as the most recently used
+            List<Map.Entry<String, InstrumentItem>> entries = new ArrayList<>(items.entrySet());
+            Collections.reverse(entries);
+            for (Map.Entry<String, InstrumentItem> item : entries) {
+                if(peek(companyID, item.getKey()) == null) {
+                    put(companyID, item.getKey(), item.getValue());
+                }
+            }
+        });
+    }
+
+    /**
+     * Copy the values of the fresh item into the shared one. Lists are refilled instead of replaced,
+     * the GridActivity works on the item's own list.
+     */
+    @SuppressWarnings("unchecked")
+    private static void merge(InstrumentItem target, InstrumentItem source) {
+        for (Field field : InstrumentItem.class.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if(Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || Modifier.isTransient(modifiers)) {
+                continue;
+            }
+            field.setAccessible(true);
+            try {
+                Object value = field.get(source);
+                Object current = field.get(target);
+                if(value instanceof List && current instanceof List) {
+                    List<Object> list = (List<Object>) current;
+                    list.clear();
+                    list.addAll((List<Object>) value);
+                } else {
+                    field.set(target, value);
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static String key(String companyID, String itemID) {
+        return companyID + "/" + itemID;
+    }
+}
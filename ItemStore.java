@@ -0,0 +1,291 @@
+package nl.kimplusdelta.gereedschap.storage;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import nl.kimplusdelta.gereedschap.BuildConfig;
+import nl.kimplusdelta.gereedschap.firebase.InstrumentItem;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+import timber.log.Timber;
+
+/**
+ * Persistent on-device copy of the InstrumentItems, keyed by companyID + serial.
+ * Items are stored in their Parcel form. A Parcel is only stable within one build,
+ * so rows written by another app version are treated as a miss and refreshed from Firebase.
+ * Every change is passed on to the SearchIndex.
+ */
+public class ItemStore {
+
+    /**
+     * Callback for forEach
+     */
+    public interface Visitor {
+        @WorkerThread
+        void visit(String serial, InstrumentItem item);
+    }
+
+    private static ItemStore sInstance;
+
+    private final LocalDatabase mDatabase;
+
+    public static synchronized ItemStore getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new ItemStore(LocalDatabase.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private ItemStore(LocalDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Load an item on the disk executor
+     * @param companyID users company
+     * @param serial item ID
+     * @return task with the stored item, or null when we don't have it
+     */
+    public Task<InstrumentItem> load(String companyID, String serial) {
+        return Tasks.call(AppExecutors.disk(), () -> get(companyID, serial));
+    }
+
+    /**
+     * @param companyID users company
+     * @param serial item ID
+     * @return the stored item or null when there is no usable copy
+     */
+    @Nullable
+    @WorkerThread
+    public InstrumentItem get(String companyID, String serial) {
+        SQLiteDatabase db = mDatabase.getReadableDatabase();
+        Cursor cursor = db.query(LocalDatabase.TABLE_ITEMS,
+                new String[] { LocalDatabase.COLUMN_DATA, LocalDatabase.COLUMN_VERSION },
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_SERIAL + " = ?",
+                new String[] { companyID, serial }, null, null, null);
+        try {
+            if(cursor.moveToFirst() && cursor.getInt(1) == BuildConfig.VERSION_CODE) {
+                return unmarshall(cursor.getBlob(0));
+            }
+        } catch (RuntimeException e) {
+            Timber.w(e, "ItemStore:get %s", serial);
+        } finally {
+            cursor.close();
+        }
+        return null;
+    }
+
+    /**
+     * Insert or replace the local copy of an item.
+     * The edits in the EditQueue that are not written to the database yet are applied to the item first.
+     * @param companyID users company
+     * @param serial item ID
+     * @param item the item as it is in the database
+     */
+    @WorkerThread
+    public void put(String companyID, String serial, InstrumentItem item) {
+        applyQueuedEdits(companyID, serial, item);
+        write(companyID, serial, marshall(item));
+        SearchIndex.getInstance().add(companyID, serial, item);
+    }
+
+    /**
+     * Take a copy of the item on the calling thread and write it on the disk executor,
+     * so the caller can keep changing the item
+     * @param companyID users company
+     * @param serial item ID
+     * @param item the item as it is now
+     */
+    public void save(final String companyID, final String serial, InstrumentItem item) {
+        final byte[] data = marshall(item);
+        final SearchIndex.Entry entry = SearchIndex.prepare(serial, item);
+        AppExecutors.disk().execute(() -> {
+            write(companyID, serial, data);
+            SearchIndex.getInstance().put(companyID, entry);
+        });
+    }
+
+    @WorkerThread
+    private void applyQueuedEdits(String companyID, String serial, InstrumentItem item) {
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_EDITS,
+                new String[] { LocalDatabase.COLUMN_FIELD, LocalDatabase.COLUMN_VALUE },
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_ITEM_ID + " = ?",
+                new String[] { companyID, serial }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                item.updateValue(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @WorkerThread
+    private void write(String companyID, String serial, byte[] data) {
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_COMPANY, companyID);
+        values.put(LocalDatabase.COLUMN_SERIAL, serial);
+        values.put(LocalDatabase.COLUMN_DATA, data);
+        values.put(LocalDatabase.COLUMN_VERSION, BuildConfig.VERSION_CODE);
+        values.put(LocalDatabase.COLUMN_UPDATED, System.currentTimeMillis());
+
+        mDatabase.getWritableDatabase().insertWithOnConflict(LocalDatabase.TABLE_ITEMS, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Remove the local copy, e.g. when the item no longer exists in the database
+     * @param companyID users company
+     * @param serial item ID
+     */
+    @WorkerThread
+    public void remove(String companyID, String serial) {
+        mDatabase.getWritableDatabase().delete(LocalDatabase.TABLE_ITEMS,
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_SERIAL + " = ?",
+                new String[] { companyID, serial });
+        SearchIndex.getInstance().remove(companyID, serial);
+    }
+
+    /**
+     * @param companyID users company
+     * @param limit maximum number of items
+     * @return the most recently stored items of the company, keyed by serial, newest first
+     */
+    @WorkerThread
+    public Map<String, InstrumentItem> recent(String companyID, int limit) {
+        Map<String, InstrumentItem> items = new LinkedHashMap<>();
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_ITEMS,
+                new String[] { LocalDatabase.COLUMN_SERIAL, LocalDatabase.COLUMN_DATA },
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_VERSION + " = ?",
+                new String[] { companyID, String.valueOf(BuildConfig.VERSION_CODE) },
+                null, null, LocalDatabase.COLUMN_UPDATED + " DESC", String.valueOf(limit));
+        try {
+            while (cursor.moveToNext()) {
+                try {
+                    items.put(cursor.getString(0), unmarshall(cursor.getBlob(1)));
+                } catch (RuntimeException e) {
+                    Timber.w(e, "ItemStore:recent %s", cursor.getString(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return items;
+    }
+
+    /**
+     * Decode every usable item of the company, one at a time so they don't all have to fit in memory
+     * @param companyID users company
+     * @param visitor called for every item
+     */
+    @WorkerThread
+    public void forEach(String companyID, Visitor visitor) {
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_ITEMS,
+                new String[] { LocalDatabase.COLUMN_SERIAL, LocalDatabase.COLUMN_DATA },
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_VERSION + " = ?",
+                new String[] { companyID, String.valueOf(BuildConfig.VERSION_CODE) }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                InstrumentItem item;
+                try {
+                    item = unmarshall(cursor.getBlob(1));
+                } catch (RuntimeException e) {
+                    Timber.w(e, "ItemStore:forEach %s", cursor.getString(0));
+                    continue;
+                }
+                visitor.visit(cursor.getString(0), item);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Check a batch of serials with a single query
+     * @param companyID users company
+     * @param serials item IDs
+     * @return the serials we have a local copy of, also from another app version
+     */
+    @WorkerThread
+    public Set<String> contains(String companyID, Collection<String> serials) {
+        Set<String> found = new HashSet<>();
+        if(serials.isEmpty()) {
+            return found;
+        }
+
+        StringBuilder selection = new StringBuilder(LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_SERIAL + " IN (");
+        String[] args = new String[serials.size() + 1];
+        args[0] = companyID;
+        int i = 1;
+        for (String serial : serials) {
+            selection.append(i > 1 ? ", ?" : "?");
+            args[i++] = serial;
+        }
+        selection.append(')');
+
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_ITEMS,
+                new String[] { LocalDatabase.COLUMN_SERIAL }, selection.toString(), args, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                found.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return found;
+    }
+
+    /**
+     * @param companyID users company
+     * @return all serials we have a local copy of
+     */
+    @WorkerThread
+    public Set<String> serials(String companyID) {
+        Set<String> serials = new HashSet<>();
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_ITEMS,
+                new String[] { LocalDatabase.COLUMN_SERIAL }, LocalDatabase.COLUMN_COMPANY + " = ?",
+                new String[] { companyID }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                serials.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return serials;
+    }
+
+    private static byte[] marshall(InstrumentItem item) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            item.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static InstrumentItem unmarshall(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return InstrumentItem.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
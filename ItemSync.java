@@ -0,0 +1,255 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.WorkerThread;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import nl.kimplusdelta.gereedschap.storage.ItemStore;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+import timber.log.Timber;
+
+/**
+ * Keeps the ItemStore in sync with items/{companyID} while the app runs.
+ * Only the items changed since the checkpoint are requested (orderByChild(UPDATED_AT).startAt(checkpoint)),
+ * so reconnecting after a shift offline only transfers what changed. Every write to an item sets
+ * UPDATED_AT to the server time for this to work.
+ *
+ * Items are decoded and stored on the disk executor, in the order the events come in.
+ * The checkpoint is the highest UPDATED_AT that is stored.
+ *
+ * Items written by clients that don't set UPDATED_AT, and items deleted outside the query window,
+ * are picked up by a full sync: the first time, and then every FULL_SYNC_INTERVAL.
+ * A full sync also removes the local copies of items that no longer exist.
+ *
+ * An item also leaves the incremental query when its UPDATED_AT drops out of the window, so a
+ * removed child is only deleted locally after checking that the item is really gone.
+ */
+public class ItemSync {
+
+    /**
+     * Server timestamp of the last change of an item
+     */
+    public static final String UPDATED_AT = "updatedAt";
+
+    private static final long FULL_SYNC_INTERVAL = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Start a little before the checkpoint, for writes that were committed with an older server time
+     * while we were reading
+     */
+    private static final long CHECKPOINT_MARGIN = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String PREFERENCES = "item_sync";
+    private static final String KEY_CHECKPOINT = "checkpoint_";
+    private static final String KEY_FULL_SYNC = "full_sync_";
+
+    private static ItemSync sInstance;
+
+    private final Context mContext;
+    private final ItemStore mStore;
+    private final SharedPreferences mPreferences;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private String mCompanyID;
+    private Query mQuery;
+    private ChildEventListener mListener;
+
+    /**
+     * Disk executor only: highest UPDATED_AT that is stored
+     */
+    private long mCheckpoint;
+
+    public static synchronized ItemSync getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new ItemSync(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ItemSync(Context context) {
+        mContext = context;
+        mStore = ItemStore.getInstance(context);
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Start following the items of the company, unless we already are
+     * @param companyID users company
+     */
+    @MainThread
+    public void start(final String companyID) {
+        if(companyID.equals(mCompanyID)) {
+            return;
+        }
+        stop();
+        mCompanyID = companyID;
+
+        final long checkpoint = mPreferences.getLong(KEY_CHECKPOINT + companyID, 0);
+        long lastFullSync = mPreferences.getLong(KEY_FULL_SYNC + companyID, 0);
+        final boolean full = System.currentTimeMillis() - lastFullSync > FULL_SYNC_INTERVAL;
+        AppExecutors.disk().execute(() -> mCheckpoint = full ? 0 : checkpoint);
+
+        Query query = FirebaseDatabase.getInstance().getReference("items").child(companyID);
+        if(!full) {
+            query = query.orderByChild(UPDATED_AT).startAt(Math.max(0, checkpoint - CHECKPOINT_MARGIN));
+        }
+        Timber.d("ItemSync:start %s %s", companyID, full ? "full" : "since " + checkpoint);
+
+        final Set<String> seen = full ? new HashSet<>() : null;
+        mQuery = query;
+        mListener = new ChildEventListener() {
+            @Override
+            public void onChildAdded(DataSnapshot dataSnapshot, String previousChildName) {
+                if(seen != null) {
+                    seen.add(dataSnapshot.getKey());
+                }
+                apply(companyID, dataSnapshot);
+            }
+
+            @Override
+            public void onChildChanged(DataSnapshot dataSnapshot, String previousChildName) {
+                apply(companyID, dataSnapshot);
+            }
+
+            @Override
+            public void onChildRemoved(DataSnapshot dataSnapshot) {
+                if(full) {
+                    remove(companyID, dataSnapshot.getKey());
+                } else {
+                    removeIfGone(companyID, dataSnapshot.getKey());
+                }
+            }
+
+            @Override
+            public void onChildMoved(DataSnapshot dataSnapshot, String previousChildName) {
+                // ordering is not used
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                Timber.w(databaseError.toException(), "ItemSync:onCancelled");
+            }
+        };
+        mQuery.addChildEventListener(mListener);
+
+        if(full) {
+            // the value event comes after all the initial child events of the same query
+            mQuery.addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot dataSnapshot) {
+                    if(companyID.equals(mCompanyID)) {
+                        reconcile(companyID, seen);
+                    }
+                }
+
+                @Override
+                public void onCancelled(DatabaseError databaseError) {
+                    Timber.w(databaseError.toException(), "ItemSync:fullSync");
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop following the items, e.g. when the user logs out
+     */
+    @MainThread
+    public void stop() {
+        if(mQuery != null) {
+            mQuery.removeEventListener(mListener);
+        }
+        mQuery = null;
+        mListener = null;
+        mCompanyID = null;
+    }
+
+    /**
+     * Decode and store an added or changed item
+     */
+    private void apply(final String companyID, final DataSnapshot snapshot) {
+        AppExecutors.disk().execute(() -> {
+            final String serial = snapshot.getKey();
+            final InstrumentItem item = decode(snapshot);
+            if(item == null) {
+                return;
+            }
+
+            mStore.put(companyID, serial, item);
+            Long updatedAt = snapshot.child(UPDATED_AT).getValue(Long.class);
+            if(updatedAt != null && updatedAt > mCheckpoint) {
+                mCheckpoint = updatedAt;
+                mPreferences.edit().putLong(KEY_CHECKPOINT + companyID, updatedAt).apply();
+            }
+
+            mHandler.post(() -> ItemRepository.getInstance(mContext).refresh(companyID, serial, item));
+        });
+    }
+
+    private static InstrumentItem decode(DataSnapshot snapshot) {
+        try {
+            return snapshot.getValue(InstrumentItem.class);
+        } catch (DatabaseException e) {
+            Timber.w(e, "ItemSync:decode %s", snapshot.getKey());
+            return null;
+        }
+    }
+
+    private void remove(final String companyID, final String serial) {
+        AppExecutors.disk().execute(() -> mStore.remove(companyID, serial));
+    }
+
+    /**
+     * Remove the local copy only when the item no longer exists in the database
+     */
+    private void removeIfGone(final String companyID, final String serial) {
+        DatabaseTasks.get(FirebaseDatabase.getInstance().getReference("items").child(companyID).child(serial))
+                .addOnCompleteListener(task -> {
+                    if(!task.isSuccessful()) {
+                        // the next full sync decides
+                        Timber.w(task.getException(), "ItemSync:removeIfGone %s", serial);
+                    } else if(!task.getResult().exists()) {
+                        remove(companyID, serial);
+                    }
+                });
+    }
+
+    /**
+     * End of a full sync: remove what is no longer in the database and remember the time
+     * @param seen serials in the database
+     */
+    private void reconcile(final String companyID, final Set<String> seen) {
+        final Set<String> present = new HashSet<>(seen);
+        AppExecutors.disk().execute(() -> {
+            removeMissing(companyID, present);
+            mPreferences.edit()
+                    .putLong(KEY_FULL_SYNC + companyID, System.currentTimeMillis())
+                    .putLong(KEY_CHECKPOINT + companyID, mCheckpoint)
+                    .apply();
+            Timber.d("ItemSync:fullSync %s, %d items", companyID, present.size());
+        });
+    }
+
+    @WorkerThread
+    private void removeMissing(String companyID, Set<String> present) {
+        for (String serial : mStore.serials(companyID)) {
+            if(!present.contains(serial)) {
+                mStore.remove(companyID, serial);
+            }
+        }
+    }
+}
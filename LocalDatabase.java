@@ -0,0 +1,242 @@
+package nl.kimplusdelta.gereedschap.storage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * On-device database that backs the local stores and caches.
+ * Everything in here can be rebuilt from Firebase, so an upgrade only adds the missing tables.
+ */
+public class LocalDatabase extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "gereedschap.db";
+    private static final int DATABASE_VERSION = 11;
+
+    /**
+     * Items table: one InstrumentItem per company and serial
+     */
+    public static final String TABLE_ITEMS = "items";
+    public static final String COLUMN_COMPANY = "company";
+    public static final String COLUMN_SERIAL = "serial";
+    public static final String COLUMN_DATA = "data";
+    public static final String COLUMN_VERSION = "version";
+    public static final String COLUMN_UPDATED = "updated";
+
+    private static final String CREATE_ITEMS = "CREATE TABLE IF NOT EXISTS " + TABLE_ITEMS + " ("
+            + COLUMN_COMPANY + " TEXT NOT NULL, "
+            + COLUMN_SERIAL + " TEXT NOT NULL, "
+            + COLUMN_DATA + " BLOB NOT NULL, "
+            + COLUMN_VERSION + " INTEGER NOT NULL, "
+            + COLUMN_UPDATED + " INTEGER NOT NULL, "
+            + "PRIMARY KEY (" + COLUMN_COMPANY + ", " + COLUMN_SERIAL + "))";
+
+    /**
+     * Resolved storage download URLs per company and storage filename
+     */
+    public static final String TABLE_URLS = "download_urls";
+    public static final String COLUMN_FILENAME = "filename";
+    public static final String COLUMN_URL = "url";
+    public static final String COLUMN_EXPIRES = "expires";
+
+    private static final String CREATE_URLS = "CREATE TABLE IF NOT EXISTS " + TABLE_URLS + " ("
+            + COLUMN_COMPANY + " TEXT NOT NULL, "
+            + COLUMN_FILENAME + " TEXT NOT NULL, "
+            + COLUMN_URL + " TEXT NOT NULL, "
+            + COLUMN_EXPIRES + " INTEGER NOT NULL, "
+            + "PRIMARY KEY (" + COLUMN_COMPANY + ", " + COLUMN_FILENAME + "))";
+
+    /**
+     * Pending uploads, see UploadQueue
+     */
+    public static final String TABLE_UPLOADS = "uploads";
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_ITEM_ID = "item_id";
+    public static final String COLUMN_TYPE = "type";
+    public static final String COLUMN_ORIGINAL = "original";
+    public static final String COLUMN_PATH = "path";
+    public static final String COLUMN_CONTENT_TYPE = "content_type";
+    public static final String COLUMN_DISPLAY_NAME = "display_name";
+    public static final String COLUMN_SESSION_URI = "session_uri";
+    public static final String COLUMN_STATE = "state";
+    public static final String COLUMN_ATTEMPTS = "attempts";
+    public static final String COLUMN_NEXT_ATTEMPT = "next_attempt";
+    public static final String COLUMN_HASH = "hash";
+    public static final String COLUMN_BATCH = "batch";
+
+    private static final String CREATE_UPLOADS = "CREATE TABLE IF NOT EXISTS " + TABLE_UPLOADS + " ("
+            + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + COLUMN_COMPANY + " TEXT NOT NULL, "
+            + COLUMN_ITEM_ID + " TEXT NOT NULL, "
+            + COLUMN_TYPE + " TEXT NOT NULL, "
+            + COLUMN_FILENAME + " TEXT NOT NULL, "
+            + COLUMN_ORIGINAL + " TEXT NOT NULL, "
+            + COLUMN_PATH + " TEXT NOT NULL, "
+            + COLUMN_CONTENT_TYPE + " TEXT, "
+            + COLUMN_DISPLAY_NAME + " TEXT, "
+            + COLUMN_SESSION_URI + " TEXT, "
+            + COLUMN_STATE + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_NEXT_ATTEMPT + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_HASH + " TEXT, "
+            + COLUMN_BATCH + " TEXT)";
+
+    /**
+     * Downloaded documents, see DocumentCache
+     */
+    public static final String TABLE_DOCUMENTS = "documents";
+    public static final String COLUMN_MD5 = "md5";
+    public static final String COLUMN_GENERATION = "generation";
+    public static final String COLUMN_SIZE = "size";
+    public static final String COLUMN_VALIDATED = "validated";
+    public static final String COLUMN_LAST_ACCESS = "last_access";
+
+    private static final String CREATE_DOCUMENTS = "CREATE TABLE IF NOT EXISTS " + TABLE_DOCUMENTS + " ("
+            + COLUMN_PATH + " TEXT PRIMARY KEY, "
+            + COLUMN_FILENAME + " TEXT NOT NULL, "
+            + COLUMN_MD5 + " TEXT, "
+            + COLUMN_GENERATION + " TEXT, "
+            + COLUMN_SIZE + " INTEGER NOT NULL, "
+            + COLUMN_VALIDATED + " INTEGER NOT NULL, "
+            + COLUMN_LAST_ACCESS + " INTEGER NOT NULL)";
+
+    /**
+     * Item edits that are not written to Firebase yet, one row per field, see EditQueue
+     */
+    public static final String TABLE_EDITS = "edits";
+    public static final String COLUMN_FIELD = "field";
+    public static final String COLUMN_VALUE = "value";
+    public static final String COLUMN_BASE = "base";
+    public static final String COLUMN_EDITED = "edited";
+
+    private static final String CREATE_EDITS = "CREATE TABLE IF NOT EXISTS " + TABLE_EDITS + " ("
+            + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + COLUMN_COMPANY + " TEXT NOT NULL, "
+            + COLUMN_ITEM_ID + " TEXT NOT NULL, "
+            + COLUMN_FIELD + " TEXT NOT NULL, "
+            + COLUMN_VALUE + " TEXT, "
+            + COLUMN_BASE + " TEXT, "
+            + COLUMN_EDITED + " INTEGER NOT NULL, "
+            + COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_NEXT_ATTEMPT + " INTEGER NOT NULL DEFAULT 0, "
+            + "UNIQUE (" + COLUMN_COMPANY + ", " + COLUMN_ITEM_ID + ", " + COLUMN_FIELD + "))";
+
+    /**
+     * Fields that were changed by someone else while an edit was queued, for the user to review
+     */
+    public static final String TABLE_CONFLICTS = "edit_conflicts";
+    public static final String COLUMN_REMOTE_VALUE = "remote_value";
+    public static final String COLUMN_KEPT_LOCAL = "kept_local";
+
+    private static final String CREATE_CONFLICTS = "CREATE TABLE IF NOT EXISTS " + TABLE_CONFLICTS + " ("
+            + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + COLUMN_COMPANY + " TEXT NOT NULL, "
+            + COLUMN_ITEM_ID + " TEXT NOT NULL, "
+            + COLUMN_FIELD + " TEXT NOT NULL, "
+            + COLUMN_VALUE + " TEXT, "
+            + COLUMN_REMOTE_VALUE + " TEXT, "
+            + COLUMN_KEPT_LOCAL + " INTEGER NOT NULL, "
+            + COLUMN_EDITED + " INTEGER NOT NULL)";
+
+    /**
+     * Files of which the ContentIndex reference still has to be released, and storage objects
+     * that still have to be deleted, see DeleteQueue.
+     * A file has at most one row per state, the releases of a file that was removed from several items add up.
+     */
+    public static final String TABLE_DELETES = "storage_deletes";
+    public static final String COLUMN_VARIANTS = "variants";
+    public static final String COLUMN_RELEASES = "releases";
+
+    private static final String CREATE_DELETES = "CREATE TABLE IF NOT EXISTS " + TABLE_DELETES + " ("
+            + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + COLUMN_COMPANY + " TEXT NOT NULL, "
+            + COLUMN_FILENAME + " TEXT NOT NULL, "
+            + COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_NEXT_ATTEMPT + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_STATE + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_VARIANTS + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_RELEASES + " INTEGER NOT NULL DEFAULT 1, "
+            + "UNIQUE (" + COLUMN_COMPANY + ", " + COLUMN_FILENAME + ", " + COLUMN_STATE + "))";
+
+    private static LocalDatabase sInstance;
+
+    public static synchronized LocalDatabase getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new LocalDatabase(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LocalDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(CREATE_ITEMS);
+        db.execSQL(CREATE_URLS);
+        db.execSQL(CREATE_UPLOADS);
+        db.execSQL(CREATE_DOCUMENTS);
+        db.execSQL(CREATE_EDITS);
+        db.execSQL(CREATE_CONFLICTS);
+        db.execSQL(CREATE_DELETES);
+    }
+
+    /**
+     * All tables are created with IF NOT EXISTS, so upgrading only has to add the new ones
+     * and the columns that were added to existing tables, and copy a table whose constraints changed
+     * @param db
+     * @param oldVersion
+     * @param newVersion
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        onCreate(db);
+        addColumn(db, TABLE_UPLOADS, COLUMN_HASH, "TEXT");
+        addColumn(db, TABLE_UPLOADS, COLUMN_BATCH, "TEXT");
+        addColumn(db, TABLE_DELETES, COLUMN_STATE, "INTEGER NOT NULL DEFAULT 0");
+        addColumn(db, TABLE_DELETES, COLUMN_VARIANTS, "INTEGER NOT NULL DEFAULT 0");
+        addColumn(db, TABLE_EDITS, COLUMN_ATTEMPTS, "INTEGER NOT NULL DEFAULT 0");
+        addColumn(db, TABLE_EDITS, COLUMN_NEXT_ATTEMPT, "INTEGER NOT NULL DEFAULT 0");
+        if(oldVersion < 11) {
+            recreateDeletes(db);
+        }
+    }
+
+    /**
+     * The deletes used to be unique per file, a constraint can only be changed by copying the table
+     */
+    private static void recreateDeletes(SQLiteDatabase db) {
+        String columns = COLUMN_ID + ", " + COLUMN_COMPANY + ", " + COLUMN_FILENAME + ", " + COLUMN_ATTEMPTS + ", "
+                + COLUMN_NEXT_ATTEMPT + ", " + COLUMN_STATE + ", " + COLUMN_VARIANTS;
+        db.beginTransaction();
+        try {
+            db.execSQL("ALTER TABLE " + TABLE_DELETES + " RENAME TO " + TABLE_DELETES + "_old");
+            db.execSQL(CREATE_DELETES);
+            db.execSQL("INSERT INTO " + TABLE_DELETES + " (" + columns + ") SELECT " + columns
+                    + " FROM " + TABLE_DELETES + "_old");
+            db.execSQL("DROP TABLE " + TABLE_DELETES + "_old");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Add a column to a table that was created by an older version
+     */
+    private static void addColumn(SQLiteDatabase db, String table, String column, String type) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                if(column.equals(cursor.getString(cursor.getColumnIndexOrThrow("name")))) {
+                    return;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+    }
+}
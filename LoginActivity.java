@@ -1,5 +1,6 @@
 package nl.kimplusdelta.gereedschap.activity;
 
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
@@ -13,6 +14,7 @@ import android.widget.Toast;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseAuthInvalidUserException;
 import com.google.firebase.auth.FirebaseUser;
 
 import java.util.Locale;
@@ -23,6 +25,7 @@ import butterknife.OnClick;
 import nl.kimplusdelta.gereedschap.MyApplication;
 import nl.kimplusdelta.gereedschap.R;
 import nl.kimplusdelta.gereedschap.utils.ConnectionUtils;
+import nl.kimplusdelta.gereedschap.utils.StartupTrace;
 import timber.log.Timber;
 
 /**
@@ -38,7 +41,8 @@ public class LoginActivity extends AppCompatActivity implements GoogleApiClient.
     private FirebaseAuth.AuthStateListener mAuthListener;
 
     /**
-     * Init the view
+     * Go straight to the MainActivity when there is a cached session, before any view is inflated
+     * Otherwise init the view
      * Load the username from shared prefs
      * Request focus to the correct view
      * Initialize firebase
@@ -47,6 +51,18 @@ public class LoginActivity extends AppCompatActivity implements GoogleApiClient.
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.mark(StartupTrace.LOGIN_CREATED);
+
+        FirebaseUser cachedUser = FirebaseAuth.getInstance().getCurrentUser();
+        if(cachedUser != null) {
+            Timber.d("onCreate:cached_session:%s", cachedUser.getUid());
+            StartupTrace.setPath(StartupTrace.PATH_CACHED);
+            validateSession(getApplicationContext(), cachedUser);
+            startMainActivity();
+            finish();
+            return;
+        }
+
         setContentView(R.layout.activity_login);
         ButterKnife.bind(this);
 
@@ -79,6 +95,28 @@ public class LoginActivity extends AppCompatActivity implements GoogleApiClient.
         };
     }
 
+    /**
+     * Refresh the cached session in the background.
+     * Only a session the server rejects (account disabled, deleted or password changed) sends the user back
+     * to the login screen; without a connection the cached session is kept, like the Firebase SDK does.
+     * @param context application context, the LoginActivity is already finished
+     * @param user cached user
+     */
+    private static void validateSession(final Context context, FirebaseUser user) {
+        user.reload().addOnFailureListener(e -> {
+            if(!(e instanceof FirebaseAuthInvalidUserException)) {
+                Timber.d(e, "validateSession:kept");
+                return;
+            }
+
+            Timber.w(e, "validateSession:rejected");
+            FirebaseAuth.getInstance().signOut();
+            Intent intent = new Intent(context, LoginActivity.class);
+            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+            context.startActivity(intent);
+        });
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -171,6 +209,10 @@ public class LoginActivity extends AppCompatActivity implements GoogleApiClient.
         prefEditor.putString("username", mUserNameEditText.getText().toString());
         prefEditor.apply();
 
+        startMainActivity();
+    }
+
+    private void startMainActivity() {
         Intent intent = new Intent(LoginActivity.this, MainActivity.class);
         intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
         startActivity(intent);
@@ -5,14 +5,19 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.ListPopupWindow;
+import android.text.Editable;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.ArrayAdapter;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.database.DataSnapshot;
@@ -24,13 +29,29 @@ import com.google.firebase.database.ValueEventListener;
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
+import butterknife.OnLongClick;
+import butterknife.OnTextChanged;
 import nl.kimplusdelta.gereedschap.MyApplication;
 import nl.kimplusdelta.gereedschap.R;
-import nl.kimplusdelta.gereedschap.firebase.FirebaseHelper;
+import nl.kimplusdelta.gereedschap.firebase.DeleteQueue;
+import nl.kimplusdelta.gereedschap.firebase.EditQueue;
+import nl.kimplusdelta.gereedschap.firebase.ItemLookup;
+import nl.kimplusdelta.gereedschap.firebase.ItemSync;
+import nl.kimplusdelta.gereedschap.firebase.UploadQueue;
+import nl.kimplusdelta.gereedschap.storage.SearchIndex;
+import nl.kimplusdelta.gereedschap.storage.UserPreferences;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+import nl.kimplusdelta.gereedschap.utils.StartupTrace;
 import timber.log.Timber;
 
 public class MainActivity extends AppCompatActivity {
 
+    /**
+     * Wait this long after the last key stroke before searching
+     */
+    private static final long SUGGESTION_DELAY = 150;
+    private static final int MAX_SUGGESTIONS = 20;
+
     /**
      * EditText where the user can fill in his serial number
      */
@@ -41,36 +62,156 @@ public class MainActivity extends AppCompatActivity {
      */
     private String mCompanyId = "";
 
+    /**
+     * Start the QR scanner in inventory mode once the camera permission is granted
+     */
+    private boolean mInventoryRequested;
+
+    /**
+     * Suggestions from the local SearchIndex below the serial field
+     */
+    private ListPopupWindow mSuggestionPopup;
+    private ArrayAdapter<SearchIndex.Suggestion> mSuggestionAdapter;
+    private final Handler mSuggestionHandler = new Handler();
+    private final Runnable mSuggestionRunnable = this::searchSuggestions;
 
     /**
-     * Start the activity and retrieve the CompanyID from the singed in user
+     * Only the results of the latest search are shown
+     */
+    private int mSearchGeneration;
+
+
+    /**
+     * Start the activity and retrieve the CompanyID from the singed in user.
+     * The CompanyID of the previous session is used right away and revalidated in the background.
+     * Resume any uploads that did not finish in a previous session.
      * @param savedInstanceState
      */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
 
         super.onCreate(savedInstanceState);
+        StartupTrace.mark(StartupTrace.MAIN_CREATED);
         setContentView(R.layout.activity_main);
         ButterKnife.bind(this);
+        // the first frame is drawn before the queued message runs
+        getWindow().getDecorView().post(() -> StartupTrace.mark(StartupTrace.MAIN_DRAWN));
+
+        setUpSuggestions();
+
+        final String uid = getUid();
+        final String storedCompanyId = UserPreferences.getCompanyID(this, uid);
+        if(storedCompanyId != null) {
+            applyCompanyId(storedCompanyId);
+        }
 
         final DatabaseReference mDatabase = FirebaseDatabase.getInstance().getReference();
 
         // retrieve company id
-        mDatabase.child("users").child(getUid()).addListenerForSingleValueEvent(
+        mDatabase.child("users").child(uid).addListenerForSingleValueEvent(
                 new ValueEventListener() {
                     @Override
                     public void onDataChange(DataSnapshot dataSnapshot) {
-                        mCompanyId = (String) dataSnapshot.child("company").getValue();
-                        ((MyApplication)getApplication()).setCompanyID(mCompanyId);
+                        String companyId = (String) dataSnapshot.child("company").getValue();
+                        UserPreferences.setCompanyID(MainActivity.this, uid, companyId);
+                        if(companyId == null || !companyId.equals(storedCompanyId)) {
+                            applyCompanyId(companyId);
+                        }
                     }
 
                     @Override
                     public void onCancelled(DatabaseError databaseError) {
                         Timber.w(databaseError.toException(), "getUser:onCancelled");
+                        // no access (anymore), don't keep using the stored company
+                        UserPreferences.setCompanyID(MainActivity.this, uid, null);
                         finish();
                     }
                 });
 
+        // continue the uploads, edits and deletes of a previous session
+        UploadQueue.getInstance(this).start();
+        EditQueue.getInstance(this).start();
+        DeleteQueue.getInstance(this).start();
+    }
+
+    /**
+     * Use the CompanyID for the item paths, and use the time until the user scans
+     * to load the local data of the company into memory.
+     * From then on the local store follows the changes to the items of the company.
+     * @param companyId users company, null when the user has none
+     */
+    private void applyCompanyId(String companyId) {
+        mCompanyId = companyId;
+        ((MyApplication)getApplication()).setCompanyID(companyId);
+        if(companyId != null && !companyId.isEmpty()) {
+            StartupTrace.mark(StartupTrace.COMPANY_READY);
+            ItemLookup.warmUp(this, companyId);
+            ItemSync.getInstance(this).start(companyId);
+        } else {
+            ItemSync.getInstance(this).stop();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mSuggestionHandler.removeCallbacks(mSuggestionRunnable);
+        mSuggestionPopup.dismiss();
+    }
+
+    private void setUpSuggestions() {
+        mSuggestionAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        mSuggestionPopup = new ListPopupWindow(this);
+        mSuggestionPopup.setAnchorView(mSerialNumber);
+        mSuggestionPopup.setAdapter(mSuggestionAdapter);
+        mSuggestionPopup.setInputMethodMode(ListPopupWindow.INPUT_METHOD_NEEDED);
+        mSuggestionPopup.setOnItemClickListener((parent, view, position, id) -> {
+            SearchIndex.Suggestion suggestion = mSuggestionAdapter.getItem(position);
+            mSuggestionPopup.dismiss();
+            if(suggestion != null) {
+                mSerialNumber.setText(suggestion.serial);
+                mSerialNumber.setSelection(suggestion.serial.length());
+                mSuggestionHandler.removeCallbacks(mSuggestionRunnable);
+                checkItem(suggestion.serial);
+            }
+        });
+    }
+
+    /**
+     * Search again once the user stops typing
+     */
+    @OnTextChanged(value = R.id.serialNumber, callback = OnTextChanged.Callback.AFTER_TEXT_CHANGED)
+    public void onSerialChanged(Editable text) {
+        mSuggestionHandler.removeCallbacks(mSuggestionRunnable);
+        mSuggestionHandler.postDelayed(mSuggestionRunnable, SUGGESTION_DELAY);
+    }
+
+    /**
+     * Look up the typed text in the local SearchIndex, off the main thread
+     */
+    private void searchSuggestions() {
+        final int generation = ++mSearchGeneration;
+        final String query = mSerialNumber.getText().toString();
+        final String companyId = mCompanyId;
+        if(query.trim().isEmpty() || companyId == null || companyId.isEmpty()) {
+            mSuggestionPopup.dismiss();
+            return;
+        }
+
+        Tasks.call(AppExecutors.worker(), () -> SearchIndex.getInstance().search(companyId, query, MAX_SUGGESTIONS))
+                .addOnSuccessListener(this, suggestions -> {
+                    if(generation != mSearchGeneration) {
+                        return;
+                    }
+
+                    mSuggestionAdapter.clear();
+                    mSuggestionAdapter.addAll(suggestions);
+                    if(suggestions.isEmpty()) {
+                        mSuggestionPopup.dismiss();
+                    } else if(!mSuggestionPopup.isShowing()) {
+                        mSuggestionPopup.show();
+                    }
+                });
     }
 
     /**
@@ -94,7 +235,7 @@ public class MainActivity extends AppCompatActivity {
                     }
                 }
                 if(finalResult) {
-                    showQR();
+                    showQR(mInventoryRequested);
                 } else {
                     Toast.makeText(this, R.string.we_need_the_permissions, Toast.LENGTH_LONG).show();
                 }
@@ -115,16 +256,34 @@ public class MainActivity extends AppCompatActivity {
      */
     @OnClick(R.id.qrscan)
     public void onQRClicked() {
+        requestQR(false);
+    }
+
+    /**
+     * Long press starts a stock check, which keeps scanning until the user finishes it
+     */
+    @OnLongClick(R.id.qrscan)
+    public boolean onQRLongClicked() {
+        requestQR(true);
+        return true;
+    }
+
+    /**
+     * Check if the camera permission is enabled, else prompt the user with the permission dialog
+     * @param inventory start the scanner in inventory mode
+     */
+    private void requestQR(boolean inventory) {
+        mInventoryRequested = inventory;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             boolean externalStoragePermission = ContextCompat.checkSelfPermission(getApplicationContext(),
                     Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED;
             if (!externalStoragePermission) {
                 requestPermissions(new String[]{Manifest.permission.CAMERA}, 0);
             } else {
-                showQR();
+                showQR(inventory);
             }
         } else {
-            showQR();
+            showQR(inventory);
         }
     }
 
@@ -137,6 +296,17 @@ public class MainActivity extends AppCompatActivity {
         startActivity(intent);
     }
 
+    /**
+     * Long press starts a tag walk, for tapping through a rack of tools
+     */
+    @OnLongClick(R.id.nfcscan)
+    public boolean onNFCLongClicked() {
+        Intent intent = new Intent(MainActivity.this, NfcReaderActivity.class);
+        intent.putExtra(NfcReaderActivity.EXTRA_TAG_WALK, true);
+        startActivity(intent);
+        return true;
+    }
+
     /**
      * Check the serial filled in by the user is empty and handle the request
      */
@@ -162,6 +332,7 @@ public class MainActivity extends AppCompatActivity {
 
         switch (id) {
             case R.id.action_logout:
+                ItemSync.getInstance(this).stop();
                 FirebaseAuth.getInstance().signOut();
                 navigateToLogin();
                 return true;
@@ -174,18 +345,20 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Call the helper class to check the serial against the database entries
+     * Check the serial against the local store first, then against the database entries
      * @param serial item ID
      */
     private void checkItem(String serial) {
-        FirebaseHelper.startItemActivity(this, serial, false);
+        ItemLookup.startItemActivity(this, serial, false);
     }
 
     /**
      * Start QR Scanner activity
+     * @param inventory start a stock check instead of opening a single item
      */
-    private void showQR() {
+    private void showQR(boolean inventory) {
         Intent intent = new Intent(MainActivity.this, QrScannerActivity.class);
+        intent.putExtra(QrScannerActivity.EXTRA_INVENTORY, inventory);
         startActivity(intent);
     }
 
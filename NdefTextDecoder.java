@@ -0,0 +1,34 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+import java.nio.charset.Charset;
+
+/**
+ * Decodes the payload of an NDEF text record (RTD_TEXT).
+ * The first byte holds the encoding flag and the length of the language code that precedes the text.
+ * Plain Java, so it can be benchmarked without a device.
+ */
+public final class NdefTextDecoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+
+    private NdefTextDecoder() {}
+
+    /**
+     * @param payload payload of a well known text record
+     * @return the text, or null when the payload is malformed
+     */
+    public static String decode(byte[] payload) {
+        if(payload == null || payload.length == 0) {
+            return null;
+        }
+
+        Charset textEncoding = ((payload[0] & 128) == 0) ? UTF_8 : UTF_16;
+        int langCodeLen = payload[0] & 63;
+        if(langCodeLen + 1 > payload.length) {
+            return null;
+        }
+
+        return new String(payload, langCodeLen + 1, payload.length - langCodeLen - 1, textEncoding);
+    }
+}
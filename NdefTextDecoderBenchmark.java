@@ -0,0 +1,61 @@
+package nl.kimplusdelta.gereedschap.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import nl.kimplusdelta.gereedschap.utils.NdefTextDecoder;
+
+/**
+ * Decoding the serial from the text record of a tag, run on every NFC tap
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NdefTextDecoderBenchmark {
+
+    /**
+     * A serial like the ones written on our tags
+     */
+    private static final String SERIAL = "GS-2017-004512";
+
+    private byte[] mUtf8Payload;
+    private byte[] mUtf16Payload;
+
+    @Setup
+    public void setUp() {
+        mUtf8Payload = payload(SERIAL, "en", false);
+        mUtf16Payload = payload(SERIAL, "nl", true);
+    }
+
+    @Benchmark
+    public String decodeUtf8() {
+        return NdefTextDecoder.decode(mUtf8Payload);
+    }
+
+    @Benchmark
+    public String decodeUtf16() {
+        return NdefTextDecoder.decode(mUtf16Payload);
+    }
+
+    /**
+     * Build the payload the way NdefRecord.createTextRecord does
+     */
+    private static byte[] payload(String text, String language, boolean utf16) {
+        byte[] languageBytes = language.getBytes(Charset.forName("US-ASCII"));
+        byte[] textBytes = text.getBytes(Charset.forName(utf16 ? "UTF-16" : "UTF-8"));
+
+        byte[] payload = new byte[1 + languageBytes.length + textBytes.length];
+        payload[0] = (byte) ((utf16 ? 128 : 0) | languageBytes.length);
+        System.arraycopy(languageBytes, 0, payload, 1, languageBytes.length);
+        System.arraycopy(textBytes, 0, payload, 1 + languageBytes.length, textBytes.length);
+        return payload;
+    }
+}
@@ -3,30 +3,68 @@ package nl.kimplusdelta.gereedschap.activity;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.media.AudioManager;
+import android.media.ToneGenerator;
 import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
 import android.nfc.NfcAdapter;
 import android.nfc.tech.NfcF;
 import android.os.Bundle;
 import android.os.Parcelable;
+import android.os.SystemClock;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.Menu;
 import android.view.MenuItem;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 import nl.kimplusdelta.gereedschap.MyApplication;
 import nl.kimplusdelta.gereedschap.R;
-import nl.kimplusdelta.gereedschap.firebase.FirebaseHelper;
+import nl.kimplusdelta.gereedschap.adapter.InventoryChecklistAdapter;
+import nl.kimplusdelta.gereedschap.firebase.InventorySession;
+import nl.kimplusdelta.gereedschap.firebase.ItemLookup;
+import nl.kimplusdelta.gereedschap.utils.NdefTextDecoder;
+import nl.kimplusdelta.gereedschap.utils.ScanDebouncer;
+import nl.kimplusdelta.gereedschap.utils.TagSerialCache;
+import timber.log.Timber;
 
 /**
- * Start an NFC adapter to listen to NFC dispatches
+ * Start an NFC adapter to listen to NFC dispatches.
+ * In tag walk mode (EXTRA_TAG_WALK) every tag is collected in an InventorySession instead of
+ * opening the item, so the user can tap through a rack of tools.
  */
 public class NfcReaderActivity extends AppCompatActivity {
 
+    /**
+     * Intent extra: collect the tapped tags instead of opening a single item
+     */
+    public static final String EXTRA_TAG_WALK = "tag_walk";
+
+    /**
+     * Intent extra: time in milliseconds in which a repeated tap of the same tag is ignored
+     */
+    public static final String EXTRA_DEDUPE_WINDOW = "dedupe_window";
+
+    public static final long DEFAULT_DEDUPE_WINDOW = 3000;
+
+    /**
+     * Batch the lookups of a tag walk only briefly, a tap should show its result within 100ms
+     */
+    private static final long TAG_WALK_BATCH_DELAY = 50;
+
+    private static final int SUMMARY_LIST_SIZE = 50;
+
+    private static final int MENU_FINISH = Menu.FIRST;
+
     /**
      * NfcAdapter with variables to catch nfc dispatches
      */
@@ -36,9 +74,22 @@ public class NfcReaderActivity extends AppCompatActivity {
     private String[][] mNFCTechLists;
 
     /**
-     * A list to hold all the checked IDs so we don't check the same ID multiple times
+     * Ignores repeated taps of the same tag within the dedupe window
+     */
+    private ScanDebouncer mDebouncer;
+
+    /**
+     * Tag walk mode fields
+     */
+    private boolean mTagWalk;
+    private InventorySession mSession;
+    private InventoryChecklistAdapter mChecklistAdapter;
+    private ToneGenerator mTone;
+
+    /**
+     * Time of the tap per serial that is still being looked up, to log the per tap latency
      */
-    private List<String> mCheckedIDs;
+    private final Map<String, Long> mTapTimes = new HashMap<>();
 
     /**
      * Setup this activity with an NfcAdapter
@@ -47,13 +98,20 @@ public class NfcReaderActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_nfc_reader);
+
+        String companyID = ((MyApplication) getApplication()).companyID;
+        mTagWalk = getIntent().getBooleanExtra(EXTRA_TAG_WALK, false) && companyID != null && !companyID.isEmpty();
+        if(mTagWalk) {
+            setUpTagWalk(companyID, savedInstanceState);
+        } else {
+            setContentView(R.layout.activity_nfc_reader);
+        }
 
         if(getSupportActionBar() != null) {
             getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         }
 
-        mCheckedIDs = new ArrayList<>();
+        mDebouncer = new ScanDebouncer(getIntent().getLongExtra(EXTRA_DEDUPE_WINDOW, DEFAULT_DEDUPE_WINDOW));
 
         mNfcAdapter = NfcAdapter.getDefaultAdapter(this);
         if (mNfcAdapter == null) {
@@ -82,12 +140,70 @@ public class NfcReaderActivity extends AppCompatActivity {
         mNFCTechLists = new String[][] { new String[] { NfcF.class.getName() } };
     }
 
+    /**
+     * The usual NFC instructions on top, the checklist below.
+     * Tapping a row in the checklist opens the item.
+     * @param state saved state with the session to restore, or null
+     */
+    private void setUpTagWalk(String companyID, Bundle state) {
+        mSession = new InventorySession(this, companyID);
+        mSession.setBatchDelay(TAG_WALK_BATCH_DELAY);
+        mSession.setListener(sessionListener);
+        mTone = new ToneGenerator(AudioManager.STREAM_NOTIFICATION, 80);
+        mChecklistAdapter = new InventoryChecklistAdapter(this, mSession);
+        if(state != null) {
+            for (String serial : mSession.restore(state)) {
+                mChecklistAdapter.addSerial(serial);
+            }
+        }
+
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.addView(getLayoutInflater().inflate(R.layout.activity_nfc_reader, layout, false),
+                new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+
+        ListView checklist = new ListView(this);
+        checklist.setAdapter(mChecklistAdapter);
+        checklist.setOnItemClickListener((parent, view, position, id) ->
+                ItemLookup.startItemActivity(this, mChecklistAdapter.getItem(position), true));
+        layout.addView(checklist, new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1f));
+        setContentView(layout);
+        updateTitle();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if(mSession != null) {
+            mSession.save(outState);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(mTone != null) {
+            mTone.release();
+        }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        if(mTagWalk) {
+            menu.add(0, MENU_FINISH, Menu.NONE, "Finish").setShowAsAction(MenuItem.SHOW_AS_ACTION_ALWAYS);
+        }
+        return super.onCreateOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case android.R.id.home:
                 finish();
                 return true;
+            case MENU_FINISH:
+                showSummary();
+                return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -111,12 +227,94 @@ public class NfcReaderActivity extends AppCompatActivity {
 
     /**
      * Callback when a NFC tag is found
-     * Parse the data and check the serial against our database
+     * Parse the data and check the serial against our database.
+     * A tag that was read before is recognized by its UID, without parsing the records again.
      *
      * @param intent which holds the NFC tag data
      */
     @Override
     public void onNewIntent(Intent intent) {
+        final long tapTime = SystemClock.elapsedRealtime();
+
+        String uid = TagSerialCache.uid(intent.getByteArrayExtra(NfcAdapter.EXTRA_ID));
+        String serial = uid != null ? TagSerialCache.get(uid) : null;
+        if(serial == null) {
+            serial = readSerial(intent);
+            if(serial == null) {
+                return;
+            }
+            if(uid != null) {
+                TagSerialCache.put(uid, serial);
+            }
+        }
+
+        // prevent checking the same tag many times
+        if(!mDebouncer.accept(serial)) {
+            if(!mTagWalk) {
+                ((MyApplication)getApplication()).showToast(R.string.device_not_found);
+            }
+            return;
+        }
+
+        if(mTagWalk) {
+            addToTagWalk(serial, tapTime);
+        } else {
+            ItemLookup.startItemActivity(this, serial, true);
+        }
+    }
+
+    /**
+     * Add the serial to the tag walk, a short tone confirms a new tag
+     */
+    private void addToTagWalk(String serial, long tapTime) {
+        if(!mSession.add(serial)) {
+            mTone.startTone(ToneGenerator.TONE_PROP_BEEP);
+            return;
+        }
+
+        mTone.startTone(ToneGenerator.TONE_PROP_ACK);
+        mChecklistAdapter.addSerial(serial);
+        updateTitle();
+        if(mSession.getStatus(serial) == InventorySession.STATUS_CHECKING) {
+            mTapTimes.put(serial, tapTime);
+        } else {
+            Timber.d("tagWalk: %s in %d ms", serial, SystemClock.elapsedRealtime() - tapTime);
+        }
+    }
+
+    /**
+     * Update the checklist as the lookups come in
+     */
+    private final InventorySession.Listener sessionListener = (serial, status) -> {
+        mChecklistAdapter.notifyDataSetChanged();
+        if(status == InventorySession.STATUS_UNKNOWN) {
+            mTone.startTone(ToneGenerator.TONE_PROP_NACK);
+        }
+
+        Long tapTime = mTapTimes.remove(serial);
+        if(tapTime != null) {
+            Timber.d("tagWalk: %s in %d ms", serial, SystemClock.elapsedRealtime() - tapTime);
+        }
+    };
+
+    private void showSummary() {
+        mSession.finish().addOnSuccessListener(this, summary -> new AlertDialog.Builder(this)
+                .setTitle("Tag walk")
+                .setMessage(summary.format(SUMMARY_LIST_SIZE))
+                .setPositiveButton("Done", (dialog, which) -> finish())
+                .setNegativeButton("Continue", null)
+                .show());
+    }
+
+    private void updateTitle() {
+        setTitle("Tag walk (" + mSession.size() + ")");
+    }
+
+    /**
+     * @param intent which holds the NFC tag data
+     * @return the text of the first text record on the tag, or null
+     */
+    private String readSerial(Intent intent) {
         ArrayList<String> returnList = new ArrayList<>();
 
         // parse through all NDEF messages and their records and pick text type only
@@ -129,11 +327,10 @@ public class NfcReaderActivity extends AppCompatActivity {
                         if (rec.getTnf() == NdefRecord.TNF_WELL_KNOWN &&
                                 Arrays.equals(rec.getType(), NdefRecord.RTD_TEXT)) {
 
-                            byte[] payload = rec.getPayload();
-                            String textEncoding = ((payload[0] & 128) == 0) ? "UTF-8" : "UTF-16";
-                            int langCodeLen = payload[0] & 63;
-
-                            returnList.add(new String(payload, langCodeLen + 1, payload.length - langCodeLen - 1, textEncoding));
+                            String text = NdefTextDecoder.decode(rec.getPayload());
+                            if(text != null) {
+                                returnList.add(text);
+                            }
                         }
                     }
                 }
@@ -142,17 +339,6 @@ public class NfcReaderActivity extends AppCompatActivity {
             }
         }
 
-        if(returnList.size() > 0) {
-            final String serial = returnList.get(0);
-
-            // prevent checking the same tag many times
-            if(!mCheckedIDs.contains(serial)) {
-                mCheckedIDs.add(serial);
-
-                FirebaseHelper.startItemActivity(this, serial, true);
-            } else {
-                ((MyApplication)getApplication()).showToast(R.string.device_not_found);
-            }
-        }
+        return returnList.size() > 0 ? returnList.get(0) : null;
     }
 }
@@ -0,0 +1,193 @@
+package nl.kimplusdelta.gereedschap.adapter;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.support.v4.view.PagerAdapter;
+import android.view.View;
+import android.text.TextUtils;
+import android.view.ViewGroup;
+
+import com.google.android.gms.tasks.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.kimplusdelta.gereedschap.utils.BitmapPipeline;
+import nl.kimplusdelta.gereedschap.view.ZoomImageView;
+import timber.log.Timber;
+
+/**
+ * Full screen photo pages for the ImagePreview, loaded through the BitmapPipeline.
+ * A page holds on to its bitmap only while it is instantiated, so with the default
+ * offscreen limit at most three decoded photos are in use at any time.
+ * The ViewPager doesn't destroy its pages when the screen goes away, call release then.
+ *
+ * The URL of a photo can be replaced while the pager is shown (see setImage), e.g. the grid
+ * thumbnail by the screen sized variant once that is resolved.
+ */
+public class PreviewPagerAdapter extends PagerAdapter {
+
+    /**
+     * Number of pages on each side of the current page that are downloaded ahead
+     */
+    private static final int PREFETCH_DISTANCE = 2;
+
+    private final List<String> mImages;
+    private final BitmapPipeline mPipeline;
+
+    /**
+     * Pages that are instantiated and not destroyed yet
+     */
+    private final List<Page> mPages = new ArrayList<>();
+    private boolean mReleased;
+
+    /**
+     * Page the user is looking at, for prefetching URLs that come in later
+     */
+    private int mCurrent;
+
+    /**
+     * A single page, also the RegionLoader of its view
+     */
+    private class Page implements ZoomImageView.RegionLoader {
+        final int position;
+        final String url;
+        final ZoomImageView view;
+        BitmapPipeline.Image image;
+        boolean destroyed;
+
+        Page(int position, String url, ZoomImageView view) {
+            this.position = position;
+            this.url = url;
+            this.view = view;
+        }
+
+        @Override
+        public Task<Bitmap> decodeRegion(Rect region, int sampleSize) {
+            return mPipeline.decodeRegion(url, region, sampleSize);
+        }
+
+        @Override
+        public void recycle(Bitmap bitmap) {
+            mPipeline.recycle(bitmap);
+        }
+    }
+
+    /**
+     * @param context any context
+     * @param images download URLs of the photos, null for a photo without one
+     */
+    public PreviewPagerAdapter(Context context, List<String> images) {
+        mImages = new ArrayList<>(images);
+        mPipeline = BitmapPipeline.getInstance(context);
+    }
+
+    @Override
+    public int getCount() {
+        return mImages.size();
+    }
+
+    @Override
+    public Object instantiateItem(ViewGroup container, int position) {
+        ZoomImageView view = new ZoomImageView(container.getContext());
+        view.setBackgroundColor(Color.BLACK);
+        container.addView(view, ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
+
+        final Page page = new Page(position, mImages.get(position), view);
+        mPages.add(page);
+        if(page.url == null) {
+            // no URL could be resolved for this photo
+            return page;
+        }
+        mPipeline.load(page.url)
+                .addOnSuccessListener(image -> {
+                    if(page.destroyed) {
+                        return;
+                    }
+                    page.image = image;
+                    mPipeline.acquire(image);
+                    page.view.setImage(image.bitmap, image.sourceWidth, image.sourceHeight, page);
+                })
+                .addOnFailureListener(e -> Timber.w(e, "PreviewPagerAdapter:load %s", page.url));
+        return page;
+    }
+
+    @Override
+    public void destroyItem(ViewGroup container, int position, Object object) {
+        Page page = (Page) object;
+        destroy(page);
+        mPages.remove(page);
+        container.removeView(page.view);
+    }
+
+    /**
+     * A page that was loaded from a replaced URL has to be instantiated again
+     */
+    @Override
+    public int getItemPosition(Object object) {
+        Page page = (Page) object;
+        return TextUtils.equals(page.url, mImages.get(page.position)) ? POSITION_UNCHANGED : POSITION_NONE;
+    }
+
+    /**
+     * Replace the URL of a photo. A page that is instantiated loads the new URL,
+     * and a photo near the current page is prefetched.
+     * @param position page of the photo
+     * @param url download URL
+     */
+    public void setImage(int position, String url) {
+        if(mReleased || url == null || url.equals(mImages.get(position))) {
+            return;
+        }
+        mImages.set(position, url);
+        if(position != mCurrent && Math.abs(position - mCurrent) <= PREFETCH_DISTANCE) {
+            mPipeline.prefetch(url);
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Give the bitmaps of all pages back to the pipeline, e.g. when the screen is destroyed
+     */
+    public void release() {
+        mReleased = true;
+        for (Page page : mPages) {
+            destroy(page);
+        }
+        mPages.clear();
+    }
+
+    private void destroy(Page page) {
+        page.destroyed = true;
+        page.view.setImage(null, 0, 0, null);
+        if(page.image != null) {
+            mPipeline.release(page.image);
+            page.image = null;
+        }
+    }
+
+    @Override
+    public boolean isViewFromObject(View view, Object object) {
+        return ((Page) object).view == view;
+    }
+
+    /**
+     * Download the photos around the current page, the ViewPager itself only decodes the direct neighbours
+     * @param position current page
+     */
+    public void prefetch(int position) {
+        if(mReleased) {
+            return;
+        }
+        mCurrent = position;
+        int first = Math.max(0, position - PREFETCH_DISTANCE);
+        int last = Math.min(mImages.size() - 1, position + PREFETCH_DISTANCE);
+        for (int i = first; i <= last; i++) {
+            if(i != position && mImages.get(i) != null) {
+                mPipeline.prefetch(mImages.get(i));
+            }
+        }
+    }
+}
@@ -1,27 +1,81 @@
 package nl.kimplusdelta.gereedschap.activity;
 
+import android.media.AudioManager;
+import android.media.ToneGenerator;
 import android.os.Bundle;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
 import android.view.MenuItem;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+import android.widget.ListView;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 import me.dm7.barcodescanner.zbar.Result;
 import me.dm7.barcodescanner.zbar.ZBarScannerView;
-import nl.kimplusdelta.gereedschap.firebase.FirebaseHelper;
-
+import nl.kimplusdelta.gereedschap.MyApplication;
+import nl.kimplusdelta.gereedschap.adapter.InventoryChecklistAdapter;
+import nl.kimplusdelta.gereedschap.firebase.InventorySession;
+import nl.kimplusdelta.gereedschap.firebase.ItemLookup;
+import nl.kimplusdelta.gereedschap.utils.ScanDebouncer;
+import nl.kimplusdelta.gereedschap.view.ThrottledScannerView;
+
+/**
+ * Scan a QR / barcode and open the item.
+ * In inventory mode (EXTRA_INVENTORY) the camera keeps running and every scanned serial is
+ * collected in an InventorySession, with a live checklist below the camera and a
+ * found / missing / unknown summary when the user is done.
+ */
 public class QrScannerActivity extends AppCompatActivity implements ZBarScannerView.ResultHandler {
 
+    /**
+     * Intent extra: start a stock check instead of opening a single item
+     */
+    public static final String EXTRA_INVENTORY = "inventory";
+
+    /**
+     * Intent extra: use the ThrottledScannerView instead of the default ZBarScannerView.
+     * Defaults to true in inventory mode.
+     */
+    public static final String EXTRA_THROTTLED = "throttled";
+
+    /**
+     * A code that stays in view is only counted once within this time
+     */
+    private static final long SCAN_WINDOW = 2000;
+
+    /**
+     * Maximum number of serials listed per group in the summary
+     */
+    private static final int SUMMARY_LIST_SIZE = 50;
+
+    private static final int MENU_FINISH = Menu.FIRST;
+
     /**
      * QR / Barcode scanner
      */
     private ZBarScannerView mScannerView;
 
     /**
-     * A list to hold all the checked IDs so we don't check the same ID multiple times
+     * A set to hold all the checked IDs so we don't check the same ID multiple times
      */
-    private List<String> mCheckedIDs;
+    private Set<String> mCheckedIDs;
+
+    /**
+     * Inventory mode fields
+     */
+    private boolean mInventory;
+    private InventorySession mSession;
+    private ScanDebouncer mDebouncer;
+    private ToneGenerator mTone;
+
+    /**
+     * Scanned serials, newest first
+     */
+    private InventoryChecklistAdapter mChecklistAdapter;
 
     @Override
     public void onCreate(Bundle state) {
@@ -31,10 +85,49 @@ public class QrScannerActivity extends AppCompatActivity implements ZBarScannerV
             getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         }
 
-        mCheckedIDs = new ArrayList<>();
+        mCheckedIDs = new HashSet<>();
+
+        String companyID = ((MyApplication) getApplication()).companyID;
+        mInventory = getIntent().getBooleanExtra(EXTRA_INVENTORY, false) && companyID != null && !companyID.isEmpty();
+        if(getIntent().getBooleanExtra(EXTRA_THROTTLED, mInventory)) {
+            ThrottledScannerView scannerView = new ThrottledScannerView(this);
+            scannerView.setFormats(ThrottledScannerView.LABEL_FORMATS);
+            mScannerView = scannerView;
+        } else {
+            mScannerView = new ZBarScannerView(this);
+        }
+        if(mInventory) {
+            setUpInventory(companyID, state);
+        } else {
+            setContentView(mScannerView);
+        }
+    }
 
-        mScannerView = new ZBarScannerView(this);
-        setContentView(mScannerView);
+    /**
+     * Camera on top, checklist below
+     * @param state saved state with the session to restore, or null
+     */
+    private void setUpInventory(String companyID, Bundle state) {
+        mSession = new InventorySession(this, companyID);
+        mSession.setListener(sessionListener);
+        mDebouncer = new ScanDebouncer(SCAN_WINDOW);
+        mTone = new ToneGenerator(AudioManager.STREAM_NOTIFICATION, 80);
+
+        mChecklistAdapter = new InventoryChecklistAdapter(this, mSession);
+        if(state != null) {
+            for (String serial : mSession.restore(state)) {
+                mChecklistAdapter.addSerial(serial);
+            }
+        }
+        ListView checklist = new ListView(this);
+        checklist.setAdapter(mChecklistAdapter);
+
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.addView(mScannerView, new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1f));
+        layout.addView(checklist, new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1f));
+        setContentView(layout);
+        updateTitle();
     }
 
     @Override
@@ -50,12 +143,39 @@ public class QrScannerActivity extends AppCompatActivity implements ZBarScannerV
         mScannerView.stopCamera();
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if(mSession != null) {
+            mSession.save(outState);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(mTone != null) {
+            mTone.release();
+        }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        if(mInventory) {
+            menu.add(0, MENU_FINISH, Menu.NONE, "Finish").setShowAsAction(MenuItem.SHOW_AS_ACTION_ALWAYS);
+        }
+        return super.onCreateOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case android.R.id.home:
                 finish();
                 return true;
+            case MENU_FINISH:
+                showSummary();
+                return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -71,15 +191,57 @@ public class QrScannerActivity extends AppCompatActivity implements ZBarScannerV
     public void handleResult(Result rawResult) {
         final String serial = rawResult.getContents();
 
-        // prevent checking the same tag many times
-        if (!mCheckedIDs.contains(serial)) {
-            mCheckedIDs.add(serial);
-
+        if(mInventory) {
+            addToInventory(serial);
+        } else if (mCheckedIDs.add(serial)) {
+            // prevent checking the same tag many times
             if(!serial.isEmpty()) {
-                FirebaseHelper.startItemActivity(this, serial, true);
+                ItemLookup.startItemActivity(this, serial, true);
             }
         }
 
         mScannerView.resumeCameraPreview(QrScannerActivity.this);
     }
+
+    /**
+     * Add the serial to the stock check, a short tone confirms a new serial
+     */
+    private void addToInventory(String serial) {
+        if(serial == null || serial.isEmpty() || !mDebouncer.accept(serial)) {
+            return;
+        }
+
+        if(mSession.add(serial)) {
+            mChecklistAdapter.addSerial(serial);
+            mTone.startTone(ToneGenerator.TONE_PROP_ACK);
+            updateTitle();
+        } else {
+            mTone.startTone(ToneGenerator.TONE_PROP_BEEP);
+        }
+    }
+
+    /**
+     * Update the checklist as the lookups come in
+     */
+    private final InventorySession.Listener sessionListener = (serial, status) -> {
+        mChecklistAdapter.notifyDataSetChanged();
+        if(status == InventorySession.STATUS_UNKNOWN) {
+            mTone.startTone(ToneGenerator.TONE_PROP_NACK);
+        }
+    };
+
+    private void showSummary() {
+        mSession.finish().addOnSuccessListener(this, summary -> {
+            new AlertDialog.Builder(this)
+                    .setTitle("Inventory")
+                    .setMessage(summary.format(SUMMARY_LIST_SIZE))
+                    .setPositiveButton("Done", (dialog, which) -> finish())
+                    .setNegativeButton("Continue", null)
+                    .show();
+        });
+    }
+
+    private void updateTitle() {
+        setTitle("Inventory (" + mSession.size() + ")");
+    }
 }
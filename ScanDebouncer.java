@@ -0,0 +1,60 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Drops repeated reads of the same code within a time window.
+ * A scanner reports a code every frame it is in view, and a tag on every tap, while the user
+ * only means to scan it once. After the window the code is accepted again.
+ */
+public class ScanDebouncer {
+
+    /**
+     * Forget codes that have not been seen for this many windows, so the map stays small
+     */
+    private static final int EXPIRE_WINDOWS = 10;
+
+    private final Map<String, Long> mLastSeen = new HashMap<>();
+    private long mWindow;
+
+    /**
+     * @param window time in milliseconds in which a repeated code is dropped
+     */
+    public ScanDebouncer(long window) {
+        mWindow = window;
+    }
+
+    public void setWindow(long window) {
+        mWindow = window;
+    }
+
+    /**
+     * @param code scanned code
+     * @return true when the code was not seen within the window
+     */
+    public boolean accept(String code) {
+        long now = SystemClock.elapsedRealtime();
+        Long lastSeen = mLastSeen.put(code, now);
+        if(mLastSeen.size() > 64) {
+            expire(now);
+        }
+        return lastSeen == null || now - lastSeen >= mWindow;
+    }
+
+    public void clear() {
+        mLastSeen.clear();
+    }
+
+    private void expire(long now) {
+        Iterator<Long> iterator = mLastSeen.values().iterator();
+        while (iterator.hasNext()) {
+            if(now - iterator.next() > mWindow * EXPIRE_WINDOWS) {
+                iterator.remove();
+            }
+        }
+    }
+}
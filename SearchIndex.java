@@ -0,0 +1,353 @@
+package nl.kimplusdelta.gereedschap.storage;
+
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import nl.kimplusdelta.gereedschap.firebase.InstrumentItem;
+import nl.kimplusdelta.gereedschap.model.InstrumentDisplayItem;
+
+/**
+ * In-memory prefix index over the serials and the short display fields of the items in the ItemStore.
+ * Every word of an item is a key in a sorted map, so all words that start with a search term are one
+ * range of the map. A search with more terms takes the most selective term and checks the other terms
+ * against the words of each candidate.
+ * Serials are also indexed without their separators, so "GS2017" finds "GS-2017" and "gs 2017" finds "GS2017".
+ *
+ * The index is built from the ItemStore once per company and then kept up to date by the ItemStore itself.
+ * All changes are made on the disk executor; searches can run on any thread.
+ */
+public class SearchIndex {
+
+    /**
+     * A search result
+     */
+    public static class Suggestion {
+        public final String serial;
+
+        /**
+         * Short description of the item, may be empty
+         */
+        public final String label;
+
+        Suggestion(String serial, String label) {
+            this.serial = serial;
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label.isEmpty() ? serial : serial + "  " + label;
+        }
+    }
+
+    /**
+     * Number of display values in the label of a suggestion
+     */
+    private static final int LABEL_VALUES = 2;
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static SearchIndex sInstance;
+
+    /**
+     * Words and label per serial
+     */
+    static class Entry {
+        final String serial;
+        final String compactSerial;
+        final String label;
+        final String[] words;
+
+        Entry(String serial, String label, String[] words) {
+            this.serial = serial;
+            this.compactSerial = compact(serial);
+            this.label = label;
+            this.words = words;
+        }
+
+        boolean hasWordStartingWith(String term) {
+            for (String word : words) {
+                if(word.startsWith(term)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private String mCompanyID;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    /**
+     * Serials per word
+     */
+    private final TreeMap<String, List<String>> mWords = new TreeMap<>();
+
+    public static synchronized SearchIndex getInstance() {
+        if(sInstance == null) {
+            sInstance = new SearchIndex();
+        }
+        return sInstance;
+    }
+
+    private SearchIndex() {}
+
+    /**
+     * Build the index for the company from the ItemStore, unless it already is
+     * @param store the store to read the items from
+     * @param companyID users company
+     */
+    @WorkerThread
+    public void load(ItemStore store, final String companyID) {
+        synchronized (this) {
+            if(companyID.equals(mCompanyID)) {
+                return;
+            }
+            mCompanyID = companyID;
+            mEntries.clear();
+            mWords.clear();
+        }
+
+        // the serials of rows from another app version can't be decoded, but they can be found
+        for (String serial : store.serials(companyID)) {
+            add(companyID, serial, null);
+        }
+        store.forEach(companyID, (serial, item) -> add(companyID, serial, item));
+    }
+
+    /**
+     * Add or replace an item
+     * @param companyID company of the item, ignored when the index is for another company
+     * @param serial item ID
+     * @param item the item, or null to only index the serial
+     */
+    @WorkerThread
+    public void add(String companyID, String serial, @Nullable InstrumentItem item) {
+        put(companyID, entry(serial, item));
+    }
+
+    /**
+     * Take what the index needs from the item on the calling thread, to add it later with put
+     * @param serial item ID
+     * @param item the item
+     * @return entry for put
+     */
+    static Entry prepare(String serial, InstrumentItem item) {
+        return entry(serial, item);
+    }
+
+    /**
+     * Add or replace an entry from prepare
+     * @param companyID company of the item, ignored when the index is for another company
+     * @param added entry from prepare
+     */
+    @WorkerThread
+    synchronized void put(String companyID, Entry added) {
+        if(!companyID.equals(mCompanyID)) {
+            return;
+        }
+
+        removeEntry(added.serial);
+        mEntries.put(added.serial, added);
+        for (String word : added.words) {
+            List<String> serials = mWords.get(word);
+            if(serials == null) {
+                serials = new ArrayList<>(1);
+                mWords.put(word, serials);
+            }
+            serials.add(added.serial);
+        }
+    }
+
+    /**
+     * @param companyID company of the item
+     * @param serial item ID
+     */
+    @WorkerThread
+    public synchronized void remove(String companyID, String serial) {
+        if(companyID.equals(mCompanyID)) {
+            removeEntry(serial);
+        }
+    }
+
+    /**
+     * Find the items with a word that starts with every term of the query.
+     * Items whose serial starts with the query come first.
+     * @param companyID users company
+     * @param query text as typed by the user
+     * @param limit maximum number of suggestions
+     * @return suggestions, empty when the index is for another company and incomplete while it is loading
+     */
+    public synchronized List<Suggestion> search(String companyID, String query, int limit) {
+        String[] terms = words(query);
+        if(terms.length == 0 || !companyID.equals(mCompanyID)) {
+            return Collections.emptyList();
+        }
+
+        // the longest term matches the fewest words
+        String first = terms[0];
+        for (String term : terms) {
+            if(term.length() > first.length()) {
+                first = term;
+            }
+        }
+
+        // a query with separators is also looked up as one compact serial
+        String compactQuery = compact(query);
+        List<SortedMap<String, List<String>>> ranges = new ArrayList<>(2);
+        ranges.add(mWords.subMap(first, first + Character.MAX_VALUE));
+        if(terms.length > 1) {
+            ranges.add(mWords.subMap(compactQuery, compactQuery + Character.MAX_VALUE));
+        }
+
+        List<Entry> serialMatches = new ArrayList<>();
+        List<Entry> otherMatches = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (SortedMap<String, List<String>> range : ranges) {
+            for (List<String> serials : range.values()) {
+                for (String serial : serials) {
+                    if(!seen.add(serial)) {
+                        continue;
+                    }
+
+                    Entry entry = mEntries.get(serial);
+                    if(entry == null) {
+                        continue;
+                    }
+                    if(entry.compactSerial.startsWith(compactQuery)) {
+                        serialMatches.add(entry);
+                    } else if(matchesAll(entry, terms)) {
+                        otherMatches.add(entry);
+                    }
+                }
+            }
+        }
+
+        List<Suggestion> suggestions = new ArrayList<>(Math.min(limit, serialMatches.size() + otherMatches.size()));
+        addSorted(suggestions, serialMatches, limit);
+        addSorted(suggestions, otherMatches, limit);
+        return suggestions;
+    }
+
+    /**
+     * @return number of indexed items
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    private static boolean matchesAll(Entry entry, String[] terms) {
+        for (String term : terms) {
+            if(!entry.hasWordStartingWith(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addSorted(List<Suggestion> suggestions, List<Entry> entries, int limit) {
+        if(suggestions.size() >= limit) {
+            return;
+        }
+
+        Collections.sort(entries, (a, b) -> a.serial.compareTo(b.serial));
+        for (Entry entry : entries) {
+            if(suggestions.size() >= limit) {
+                return;
+            }
+            suggestions.add(new Suggestion(entry.serial, entry.label));
+        }
+    }
+
+    private void removeEntry(String serial) {
+        Entry old = mEntries.remove(serial);
+        if(old == null) {
+            return;
+        }
+
+        for (String word : old.words) {
+            List<String> serials = mWords.get(word);
+            if(serials != null) {
+                serials.remove(serial);
+                if(serials.isEmpty()) {
+                    mWords.remove(word);
+                }
+            }
+        }
+    }
+
+    private static Entry entry(String serial, @Nullable InstrumentItem item) {
+        StringBuilder label = new StringBuilder();
+        StringBuilder text = new StringBuilder(serial);
+        if(item != null) {
+            int values = 0;
+            for (InstrumentDisplayItem displayItem : item.toShortDisplayList()) {
+                if(displayItem.value == null || displayItem.value.isEmpty()
+                        || InstrumentItem.S_PICTURES.equals(displayItem.key)
+                        || InstrumentItem.S_DOCUMENTS.equals(displayItem.key)) {
+                    continue;
+                }
+
+                text.append(' ').append(displayItem.value);
+                if(values++ < LABEL_VALUES) {
+                    label.append(label.length() > 0 ? " · " : "").append(displayItem.value);
+                }
+            }
+        }
+
+        // the same word can occur in several fields, it is only indexed once
+        String[] words = words(text.toString());
+        Set<String> unique = new LinkedHashSet<>();
+        Collections.addAll(unique, words);
+        String compactSerial = compact(serial);
+        if(!compactSerial.isEmpty()) {
+            unique.add(compactSerial);
+        }
+        return new Entry(serial, label.toString(), unique.toArray(new String[unique.size()]));
+    }
+
+    /**
+     * Split into lowercase words without accents
+     */
+    private static String[] words(String text) {
+        String normalized = normalize(text).trim();
+        if(normalized.isEmpty()) {
+            return new String[0];
+        }
+
+        List<String> words = new ArrayList<>();
+        for (String word : SEPARATORS.split(normalized)) {
+            if(!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * Lowercase without accents and without separators, e.g. "GS-2017" becomes "gs2017"
+     */
+    private static String compact(String text) {
+        return SEPARATORS.matcher(normalize(text)).replaceAll("");
+    }
+
+    private static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,89 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Measures the cold start of the app up to the moment the user can scan:
+ * the MainActivity is drawn and the CompanyID is known.
+ * The steps in between are logged once per process, with the launch path, so the
+ * cached session path and the login screen path can be compared in the log.
+ * measure_startup.sh runs a series of cold starts with am start -W and reports the medians
+ * of TotalTime, the system's Displayed time and scan_ready.
+ */
+public final class StartupTrace {
+
+    public static final String LOGIN_CREATED = "login_created";
+    public static final String MAIN_CREATED = "main_created";
+    public static final String MAIN_DRAWN = "main_drawn";
+    public static final String COMPANY_READY = "company_ready";
+
+    /**
+     * The user was routed past the login screen with the cached session
+     */
+    public static final String PATH_CACHED = "cached";
+
+    /**
+     * The login screen was shown
+     */
+    public static final String PATH_LOGIN = "login";
+
+    /**
+     * Fallback start time when the process start time is not available
+     */
+    private static final long sLoaded = SystemClock.elapsedRealtime();
+
+    private static final Map<String, Long> sSteps = new LinkedHashMap<>();
+    private static String sPath = PATH_LOGIN;
+    private static boolean sDone;
+
+    private StartupTrace() {}
+
+    /**
+     * @param path how the user got to the MainActivity, PATH_CACHED or PATH_LOGIN
+     */
+    public static synchronized void setPath(String path) {
+        sPath = path;
+    }
+
+    /**
+     * Record a startup step. The first time of a step is kept.
+     * Only launches that start in the LoginActivity are traced.
+     * Once the MainActivity is drawn and the CompanyID is known, the trace is logged.
+     * @param step one of the step constants
+     */
+    public static synchronized void mark(String step) {
+        if(sDone || sSteps.containsKey(step) || (sSteps.isEmpty() && !LOGIN_CREATED.equals(step))) {
+            return;
+        }
+
+        sSteps.put(step, SystemClock.elapsedRealtime() - start());
+        if(sSteps.containsKey(MAIN_DRAWN) && sSteps.containsKey(COMPANY_READY)) {
+            sDone = true;
+            report();
+        }
+    }
+
+    private static void report() {
+        long ready = Math.max(sSteps.get(MAIN_DRAWN), sSteps.get(COMPANY_READY));
+        StringBuilder steps = new StringBuilder();
+        for (Map.Entry<String, Long> entry : sSteps.entrySet()) {
+            steps.append(String.format(Locale.US, " %s=%dms", entry.getKey(), entry.getValue()));
+        }
+        Timber.i("StartupTrace: path=%s scan_ready=%dms%s", sPath, ready, steps);
+    }
+
+    private static long start() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Process.getStartElapsedRealtime();
+        }
+        return sLoaded;
+    }
+}
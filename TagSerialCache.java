@@ -0,0 +1,43 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+/**
+ * Serial per NFC tag UID, so a tag that was read before doesn't have its NDEF records parsed again.
+ * Kept in memory only: a tag that is rewritten is read correctly again after the app restarts.
+ */
+public final class TagSerialCache {
+
+    private static final int MAX_TAGS = 512;
+
+    private static final LruCache<String, String> sSerials = new LruCache<>(MAX_TAGS);
+
+    private TagSerialCache() {}
+
+    /**
+     * @param id tag UID from NfcAdapter.EXTRA_ID
+     * @return the UID as hex string, or null when there is no UID
+     */
+    @Nullable
+    public static String uid(@Nullable byte[] id) {
+        if(id == null || id.length == 0) {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder(id.length * 2);
+        for (byte b : id) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    @Nullable
+    public static String get(String uid) {
+        return sSerials.get(uid);
+    }
+
+    public static void put(String uid, String serial) {
+        sSerials.put(uid, serial);
+    }
+}
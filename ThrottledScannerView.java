@@ -0,0 +1,323 @@
+package nl.kimplusdelta.gereedschap.view;
+
+import android.content.Context;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import net.sourceforge.zbar.Config;
+import net.sourceforge.zbar.Image;
+import net.sourceforge.zbar.ImageScanner;
+import net.sourceforge.zbar.Symbol;
+import net.sourceforge.zbar.SymbolSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import me.dm7.barcodescanner.zbar.BarcodeFormat;
+import me.dm7.barcodescanner.zbar.Result;
+import me.dm7.barcodescanner.zbar.ZBarScannerView;
+import timber.log.Timber;
+
+/**
+ * ZBarScannerView that keeps the UI thread free while scanning.
+ * - frames are decoded on a dedicated thread; frames that come in while a decode is running are dropped
+ * - only a centered region of the frame is scanned, and the frame is not rotated: ZBar scans both directions
+ * - only the symbologies of our labels are enabled
+ * Frame rate and the time to the first decode are kept in Stats, to compare configurations.
+ */
+public class ThrottledScannerView extends ZBarScannerView {
+
+    /**
+     * Symbologies printed on our labels
+     */
+    public static final List<BarcodeFormat> LABEL_FORMATS = Arrays.asList(BarcodeFormat.QRCODE, BarcodeFormat.CODE128);
+
+    /**
+     * Default side of the scanned region, relative to the short side of the frame
+     */
+    public static final float DEFAULT_REGION = 0.6f;
+
+    /**
+     * Scanner statistics since the camera was started
+     */
+    public static class Stats {
+        public final long frames;
+        public final long decoded;
+        public final long dropped;
+        public final long elapsed;
+
+        /**
+         * Milliseconds from starting the camera to the first result, -1 when nothing was found yet
+         */
+        public final long timeToFirstDecode;
+
+        /**
+         * Average decode time in milliseconds
+         */
+        public final float decodeTime;
+
+        Stats(long frames, long decoded, long dropped, long elapsed, long timeToFirstDecode, float decodeTime) {
+            this.frames = frames;
+            this.decoded = decoded;
+            this.dropped = dropped;
+            this.elapsed = elapsed;
+            this.timeToFirstDecode = timeToFirstDecode;
+            this.decodeTime = decodeTime;
+        }
+
+        /**
+         * @return decoded frames per second
+         */
+        public float getFps() {
+            return elapsed > 0 ? decoded * 1000f / elapsed : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f fps, %d/%d frames decoded, %d dropped, %.1f ms per decode, first result after %d ms",
+                    getFps(), decoded, frames, dropped, decodeTime, timeToFirstDecode);
+        }
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mDecodeThread;
+    private Handler mDecodeHandler;
+
+    private List<BarcodeFormat> mLabelFormats = LABEL_FORMATS;
+    private float mRegion = DEFAULT_REGION;
+    private ResultHandler mResultHandler;
+
+    /**
+     * Decode thread only
+     */
+    private ImageScanner mScanner;
+    private volatile boolean mScannerDirty = true;
+
+    /**
+     * Main thread only
+     */
+    private boolean mBusy;
+    private boolean mPaused;
+
+    /**
+     * Counts the stopCamera calls, a decode that finishes after a stop is ignored
+     */
+    private int mGeneration;
+    private Camera mSizeCamera;
+    private Camera.Size mPreviewSize;
+
+    private long mStarted;
+    private long mFrames;
+    private long mDropped;
+    private long mFirstDecode = -1;
+    private volatile long mDecoded;
+    private volatile long mDecodeTime;
+
+    public ThrottledScannerView(Context context) {
+        super(context);
+    }
+
+    /**
+     * @param formats symbologies to scan for
+     */
+    @Override
+    public void setFormats(List<BarcodeFormat> formats) {
+        super.setFormats(formats);
+        mLabelFormats = new ArrayList<>(formats);
+        mScannerDirty = true;
+    }
+
+    /**
+     * @param region side of the scanned square, relative to the short side of the frame
+     */
+    public void setRegion(float region) {
+        mRegion = Math.max(0.1f, Math.min(1f, region));
+    }
+
+    @Override
+    public void setResultHandler(ResultHandler resultHandler) {
+        super.setResultHandler(resultHandler);
+        mResultHandler = resultHandler;
+    }
+
+    @Override
+    public void resumeCameraPreview(ResultHandler resultHandler) {
+        mResultHandler = resultHandler;
+        mPaused = false;
+        super.resumeCameraPreview(resultHandler);
+    }
+
+    @Override
+    public void startCamera() {
+        mDecodeThread = new HandlerThread("qr-decode");
+        mDecodeThread.start();
+        mDecodeHandler = new Handler(mDecodeThread.getLooper());
+        mBusy = false;
+        mPaused = false;
+        mSizeCamera = null;
+
+        mStarted = SystemClock.elapsedRealtime();
+        mFrames = 0;
+        mDropped = 0;
+        mFirstDecode = -1;
+        mDecoded = 0;
+        mDecodeTime = 0;
+
+        super.startCamera();
+    }
+
+    @Override
+    public void stopCamera() {
+        super.stopCamera();
+        // no results after the camera stopped, e.g. opening an item from a paused scanner
+        mGeneration++;
+        mPaused = true;
+        mResultHandler = null;
+        mMainHandler.removeCallbacksAndMessages(null);
+        if(mDecodeThread != null) {
+            mDecodeThread.quit();
+            mDecodeThread = null;
+            mDecodeHandler = null;
+        }
+        mScannerDirty = true;
+        Timber.i("ThrottledScannerView: %s", getStats());
+    }
+
+    /**
+     * @return statistics since the camera was started
+     */
+    public Stats getStats() {
+        long decoded = mDecoded;
+        return new Stats(mFrames, decoded, mDropped, SystemClock.elapsedRealtime() - mStarted, mFirstDecode,
+                decoded > 0 ? (float) mDecodeTime / decoded : 0);
+    }
+
+    @Override
+    public void onPreviewFrame(final byte[] data, final Camera camera) {
+        if(mResultHandler == null || mPaused || mDecodeHandler == null) {
+            return;
+        }
+
+        mFrames++;
+        if(mBusy) {
+            mDropped++;
+            requestFrame(camera);
+            return;
+        }
+
+        final Camera.Size size = previewSize(camera);
+        if(size == null) {
+            return;
+        }
+
+        mBusy = true;
+        final List<BarcodeFormat> formats = mLabelFormats;
+        final float region = mRegion;
+        final int generation = mGeneration;
+        mDecodeHandler.post(() -> {
+            final Result result = decode(data, size.width, size.height, region, formats);
+            mMainHandler.post(() -> onDecoded(result, generation));
+        });
+        // keep the frames coming, the ones that arrive during the decode are dropped
+        requestFrame(camera);
+    }
+
+    private void onDecoded(Result result, int generation) {
+        if(generation != mGeneration) {
+            return;
+        }
+        mBusy = false;
+        if(result == null || mResultHandler == null || mPaused) {
+            return;
+        }
+
+        if(mFirstDecode < 0) {
+            mFirstDecode = SystemClock.elapsedRealtime() - mStarted;
+        }
+        // like the ZBarScannerView, no more results until resumeCameraPreview
+        mPaused = true;
+        ResultHandler handler = mResultHandler;
+        mResultHandler = null;
+        handler.handleResult(result);
+    }
+
+    /**
+     * Decode thread: scan the centered region of the Y plane of the frame
+     */
+    private Result decode(byte[] data, int width, int height, float region, List<BarcodeFormat> formats) {
+        long start = SystemClock.elapsedRealtime();
+        if(mScanner == null || mScannerDirty) {
+            mScanner = createScanner(formats);
+            mScannerDirty = false;
+        }
+
+        int side = (int) (Math.min(width, height) * region);
+        Image image = new Image(width, height, "Y800");
+        image.setData(data);
+        image.setCrop((width - side) / 2, (height - side) / 2, side, side);
+
+        Result result = null;
+        try {
+            if(mScanner.scanImage(image) != 0) {
+                SymbolSet symbols = mScanner.getResults();
+                for (Symbol symbol : symbols) {
+                    String contents = symbol.getData();
+                    if(!TextUtils.isEmpty(contents)) {
+                        result = new Result();
+                        result.setContents(contents);
+                        result.setBarcodeFormat(BarcodeFormat.getFormatById(symbol.getType()));
+                        break;
+                    }
+                }
+            }
+        } finally {
+            image.destroy();
+        }
+
+        mDecodeTime += SystemClock.elapsedRealtime() - start;
+        mDecoded++;
+        return result;
+    }
+
+    private static ImageScanner createScanner(List<BarcodeFormat> formats) {
+        ImageScanner scanner = new ImageScanner();
+        scanner.setConfig(0, Config.X_DENSITY, 3);
+        scanner.setConfig(0, Config.Y_DENSITY, 3);
+        scanner.setConfig(Symbol.NONE, Config.ENABLE, 0);
+        for (BarcodeFormat format : formats) {
+            scanner.setConfig(format.getId(), Config.ENABLE, 1);
+        }
+        return scanner;
+    }
+
+    /**
+     * getParameters is slow, so the size is only read once per camera
+     */
+    private Camera.Size previewSize(Camera camera) {
+        if(camera != mSizeCamera) {
+            try {
+                mPreviewSize = camera.getParameters().getPreviewSize();
+                mSizeCamera = camera;
+            } catch (RuntimeException e) {
+                Timber.w(e, "ThrottledScannerView:previewSize");
+                return null;
+            }
+        }
+        return mPreviewSize;
+    }
+
+    private void requestFrame(Camera camera) {
+        try {
+            camera.setOneShotPreviewCallback(this);
+        } catch (RuntimeException e) {
+            // camera was released in the meantime
+            Timber.d(e, "ThrottledScannerView:requestFrame");
+        }
+    }
+}
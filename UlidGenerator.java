@@ -0,0 +1,121 @@
+package nl.kimplusdelta.gereedschap.utils;
+
+import java.security.SecureRandom;
+
+/**
+ * Generates time ordered IDs for storage filenames (ULID): a 48 bit millisecond timestamp followed by
+ * 80 random bits, as 26 Crockford base32 characters. IDs sort by creation time as plain strings,
+ * so uploads can be ordered and range scanned by name without reading their metadata.
+ * IDs created in the same millisecond increment the random part, so they are unique and ordered within
+ * the process, also when the clock goes back. Thread-safe.
+ */
+public final class UlidGenerator {
+
+    public static final int LENGTH = 26;
+
+    private static final char[] ENCODING = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+    private static final int TIME_LENGTH = 10;
+    private static final long MAX_TIME = (1L << 48) - 1;
+    private static final long MASK_40 = (1L << 40) - 1;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * State of the last ID, guarded by the class lock
+     */
+    private static long sLastTime = -1;
+    private static long sRandomHigh;
+    private static long sRandomLow;
+
+    private UlidGenerator() {}
+
+    /**
+     * @return a new ID, larger than every ID returned before in this process
+     */
+    public static String next() {
+        return next(System.currentTimeMillis());
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return a new ID for the given time, or for the last used time when the clock went back
+     */
+    static String next(long now) {
+        long time;
+        long high;
+        long low;
+        synchronized (UlidGenerator.class) {
+            if(now > sLastTime) {
+                sLastTime = now;
+                sRandomHigh = sRandom.nextInt() & 0xFFFF;
+                sRandomLow = sRandom.nextLong();
+            } else if(++sRandomLow == 0 && ++sRandomHigh > 0xFFFF) {
+                // 2^80 IDs in one millisecond, borrow the next one
+                sLastTime++;
+                sRandomHigh = sRandom.nextInt() & 0xFFFF;
+                sRandomLow = sRandom.nextLong();
+            }
+            time = sLastTime;
+            high = sRandomHigh;
+            low = sRandomLow;
+        }
+
+        char[] chars = new char[LENGTH];
+        encode(time & MAX_TIME, chars, 0, TIME_LENGTH);
+        encode((high << 24) | (low >>> 40), chars, TIME_LENGTH, 8);
+        encode(low & MASK_40, chars, TIME_LENGTH + 8, 8);
+        return new String(chars);
+    }
+
+    /**
+     * @param time time in milliseconds
+     * @return the smallest ID of that time, to range scan the IDs created from that time on
+     */
+    public static String lowerBound(long time) {
+        char[] chars = new char[LENGTH];
+        encode(Math.max(0, Math.min(time, MAX_TIME)), chars, 0, TIME_LENGTH);
+        for (int i = TIME_LENGTH; i < LENGTH; i++) {
+            chars[i] = ENCODING[0];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param id an ID created by this generator
+     * @return its creation time in milliseconds, or -1 when the string is not an ID
+     */
+    public static long timestamp(String id) {
+        if(id == null || id.length() < LENGTH) {
+            return -1;
+        }
+
+        long time = 0;
+        for (int i = 0; i < TIME_LENGTH; i++) {
+            int value = decode(id.charAt(i));
+            if(value < 0) {
+                return -1;
+            }
+            time = (time << 5) | value;
+        }
+        return time <= MAX_TIME ? time : -1;
+    }
+
+    /**
+     * Write the lowest count * 5 bits of the value as base32, most significant first
+     */
+    private static void encode(long value, char[] chars, int offset, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            chars[i] = ENCODING[(int) (value & 31)];
+            value >>>= 5;
+        }
+    }
+
+    private static int decode(char c) {
+        for (int i = 0; i < ENCODING.length; i++) {
+            if(ENCODING[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
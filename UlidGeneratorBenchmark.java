@@ -0,0 +1,44 @@
+package nl.kimplusdelta.gereedschap.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.kimplusdelta.gereedschap.utils.GuidGenerator;
+import nl.kimplusdelta.gereedschap.utils.UlidGenerator;
+
+/**
+ * The time ordered file names against the old GUIDs, single threaded and contended
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UlidGeneratorBenchmark {
+
+    @Benchmark
+    public String ulid() {
+        return UlidGenerator.next();
+    }
+
+    @Benchmark
+    public String guid() {
+        return GuidGenerator.generateGUID();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String ulidContended() {
+        return UlidGenerator.next();
+    }
+
+    @Benchmark
+    public long timestamp() {
+        return UlidGenerator.timestamp("01BX5ZZKBKACTAV9WEVGEMMVRZ");
+    }
+}
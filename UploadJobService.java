@@ -0,0 +1,82 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+
+import timber.log.Timber;
+
+/**
+ * Lets the system resume the UploadQueue when the app is not running, e.g. after process death
+ * or a reboot. The job is scheduled by the queue whenever it has rows left, with the network as a
+ * constraint and the next retry as the earliest start. The job runs the queue until it has nothing
+ * left to do right now; the queue then schedules the next job for the rows that are waiting.
+ *
+ * Needs to be declared in the manifest with the android.permission.BIND_JOB_SERVICE permission,
+ * and RECEIVE_BOOT_COMPLETED to survive a reboot.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class UploadJobService extends JobService {
+
+    private static final int JOB_ID = 1001;
+
+    /**
+     * Schedule the job, replacing the one that is scheduled
+     * @param context any context
+     * @param delay milliseconds before the job may start
+     */
+    static void schedule(Context context, long delay) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if(scheduler == null) {
+            return;
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, UploadJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(Math.max(0, delay))
+                .setPersisted(true)
+                .build();
+        if(scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Timber.w("UploadJobService: could not schedule");
+        }
+    }
+
+    /**
+     * The queue is empty, nothing to resume
+     * @param context any context
+     */
+    static void cancel(Context context) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if(scheduler != null) {
+            scheduler.cancel(JOB_ID);
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        Timber.d("UploadJobService:start");
+        UploadQueue.getInstance(this).runJob(() -> jobFinished(params, false));
+        return true;
+    }
+
+    /**
+     * The network went away, let the system run the job again later
+     */
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        UploadQueue.getInstance(this).stopJob();
+        return true;
+    }
+}
@@ -0,0 +1,1073 @@
+package nl.kimplusdelta.gereedschap.firebase;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import nl.kimplusdelta.gereedschap.activity.GridActivity;
+import nl.kimplusdelta.gereedschap.storage.LocalDatabase;
+import nl.kimplusdelta.gereedschap.utils.AppExecutors;
+import nl.kimplusdelta.gereedschap.utils.ConnectionUtils;
+import nl.kimplusdelta.gereedschap.utils.ImageVariants;
+import nl.kimplusdelta.gereedschap.utils.UlidGenerator;
+import timber.log.Timber;
+
+/**
+ * Persistent queue for uploads to Firebase Storage.
+ * Files are copied into the app's own storage and every upload is recorded in the LocalDatabase,
+ * so they survive leaving the screen and process death. Failed uploads are retried with an
+ * exponential backoff and resume their Firebase upload session instead of starting over.
+ *
+ * Uploads are grouped by their original filename (a photo and its variants). Once every file in
+ * a group is stored, the original is added to the item's pictures/attachments list.
+ *
+ * The content of an original is hashed while it is copied, unless the caller passes the hash of the
+ * content it started from (a resized photo differs with every budget, the picked photo doesn't).
+ * When the company already has a file with the same content (see ContentIndex) the group is not
+ * uploaded: the existing file is referenced instead.
+ *
+ * Groups can be enqueued as part of a batch (see openBatch). The originals of a batch are added to the
+ * item's list together, with a single write, once the batch is closed and all of its files are stored.
+ * That includes the existing files that are referenced instead of uploaded, and leaves out the files
+ * that were given up on. A batch that was still open when the process died is treated as closed.
+ *
+ * A file that failed MAX_ATTEMPTS times while there was a network connection is given up on: its
+ * group is dropped and what was already stored of it is deleted through the DeleteQueue.
+ * While the queue has rows left the UploadJobService is scheduled, so the system resumes the
+ * queue when the app is not running.
+ */
+public class UploadQueue {
+
+    /**
+     * Callback for screens that show the item's files
+     */
+    public interface Listener {
+        void onUploadCommitted(String companyID, String itemID, String type, String filename);
+    }
+
+    /**
+     * Callback for the progress of a batch
+     */
+    public interface BatchListener {
+        /**
+         * @param batch batch ID
+         * @param pending originals of the batch in the queue that are not uploaded yet
+         */
+        void onBatchProgress(String batch, int pending);
+
+        /**
+         * An original of the batch was given up on, the rest of the batch is still committed
+         * @param batch batch ID
+         */
+        void onBatchFileFailed(String batch);
+
+        /**
+         * The originals of the batch are added to the item, the batch is done
+         * @param batch batch ID
+         */
+        void onBatchCommitted(String batch);
+    }
+
+    /**
+     * Single file to upload
+     */
+    public static class Upload {
+        final String companyID;
+        final String itemID;
+        final String type;
+        final String filename;
+        final String original;
+        final Uri source;
+        final String contentType;
+        final String displayName;
+        final String hash;
+
+        /**
+         * @param companyID users company
+         * @param itemID item the file belongs to
+         * @param type GridActivity.TYPE_PHOTO or GridActivity.TYPE_DOCS
+         * @param filename storage filename of this file
+         * @param original storage filename of the original, the same as filename for the original itself
+         * @param source local file to upload
+         * @param contentType mime type of the file
+         * @param displayName name the user knows the file by, may be null
+         * @param hash SHA-256 of the content the original was made from, null to hash the source
+         */
+        public Upload(String companyID, String itemID, String type, String filename, String original,
+                      Uri source, String contentType, @Nullable String displayName, @Nullable String hash) {
+            this.companyID = companyID;
+            this.itemID = itemID;
+            this.type = type;
+            this.filename = filename;
+            this.original = original;
+            this.source = source;
+            this.contentType = contentType;
+            this.displayName = displayName;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Row states: still uploading, uploaded and waiting to be added to the item,
+     * an original waiting for the lookup of its content in the ContentIndex,
+     * or a referenced existing file waiting to be added with the rest of its batch
+     */
+    private static final int STATE_UPLOAD = 0;
+    private static final int STATE_COMMIT = 1;
+    private static final int STATE_CHECK = 2;
+    private static final int STATE_REFERENCE = 3;
+
+    private static final int MAX_CONCURRENT = 2;
+
+    /**
+     * Failed attempts with a network connection after which a file is given up on
+     */
+    private static final int MAX_ATTEMPTS = 10;
+
+    /**
+     * Delay of the UploadJobService when the rows are waiting for something else than a retry,
+     * e.g. a batch that is still open
+     */
+    private static final long WAITING_JOB_DELAY = TimeUnit.MINUTES.toMillis(15);
+
+    private static final long BASE_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(30);
+
+    private static final String DIRECTORY = "uploads";
+
+    private static UploadQueue sInstance;
+
+    private final Context mContext;
+    private final LocalDatabase mDatabase;
+    private final StorageReference mStorageRef;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+
+    /**
+     * Row IDs that are being uploaded or committed right now
+     */
+    private final Set<Long> mActive = new HashSet<>();
+
+    /**
+     * Groups that are being given up on, so a group is only failed once
+     */
+    private final Set<String> mFailing = new HashSet<>();
+    private final List<Listener> mListeners = new ArrayList<>();
+    private final List<BatchListener> mBatchListeners = new ArrayList<>();
+
+    /**
+     * Batches of this session that are not committed yet, and the ones of those that are still open
+     */
+    private final Set<String> mBatches = new HashSet<>();
+    private final Set<String> mOpenBatches = new HashSet<>();
+
+    private boolean mProcessing;
+    private boolean mProcessAgain;
+
+    /**
+     * Finishes the running UploadJobService once the queue has nothing to do right now
+     */
+    private Runnable mJobFinished;
+
+    private final Runnable mProcessRunnable = this::process;
+
+    public static synchronized UploadQueue getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new UploadQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UploadQueue(Context context) {
+        mContext = context;
+        mDatabase = LocalDatabase.getInstance(context);
+        mStorageRef = FirebaseStorage.getInstance().getReferenceFromUrl("gs://gereedschap-app.appspot.com/");
+    }
+
+    @MainThread
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    @MainThread
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    @MainThread
+    public void addBatchListener(BatchListener listener) {
+        mBatchListeners.add(listener);
+    }
+
+    @MainThread
+    public void removeBatchListener(BatchListener listener) {
+        mBatchListeners.remove(listener);
+    }
+
+    /**
+     * Start a batch. Its files are uploaded as they are enqueued, but not committed before closeBatch.
+     * @return batch ID for enqueue
+     */
+    @MainThread
+    public String openBatch() {
+        String batch = UlidGenerator.next();
+        mBatches.add(batch);
+        mOpenBatches.add(batch);
+        return batch;
+    }
+
+    /**
+     * No more files will be enqueued for the batch, commit it once its files are stored
+     * @param batch batch ID from openBatch
+     */
+    @MainThread
+    public void closeBatch(String batch) {
+        mOpenBatches.remove(batch);
+        process();
+    }
+
+    /**
+     * Pick up the uploads that were left behind by a previous session
+     */
+    @MainThread
+    public void start() {
+        process();
+    }
+
+    /**
+     * Run the queue for the UploadJobService
+     * @param finished called once the queue has nothing to do right now
+     */
+    @MainThread
+    void runJob(Runnable finished) {
+        mJobFinished = finished;
+        process();
+    }
+
+    /**
+     * The UploadJobService was stopped by the system
+     */
+    @MainThread
+    void stopJob() {
+        mJobFinished = null;
+    }
+
+    /**
+     * Copy the files into the queue directory and record them, then start uploading
+     * @param uploads files that belong to one group
+     * @return task that completes once the uploads are stored on disk
+     */
+    @MainThread
+    public Task<Void> enqueue(final List<Upload> uploads) {
+        return enqueue(uploads, null);
+    }
+
+    /**
+     * Copy the files into the queue directory and record them, then start uploading
+     * @param uploads files that belong to one group
+     * @param batch batch ID from openBatch, null when the group is committed on its own
+     * @return task that completes once the uploads are stored on disk
+     */
+    @MainThread
+    public Task<Void> enqueue(final List<Upload> uploads, @Nullable final String batch) {
+        return Tasks.call(AppExecutors.disk(), () -> {
+            insert(uploads, batch);
+            return (Void) null;
+        }).addOnSuccessListener(ignored -> process());
+    }
+
+    @WorkerThread
+    private void insert(List<Upload> uploads, @Nullable String batch) throws IOException {
+        File directory = new File(mContext.getFilesDir(), DIRECTORY);
+        if(!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        List<ContentValues> rows = new ArrayList<>();
+        for (Upload upload : uploads) {
+            File file = new File(directory, upload.filename);
+            boolean original = upload.filename.equals(upload.original);
+            String hash = copy(upload.source, file, original && upload.hash == null);
+            if(original && upload.hash != null) {
+                hash = upload.hash;
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(LocalDatabase.COLUMN_COMPANY, upload.companyID);
+            values.put(LocalDatabase.COLUMN_ITEM_ID, upload.itemID);
+            values.put(LocalDatabase.COLUMN_TYPE, upload.type);
+            values.put(LocalDatabase.COLUMN_FILENAME, upload.filename);
+            values.put(LocalDatabase.COLUMN_ORIGINAL, upload.original);
+            values.put(LocalDatabase.COLUMN_PATH, file.getAbsolutePath());
+            values.put(LocalDatabase.COLUMN_CONTENT_TYPE, upload.contentType);
+            values.put(LocalDatabase.COLUMN_DISPLAY_NAME, upload.displayName);
+            values.put(LocalDatabase.COLUMN_BATCH, batch);
+            if(hash != null) {
+                values.put(LocalDatabase.COLUMN_HASH, hash);
+                values.put(LocalDatabase.COLUMN_STATE, STATE_CHECK);
+            }
+            rows.add(values);
+        }
+
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues values : rows) {
+                db.insertOrThrow(LocalDatabase.TABLE_UPLOADS, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Read the queue and start every row that is due, then schedule the next wake up
+     */
+    @MainThread
+    private void process() {
+        if(mProcessing) {
+            mProcessAgain = true;
+            return;
+        }
+        mProcessing = true;
+        mHandler.removeCallbacks(mProcessRunnable);
+
+        Tasks.call(AppExecutors.disk(), this::readAll).addOnCompleteListener(task -> {
+            mProcessing = false;
+            if(!task.isSuccessful()) {
+                Timber.w(task.getException(), "UploadQueue:read");
+                return;
+            }
+
+            List<Row> rows = task.getResult();
+            Set<String> uploadingGroups = new HashSet<>();
+            Set<String> checkingGroups = new HashSet<>();
+            Map<String, List<Row>> batches = new HashMap<>();
+            for (Row row : rows) {
+                if(row.state == STATE_UPLOAD) {
+                    uploadingGroups.add(row.groupKey());
+                } else if(row.state == STATE_CHECK) {
+                    checkingGroups.add(row.groupKey());
+                }
+                if(row.batch != null) {
+                    List<Row> batchRows = batches.get(row.batch);
+                    if(batchRows == null) {
+                        batchRows = new ArrayList<>();
+                        batches.put(row.batch, batchRows);
+                    }
+                    batchRows.add(row);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            long nextWakeUp = Long.MAX_VALUE;
+            for (Row row : rows) {
+                if(mActive.contains(row.id)) {
+                    continue;
+                }
+                if(row.state == STATE_REFERENCE
+                        || row.state == STATE_COMMIT && (row.batch != null || uploadingGroups.contains(row.groupKey()))) {
+                    // batches are committed as a whole below
+                    continue;
+                }
+                if(row.state == STATE_UPLOAD && checkingGroups.contains(row.groupKey())) {
+                    // don't upload the variants of content we may already have
+                    continue;
+                }
+                if(row.nextAttempt > now) {
+                    nextWakeUp = Math.min(nextWakeUp, row.nextAttempt);
+                    continue;
+                }
+
+                if(row.state == STATE_CHECK) {
+                    check(row);
+                } else if(row.state == STATE_COMMIT) {
+                    commit(row);
+                } else if(mActive.size() < MAX_CONCURRENT) {
+                    upload(row);
+                }
+            }
+
+            for (Map.Entry<String, List<Row>> batch : batches.entrySet()) {
+                nextWakeUp = Math.min(nextWakeUp, processBatch(batch.getKey(), batch.getValue(), now));
+            }
+            reportBatches(batches);
+
+            if(nextWakeUp != Long.MAX_VALUE) {
+                mHandler.postDelayed(mProcessRunnable, nextWakeUp - now);
+            }
+            if(mProcessAgain) {
+                mProcessAgain = false;
+                process();
+            } else if(mActive.isEmpty()) {
+                idle(rows.isEmpty(), nextWakeUp == Long.MAX_VALUE ? WAITING_JOB_DELAY : nextWakeUp - now);
+            }
+        });
+    }
+
+    /**
+     * Nothing is running. Finish the running job, and leave the rows that are left to the next one.
+     * @param empty true when the queue is empty
+     * @param delay milliseconds until the rows that are left can continue
+     */
+    @MainThread
+    private void idle(boolean empty, long delay) {
+        Runnable finished = mJobFinished;
+        mJobFinished = null;
+        if(finished != null) {
+            finished.run();
+        }
+
+        if(empty) {
+            UploadJobService.cancel(mContext);
+        } else {
+            UploadJobService.schedule(mContext, delay);
+        }
+    }
+
+    /**
+     * Commit a batch when it is closed and all of its files are stored
+     * @param batch batch ID
+     * @param rows rows of the batch
+     * @param now current time
+     * @return time of the next attempt when the batch waits for a retry, Long.MAX_VALUE otherwise
+     */
+    @MainThread
+    private long processBatch(String batch, List<Row> rows, long now) {
+        if(mOpenBatches.contains(batch)) {
+            return Long.MAX_VALUE;
+        }
+
+        long nextAttempt = 0;
+        for (Row row : rows) {
+            if(!row.isStored() || mActive.contains(row.id)) {
+                return Long.MAX_VALUE;
+            }
+            nextAttempt = Math.max(nextAttempt, row.nextAttempt);
+        }
+        if(nextAttempt > now) {
+            return nextAttempt;
+        }
+
+        commitBatch(batch, rows);
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Tell the batch listeners how far the batches of this session are.
+     * A closed batch without rows has nothing left to commit, e.g. because all of its content already existed.
+     */
+    @MainThread
+    private void reportBatches(Map<String, List<Row>> batches) {
+        for (String batch : new ArrayList<>(mBatches)) {
+            List<Row> rows = batches.get(batch);
+            if(rows == null && !mOpenBatches.contains(batch)) {
+                batchCommitted(batch);
+                continue;
+            }
+
+            int pending = 0;
+            if(rows != null) {
+                for (Row row : rows) {
+                    if(!row.isStored() && row.filename.equals(row.original)) {
+                        pending++;
+                    }
+                }
+            }
+            for (BatchListener listener : new ArrayList<>(mBatchListeners)) {
+                listener.onBatchProgress(batch, pending);
+            }
+        }
+    }
+
+    @MainThread
+    private void batchCommitted(String batch) {
+        if(!mBatches.remove(batch)) {
+            return;
+        }
+        for (BatchListener listener : new ArrayList<>(mBatchListeners)) {
+            listener.onBatchCommitted(batch);
+        }
+    }
+
+    /**
+     * Look up the content of an original in the ContentIndex.
+     * Known content is referenced, new content is uploaded with the rest of its group.
+     * @param row queued original in STATE_CHECK
+     */
+    private void check(final Row row) {
+        mActive.add(row.id);
+        ContentIndex.reference(row.companyID, row.hash).addOnCompleteListener(task -> {
+            if(!task.isSuccessful()) {
+                Timber.w(task.getException(), "UploadQueue:check %s", row.filename);
+                retryLater(row);
+            } else if(task.getResult() != null && row.batch != null) {
+                referenceInBatch(row, task.getResult());
+            } else if(task.getResult() != null) {
+                commitReference(row, task.getResult());
+            } else {
+                Tasks.call(AppExecutors.disk(), () -> {
+                    updateState(row.id, STATE_UPLOAD);
+                    return (Void) null;
+                }).addOnCompleteListener(ignored -> {
+                    mActive.remove(row.id);
+                    process();
+                });
+            }
+        });
+    }
+
+    /**
+     * Add the existing file to the item instead of uploading the group.
+     * The reference is taken back when the item already had the file, or when the list can't be written.
+     * @param row queued original in STATE_CHECK
+     * @param filename storage filename of the file with the same content
+     */
+    private void commitReference(final Row row, final String filename) {
+        new ItemFileList(row.companyID, row.itemID, row.type).addIfAbsent(filename).addOnCompleteListener(task -> {
+            if(!task.isSuccessful() || !task.getResult()) {
+                ContentIndex.release(row.companyID, filename);
+            }
+            if(!task.isSuccessful()) {
+                Timber.w(task.getException(), "UploadQueue:reference %s", filename);
+                retryLater(row);
+                return;
+            }
+
+            Timber.d("UploadQueue: %s has the same content as %s", row.filename, filename);
+            Tasks.call(AppExecutors.disk(), () -> {
+                drop(row);
+                return (Void) null;
+            }).addOnCompleteListener(ignored -> {
+                mActive.remove(row.id);
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onUploadCommitted(row.companyID, row.itemID, row.type, filename);
+                }
+                ItemLookup.refresh(mContext, row.companyID, row.itemID);
+                process();
+            });
+        });
+    }
+
+    /**
+     * Don't upload the group, but add the existing file to the item with the rest of the batch
+     * @param row queued original in STATE_CHECK
+     * @param filename storage filename of the file with the same content
+     */
+    private void referenceInBatch(final Row row, final String filename) {
+        Timber.d("UploadQueue: %s has the same content as %s", row.filename, filename);
+        Tasks.call(AppExecutors.disk(), () -> {
+            reference(row, filename);
+            return (Void) null;
+        }).addOnCompleteListener(task -> {
+            if(!task.isSuccessful()) {
+                Timber.w(task.getException(), "UploadQueue:reference %s", filename);
+            }
+            mActive.remove(row.id);
+            process();
+        });
+    }
+
+    /**
+     * Upload a single file, resuming the earlier upload session when we have one
+     * @param row queued upload
+     */
+    private void upload(final Row row) {
+        final File file = new File(row.path);
+        if(!file.exists()) {
+            // without one of its files the group can't be stored as a whole
+            Timber.w("UploadQueue:missing file %s", row.path);
+            mActive.add(row.id);
+            fail(row, true);
+            return;
+        }
+
+        StorageMetadata.Builder builder = new StorageMetadata.Builder().setContentType(row.contentType);
+        if(row.displayName != null) {
+            builder.setCustomMetadata("filename", row.displayName);
+        }
+        if(!row.filename.equals(row.original)) {
+            builder.setCustomMetadata("original", row.original);
+        }
+
+        mActive.add(row.id);
+        StorageReference reference = mStorageRef.child(row.companyID + "/" + row.filename);
+        UploadTask uploadTask = row.sessionUri != null
+                ? reference.putFile(Uri.fromFile(file), builder.build(), Uri.parse(row.sessionUri))
+                : reference.putFile(Uri.fromFile(file), builder.build());
+
+        uploadTask.addOnProgressListener(snapshot -> {
+            Uri sessionUri = snapshot.getUploadSessionUri();
+            if(sessionUri != null && row.sessionUri == null) {
+                row.sessionUri = sessionUri.toString();
+                AppExecutors.disk().execute(() -> updateSession(row.id, row.sessionUri));
+            }
+        }).addOnSuccessListener(snapshot -> Tasks.call(AppExecutors.disk(), () -> {
+            uploaded(row);
+            return (Void) null;
+        }).addOnCompleteListener(ignored -> {
+            mActive.remove(row.id);
+            process();
+        })).addOnFailureListener(e -> {
+            Timber.w(e, "UploadQueue:upload %s", row.filename);
+
+            // the server no longer knows the session, start over next time
+            if(e instanceof StorageException && row.sessionUri != null) {
+                int code = ((StorageException) e).getHttpResultCode();
+                if(code >= 400 && code < 500) {
+                    row.sessionUri = null;
+                }
+            }
+
+            retryLater(row);
+        });
+    }
+
+    /**
+     * Add the original to the item's list in the database
+     * @param row queued original in STATE_COMMIT
+     */
+    private void commit(final Row row) {
+        mActive.add(row.id);
+        new ItemFileList(row.companyID, row.itemID, row.type).add(row.filename).addOnCompleteListener(task -> {
+            if(task.isSuccessful()) {
+                committed(row);
+            } else {
+                Timber.w(task.getException(), "UploadQueue:commit %s", row.filename);
+                retryLater(row);
+            }
+        });
+    }
+
+    private void committed(final Row row) {
+        register(row);
+        Tasks.call(AppExecutors.disk(), () -> {
+            delete(row);
+            return (Void) null;
+        }).addOnCompleteListener(ignored -> {
+            mActive.remove(row.id);
+            for (Listener listener : new ArrayList<>(mListeners)) {
+                listener.onUploadCommitted(row.companyID, row.itemID, row.type, row.filename);
+            }
+            ItemLookup.refresh(mContext, row.companyID, row.itemID);
+            process();
+        });
+    }
+
+    /**
+     * Add the originals of a batch to the item's list with a single write.
+     * All rows of a batch belong to the same item and type.
+     * @param batch batch ID
+     * @param rows queued originals in STATE_COMMIT
+     */
+    private void commitBatch(final String batch, final List<Row> rows) {
+        final List<String> filenames = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            mActive.add(row.id);
+            filenames.add(row.filename);
+        }
+
+        final Row first = rows.get(0);
+        new ItemFileList(first.companyID, first.itemID, first.type).addAll(filenames).addOnCompleteListener(task -> {
+            if(!task.isSuccessful()) {
+                Timber.w(task.getException(), "UploadQueue:commitBatch %s", batch);
+                for (Row row : rows) {
+                    retryLater(row);
+                }
+                return;
+            }
+
+            // a referenced file that the item already had, or that is twice in the batch, gives its reference back
+            List<String> added = new ArrayList<>(task.getResult());
+            for (Row row : rows) {
+                if(!added.remove(row.filename)) {
+                    if(row.state == STATE_REFERENCE) {
+                        ContentIndex.release(row.companyID, row.filename);
+                    }
+                } else if(row.state == STATE_COMMIT) {
+                    register(row);
+                }
+            }
+            Tasks.call(AppExecutors.disk(), () -> {
+                for (Row row : rows) {
+                    delete(row);
+                }
+                return (Void) null;
+            }).addOnCompleteListener(ignored -> {
+                for (Row row : rows) {
+                    mActive.remove(row.id);
+                    for (Listener listener : new ArrayList<>(mListeners)) {
+                        listener.onUploadCommitted(row.companyID, row.itemID, row.type, row.filename);
+                    }
+                }
+                ItemLookup.refresh(mContext, first.companyID, first.itemID);
+                batchCommitted(batch);
+                process();
+            });
+        });
+    }
+
+    /**
+     * Add a committed original to the ContentIndex
+     */
+    private void register(final Row row) {
+        if(row.hash != null) {
+            ContentIndex.register(row.companyID, row.filename, row.hash).addOnFailureListener(e ->
+                    Timber.w(e, "UploadQueue:register %s", row.filename));
+        }
+    }
+
+    /**
+     * Try the row again with an exponential backoff, or give up on it after MAX_ATTEMPTS.
+     * A failure without a network connection says nothing about the file and isn't counted.
+     */
+    private void retryLater(final Row row) {
+        if(ConnectionUtils.isConnected(mContext)) {
+            row.attempts++;
+            if(row.attempts >= MAX_ATTEMPTS) {
+                Timber.e("UploadQueue: giving up on %s after %d attempts", row.filename, row.attempts);
+                fail(row, false);
+                return;
+            }
+        }
+        long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(Math.max(row.attempts - 1, 0), 16));
+        row.nextAttempt = System.currentTimeMillis() + backoff / 2 + (long) (mRandom.nextDouble() * backoff / 2);
+
+        Tasks.call(AppExecutors.disk(), () -> {
+            updateRetry(row);
+            return (Void) null;
+        }).addOnCompleteListener(ignored -> {
+            mActive.remove(row.id);
+            process();
+        });
+    }
+
+    /**
+     * Give up on the row. An original takes its group along, and its stored files are deleted.
+     * A variant is left out, the original is still added without it.
+     * @param row queued row
+     * @param group true to give up on the whole group of the row, also for a variant
+     */
+    private void fail(final Row row, boolean group) {
+        final boolean original = group || row.filename.equals(row.original);
+        final boolean dropsGroup = original && row.state != STATE_REFERENCE;
+        if(dropsGroup && !mFailing.add(row.groupKey())) {
+            mActive.remove(row.id);
+            return;
+        }
+        Tasks.call(AppExecutors.disk(), () -> {
+            if(!dropsGroup) {
+                delete(row);
+            } else {
+                dropGroup(row);
+            }
+            return (Void) null;
+        }).addOnCompleteListener(ignored -> {
+            mActive.remove(row.id);
+            if(row.state == STATE_REFERENCE) {
+                // someone else's file, only give the reference back
+                DeleteQueue.getInstance(mContext).release(row.companyID, Collections.singletonList(row.filename),
+                        GridActivity.TYPE_PHOTO.equals(row.type));
+            } else if(original) {
+                // the original or its variants may already be stored, deleting what isn't there is fine
+                List<String> objects = new ArrayList<>();
+                objects.add(row.original);
+                if(GridActivity.TYPE_PHOTO.equals(row.type)) {
+                    objects.add(ImageVariants.name(row.original, ImageVariants.SMALL));
+                    objects.add(ImageVariants.name(row.original, ImageVariants.SCREEN));
+                }
+                DeleteQueue.getInstance(mContext).enqueue(row.companyID, objects);
+            }
+            if(original && row.batch != null) {
+                for (BatchListener listener : new ArrayList<>(mBatchListeners)) {
+                    listener.onBatchFileFailed(row.batch);
+                }
+            }
+            if(dropsGroup) {
+                mFailing.remove(row.groupKey());
+            }
+            process();
+        });
+    }
+
+    @WorkerThread
+    private void uploaded(Row row) {
+        if(row.filename.equals(row.original)) {
+            ContentValues values = new ContentValues();
+            values.put(LocalDatabase.COLUMN_STATE, STATE_COMMIT);
+            values.put(LocalDatabase.COLUMN_ATTEMPTS, 0);
+            values.put(LocalDatabase.COLUMN_NEXT_ATTEMPT, 0);
+            values.putNull(LocalDatabase.COLUMN_SESSION_URI);
+            mDatabase.getWritableDatabase().update(LocalDatabase.TABLE_UPLOADS, values,
+                    LocalDatabase.COLUMN_ID + " = ?", new String[] { String.valueOf(row.id) });
+            new File(row.path).delete();
+        } else {
+            delete(row);
+        }
+    }
+
+    /**
+     * A file that is gone can't be uploaded anymore. Without the original the whole group is dropped.
+     * Also used for a group that doesn't have to be uploaded because its content is already stored.
+     * @param row queued upload
+     */
+    @WorkerThread
+    private void drop(Row row) {
+        if(row.filename.equals(row.original)) {
+            dropGroup(row);
+        } else {
+            delete(row);
+        }
+    }
+
+    /**
+     * Delete the rows and local files of the original and its variants
+     * @param row any row of the group
+     */
+    @WorkerThread
+    private void dropGroup(Row row) {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        Cursor cursor = db.query(LocalDatabase.TABLE_UPLOADS, new String[] { LocalDatabase.COLUMN_PATH },
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_ORIGINAL + " = ?",
+                new String[] { row.companyID, row.original }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                new File(cursor.getString(0)).delete();
+            }
+        } finally {
+            cursor.close();
+        }
+        db.delete(LocalDatabase.TABLE_UPLOADS,
+                LocalDatabase.COLUMN_COMPANY + " = ? AND " + LocalDatabase.COLUMN_ORIGINAL + " = ?",
+                new String[] { row.companyID, row.original });
+    }
+
+    @WorkerThread
+    private void delete(Row row) {
+        new File(row.path).delete();
+        mDatabase.getWritableDatabase().delete(LocalDatabase.TABLE_UPLOADS,
+                LocalDatabase.COLUMN_ID + " = ?", new String[] { String.valueOf(row.id) });
+    }
+
+    /**
+     * Replace the group by a row for the existing file, in one transaction
+     */
+    @WorkerThread
+    private void reference(Row row, String filename) {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            drop(row);
+
+            ContentValues values = new ContentValues();
+            values.put(LocalDatabase.COLUMN_COMPANY, row.companyID);
+            values.put(LocalDatabase.COLUMN_ITEM_ID, row.itemID);
+            values.put(LocalDatabase.COLUMN_TYPE, row.type);
+            values.put(LocalDatabase.COLUMN_FILENAME, filename);
+            values.put(LocalDatabase.COLUMN_ORIGINAL, filename);
+            values.put(LocalDatabase.COLUMN_PATH, row.path);
+            values.put(LocalDatabase.COLUMN_CONTENT_TYPE, row.contentType);
+            values.put(LocalDatabase.COLUMN_DISPLAY_NAME, row.displayName);
+            values.put(LocalDatabase.COLUMN_BATCH, row.batch);
+            values.put(LocalDatabase.COLUMN_STATE, STATE_REFERENCE);
+            db.insertOrThrow(LocalDatabase.TABLE_UPLOADS, null, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @WorkerThread
+    private void updateState(long id, int state) {
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_STATE, state);
+        mDatabase.getWritableDatabase().update(LocalDatabase.TABLE_UPLOADS, values,
+                LocalDatabase.COLUMN_ID + " = ?", new String[] { String.valueOf(id) });
+    }
+
+    @WorkerThread
+    private void updateSession(long id, String sessionUri) {
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_SESSION_URI, sessionUri);
+        mDatabase.getWritableDatabase().update(LocalDatabase.TABLE_UPLOADS, values,
+                LocalDatabase.COLUMN_ID + " = ?", new String[] { String.valueOf(id) });
+    }
+
+    @WorkerThread
+    private void updateRetry(Row row) {
+        ContentValues values = new ContentValues();
+        values.put(LocalDatabase.COLUMN_ATTEMPTS, row.attempts);
+        values.put(LocalDatabase.COLUMN_NEXT_ATTEMPT, row.nextAttempt);
+        values.put(LocalDatabase.COLUMN_SESSION_URI, row.sessionUri);
+        mDatabase.getWritableDatabase().update(LocalDatabase.TABLE_UPLOADS, values,
+                LocalDatabase.COLUMN_ID + " = ?", new String[] { String.valueOf(row.id) });
+    }
+
+    @WorkerThread
+    private List<Row> readAll() {
+        List<Row> rows = new ArrayList<>();
+        Cursor cursor = mDatabase.getReadableDatabase().query(LocalDatabase.TABLE_UPLOADS, null,
+                null, null, null, null, LocalDatabase.COLUMN_ID);
+        try {
+            while (cursor.moveToNext()) {
+                rows.add(new Row(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Copy the file into the queue directory
+     * @param hash also hash the content
+     * @return SHA-256 of the content as hex string, or null when not hashed
+     */
+    @WorkerThread
+    private String copy(Uri source, File target, boolean hash) throws IOException {
+        MessageDigest digest = hash ? digest() : null;
+
+        if(target.getAbsolutePath().equals(source.getPath()) && "file".equals(source.getScheme())) {
+            if(digest != null) {
+                try (InputStream in = new FileInputStream(target)) {
+                    transfer(in, null, digest);
+                }
+            }
+        } else {
+            try (InputStream in = mContext.getContentResolver().openInputStream(source);
+                 OutputStream out = new FileOutputStream(target)) {
+                if(in == null) {
+                    throw new IOException("Could not open " + source);
+                }
+                transfer(in, out, digest);
+            }
+        }
+        return hex(digest);
+    }
+
+    /**
+     * @return SHA-256 digest for the content hash, null when the device doesn't have it
+     */
+    @Nullable
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            Timber.w(e, "UploadQueue:digest");
+            return null;
+        }
+    }
+
+    static void transfer(InputStream in, @Nullable OutputStream out, @Nullable MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if(out != null) {
+                out.write(buffer, 0, read);
+            }
+            if(digest != null) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * @return the digest as hex string, null without a digest
+     */
+    @Nullable
+    static String hex(@Nullable MessageDigest digest) {
+        if(digest == null) {
+            return null;
+        }
+        byte[] bytes = digest.digest();
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * In-memory copy of a queue row
+     */
+    private static class Row {
+        final long id;
+        final String companyID;
+        final String itemID;
+        final String type;
+        final String filename;
+        final String original;
+        final String path;
+        final String contentType;
+        final String displayName;
+        final String hash;
+        final String batch;
+        final int state;
+        String sessionUri;
+        int attempts;
+        long nextAttempt;
+
+        Row(Cursor cursor) {
+            id = cursor.getLong(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_ID));
+            companyID = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_COMPANY));
+            itemID = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_ITEM_ID));
+            type = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_TYPE));
+            filename = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_FILENAME));
+            original = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_ORIGINAL));
+            path = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_PATH));
+            contentType = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_CONTENT_TYPE));
+            displayName = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_DISPLAY_NAME));
+            hash = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_HASH));
+            batch = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_BATCH));
+            sessionUri = cursor.getString(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_SESSION_URI));
+            state = cursor.getInt(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_STATE));
+            attempts = cursor.getInt(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_ATTEMPTS));
+            nextAttempt = cursor.getLong(cursor.getColumnIndexOrThrow(LocalDatabase.COLUMN_NEXT_ATTEMPT));
+        }
+
+        /**
+         * @return true when the row only waits to be added to the item
+         */
+        boolean isStored() {
+            return state == STATE_COMMIT || state == STATE_REFERENCE;
+        }
+
+        String groupKey() {
+            return companyID + "/" + original;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package nl.kimplusdelta.gereedschap.storage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+/**
+ * Small per user settings that have to be available before the database answers
+ */
+public final class UserPreferences {
+
+    private static final String NAME = "user";
+    private static final String KEY_COMPANY = "company_";
+
+    private UserPreferences() {}
+
+    /**
+     * @param context any context
+     * @param uid Firebase user ID
+     * @return the company ID that was last resolved for the user, or null
+     */
+    @Nullable
+    public static String getCompanyID(Context context, String uid) {
+        return preferences(context).getString(KEY_COMPANY + uid, null);
+    }
+
+    /**
+     * @param context any context
+     * @param uid Firebase user ID
+     * @param companyID the company ID from users/{uid}/company, or null to forget it
+     */
+    public static void setCompanyID(Context context, String uid, @Nullable String companyID) {
+        SharedPreferences.Editor editor = preferences(context).edit();
+        if(companyID == null) {
+            editor.remove(KEY_COMPANY + uid);
+        } else {
+            editor.putString(KEY_COMPANY + uid, companyID);
+        }
+        editor.apply();
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,358 @@
+package nl.kimplusdelta.gereedschap.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.support.annotation.Nullable;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import com.google.android.gms.tasks.Task;
+
+/**
+ * Shows a screen sized bitmap of a photo with pinch and double tap zoom.
+ * Once zoomed in further than the bitmap's own resolution, the visible part is decoded from the
+ * original photo through the RegionLoader and drawn on top, so only the pixels on screen are in memory.
+ */
+public class ZoomImageView extends View {
+
+    /**
+     * Decodes parts of the original photo
+     */
+    public interface RegionLoader {
+        /**
+         * @param region part of the photo in source pixels
+         * @param sampleSize subsample of the region
+         * @return task with the decoded region
+         */
+        Task<Bitmap> decodeRegion(Rect region, int sampleSize);
+
+        /**
+         * @param bitmap region that is no longer drawn
+         */
+        void recycle(Bitmap bitmap);
+    }
+
+    /**
+     * Zoom of a double tap, relative to the photo fitted on screen
+     */
+    private static final float DOUBLE_TAP_ZOOM = 2.5f;
+
+    /**
+     * Zoom in until a source pixel takes this many screen pixels
+     */
+    private static final float MAX_PIXEL_ZOOM = 2f;
+
+    /**
+     * Wait for the user to stop moving before decoding the visible region
+     */
+    private static final long TILE_DELAY = 150;
+
+    private final Matrix mMatrix = new Matrix();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final GestureDetector mGestureDetector;
+    private final ScaleGestureDetector mScaleDetector;
+
+    private Bitmap mBitmap;
+    private int mSourceWidth;
+    private int mSourceHeight;
+    private RegionLoader mLoader;
+
+    /**
+     * Scale of the bitmap when it fits the view
+     */
+    private float mBaseScale = 1f;
+
+    /**
+     * Decoded region drawn over the bitmap, in bitmap coordinates
+     */
+    private Bitmap mTile;
+    private final RectF mTileRect = new RectF();
+
+    /**
+     * Incremented for every tile request, so late results are dropped
+     */
+    private int mTileGeneration;
+
+    private final Runnable mTileRunnable = this::requestTile;
+
+    public ZoomImageView(Context context) {
+        this(context, null);
+    }
+
+    public ZoomImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mGestureDetector = new GestureDetector(context, gestureListener);
+        mScaleDetector = new ScaleGestureDetector(context, scaleListener);
+    }
+
+    /**
+     * @param bitmap screen sized bitmap of the photo, or null to clear the view
+     * @param sourceWidth width of the original photo
+     * @param sourceHeight height of the original photo
+     * @param loader decoder for the zoomed in parts, or null to only show the bitmap
+     */
+    public void setImage(@Nullable Bitmap bitmap, int sourceWidth, int sourceHeight, @Nullable RegionLoader loader) {
+        clearTile();
+        mBitmap = bitmap;
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mLoader = loader;
+        resetMatrix();
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        resetMatrix();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        clearTile();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if(mBitmap == null || mBitmap.isRecycled()) {
+            return;
+        }
+
+        canvas.save();
+        canvas.concat(mMatrix);
+        canvas.drawBitmap(mBitmap, 0, 0, mPaint);
+        if(mTile != null) {
+            canvas.drawBitmap(mTile, null, mTileRect, mPaint);
+        }
+        canvas.restore();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if(mBitmap == null) {
+            return super.onTouchEvent(event);
+        }
+
+        mScaleDetector.onTouchEvent(event);
+        mGestureDetector.onTouchEvent(event);
+
+        int action = event.getActionMasked();
+        if(action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            scheduleTile();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean performClick() {
+        return super.performClick();
+    }
+
+    /**
+     * Lets the ViewPager only page once a zoomed in photo is panned to its edge
+     */
+    @Override
+    public boolean canScrollHorizontally(int direction) {
+        if(mBitmap == null) {
+            return false;
+        }
+
+        RectF bounds = displayedBounds();
+        return direction < 0 ? bounds.left < -0.5f : bounds.right > getWidth() + 0.5f;
+    }
+
+    private final GestureDetector.SimpleOnGestureListener gestureListener = new GestureDetector.SimpleOnGestureListener() {
+        @Override
+        public boolean onSingleTapConfirmed(MotionEvent e) {
+            return performClick();
+        }
+
+        @Override
+        public boolean onDoubleTap(MotionEvent e) {
+            if(getScale() > mBaseScale * 1.01f) {
+                resetMatrix();
+            } else {
+                zoom(DOUBLE_TAP_ZOOM, e.getX(), e.getY());
+            }
+            scheduleTile();
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            if(getScale() <= mBaseScale * 1.01f) {
+                return false;
+            }
+
+            mMatrix.postTranslate(-distanceX, -distanceY);
+            clamp();
+            invalidate();
+            return true;
+        }
+    };
+
+    private final ScaleGestureDetector.SimpleOnScaleGestureListener scaleListener = new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            getParent().requestDisallowInterceptTouchEvent(true);
+            return true;
+        }
+
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            zoom(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+            return true;
+        }
+    };
+
+    /**
+     * Scale around the focus point, within the fitted size and MAX_PIXEL_ZOOM
+     */
+    private void zoom(float factor, float focusX, float focusY) {
+        float scale = getScale();
+        float maxScale = Math.max(mBaseScale * DOUBLE_TAP_ZOOM,
+                MAX_PIXEL_ZOOM * mSourceWidth / (float) mBitmap.getWidth());
+        float target = Math.max(mBaseScale, Math.min(maxScale, scale * factor));
+
+        mMatrix.postScale(target / scale, target / scale, focusX, focusY);
+        clamp();
+        invalidate();
+    }
+
+    /**
+     * Fit the bitmap in the view
+     */
+    private void resetMatrix() {
+        mMatrix.reset();
+        if(mBitmap == null || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+
+        mBaseScale = Math.min((float) getWidth() / mBitmap.getWidth(), (float) getHeight() / mBitmap.getHeight());
+        mMatrix.setScale(mBaseScale, mBaseScale);
+        clamp();
+        clearTile();
+        invalidate();
+    }
+
+    /**
+     * Center the bitmap where it is smaller than the view, keep the edges on screen where it is larger
+     */
+    private void clamp() {
+        RectF bounds = displayedBounds();
+        mMatrix.postTranslate(clampOffset(bounds.left, bounds.right, getWidth()),
+                clampOffset(bounds.top, bounds.bottom, getHeight()));
+    }
+
+    private static float clampOffset(float start, float end, int size) {
+        if(end - start <= size) {
+            return (size - (end - start)) / 2 - start;
+        }
+        if(start > 0) {
+            return -start;
+        }
+        if(end < size) {
+            return size - end;
+        }
+        return 0;
+    }
+
+    private RectF displayedBounds() {
+        RectF bounds = new RectF(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+        mMatrix.mapRect(bounds);
+        return bounds;
+    }
+
+    /**
+     * @return screen pixels per bitmap pixel
+     */
+    private float getScale() {
+        float[] values = new float[9];
+        mMatrix.getValues(values);
+        return values[Matrix.MSCALE_X];
+    }
+
+    private void scheduleTile() {
+        removeCallbacks(mTileRunnable);
+        postDelayed(mTileRunnable, TILE_DELAY);
+    }
+
+    /**
+     * Decode the visible part of the photo when the bitmap is shown larger than its own resolution
+     */
+    private void requestTile() {
+        if(mBitmap == null || mLoader == null || mSourceWidth <= 0 || getScale() <= 1f) {
+            clearTile();
+            return;
+        }
+
+        Matrix inverse = new Matrix();
+        if(!mMatrix.invert(inverse)) {
+            return;
+        }
+        RectF visible = new RectF(0, 0, getWidth(), getHeight());
+        inverse.mapRect(visible);
+        if(!visible.intersect(0, 0, mBitmap.getWidth(), mBitmap.getHeight())) {
+            return;
+        }
+
+        final float bitmapPerSource = (float) mBitmap.getWidth() / mSourceWidth;
+        final Rect region = new Rect(
+                (int) Math.floor(visible.left / bitmapPerSource),
+                (int) Math.floor(visible.top / bitmapPerSource),
+                (int) Math.ceil(visible.right / bitmapPerSource),
+                (int) Math.ceil(visible.bottom / bitmapPerSource));
+        if(!region.intersect(0, 0, mSourceWidth, mSourceHeight)) {
+            return;
+        }
+
+        // the largest subsample that still has a source pixel for every screen pixel
+        float screenPerSource = getScale() * bitmapPerSource;
+        int sampleSize = 1;
+        while (sampleSize * 2 * screenPerSource <= 1f) {
+            sampleSize *= 2;
+        }
+
+        final RectF tileRect = new RectF(region.left * bitmapPerSource, region.top * bitmapPerSource,
+                region.right * bitmapPerSource, region.bottom * bitmapPerSource);
+        final int generation = ++mTileGeneration;
+        final RegionLoader loader = mLoader;
+        loader.decodeRegion(region, sampleSize).addOnSuccessListener(tile -> {
+            if(tile == null) {
+                return;
+            }
+            if(generation != mTileGeneration) {
+                loader.recycle(tile);
+                return;
+            }
+
+            if(mTile != null) {
+                loader.recycle(mTile);
+            }
+            mTile = tile;
+            mTileRect.set(tileRect);
+            invalidate();
+        });
+    }
+
+    private void clearTile() {
+        removeCallbacks(mTileRunnable);
+        mTileGeneration++;
+        if(mTile != null) {
+            if(mLoader != null) {
+                mLoader.recycle(mTile);
+            }
+            mTile = null;
+            invalidate();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+#!/usr/bin/env bash
+#
+# Measures the cold start of the app on a connected device, see StartupTrace.
+# Every run force-stops the app, starts the LoginActivity with "am start -W" and collects:
+#   - TotalTime of am start, up to the first drawn frame (MainActivity for a cached session)
+#   - the "Displayed" time the system logs for that frame
+#   - the StartupTrace line with scan_ready (MainActivity drawn and the CompanyID known)
+# and prints the median of each, so two builds can be compared with the same command.
+#
+# Usage: ./measure_startup.sh [runs] [package]
+#   runs     number of cold starts, default 10
+#   package  application ID, default nl.kimplusdelta.gereedschap
+#
+# Install a debug build (StartupTrace logs through Timber) and log in once first to measure
+# the cached session path; sign out to measure the login path.
+
+set -euo pipefail
+
+RUNS="${1:-10}"
+PACKAGE="${2:-nl.kimplusdelta.gereedschap}"
+COMPONENT="$PACKAGE/.activity.LoginActivity"
+
+# time for the CompanyID to load after the first frame, before the log is read
+SETTLE_SECONDS=${SETTLE_SECONDS:-5}
+
+median() {
+    sort -n | awk '{ v[NR] = $1 } END { if (NR == 0) print "-"; else if (NR % 2) print v[(NR + 1) / 2]; else print int((v[NR / 2] + v[NR / 2 + 1]) / 2) }'
+}
+
+totals=()
+displayed=()
+ready=()
+
+for run in $(seq 1 "$RUNS"); do
+    adb shell am force-stop "$PACKAGE"
+    adb logcat -c
+    sleep 1
+
+    total=$(adb shell am start -W -n "$COMPONENT" | tr -d '\r' | awk -F': ' '/^TotalTime/ { print $2 }')
+    sleep "$SETTLE_SECONDS"
+    log=$(adb logcat -d | tr -d '\r')
+
+    # "Displayed pkg/.activity.MainActivity: +1s23ms", the last one is the activity the user ends up on
+    shown=$(echo "$log" | grep "Displayed $PACKAGE/" | tail -1 \
+        | sed -E 's/.*: \+(([0-9]+)s)?([0-9]+)ms.*/\2 \3/' | awk '{ print ($2 == "" ? $1 : $1 * 1000 + $2) }' || true)
+    trace=$(echo "$log" | grep -o "StartupTrace: path=.*" | tail -1 || true)
+    scan=$(echo "$trace" | sed -nE 's/.*scan_ready=([0-9]+)ms.*/\1/p')
+
+    echo "run $run: am_total=${total:--}ms displayed=${shown:--}ms ${trace:-StartupTrace: no trace}"
+    [ -n "$total" ] && totals+=("$total")
+    [ -n "$shown" ] && displayed+=("$shown")
+    [ -n "$scan" ] && ready+=("$scan")
+done
+
+echo
+echo "median over $RUNS runs:"
+echo "  am start TotalTime  $(printf '%s\n' "${totals[@]+"${totals[@]}"}" | grep . | median)ms"
+echo "  Displayed           $(printf '%s\n' "${displayed[@]+"${displayed[@]}"}" | grep . | median)ms"
+echo "  scan_ready          $(printf '%s\n' "${ready[@]+"${ready[@]}"}" | grep . | median)ms"